@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.bench;
+
+import net.vx4.lib.omapi.C2Transport;
+import net.vx4.lib.omapi.ChannelTransportProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cutting extended length APDUs into ENVELOPE APDUs with {@link C2Transport}, down to a {@link StubChannel}.
+ *
+ * @version $Id$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class C2TransportBenchmark {
+
+    /**
+     * Length of the command data, from a single segment to a certificate sized command.
+     */
+    @Param({"300", "1024", "4096"})
+    private int size;
+
+    private final ByteBuffer response = ByteBuffer.allocate(65536);
+
+    private byte[] apdu;
+    private C2Transport c2;
+
+
+    @Setup
+    public void setup() {
+        // UPDATE BINARY, extended length Lc
+        apdu = new byte[7 + size];
+        apdu[1] = (byte) 0xD6;
+        apdu[5] = (byte) (size >> 8);
+        apdu[6] = (byte) size;
+
+        c2 = new C2Transport(new ChannelTransportProvider(new StubChannel(1)));
+    }
+
+
+    @Benchmark
+    public int chain() {
+        response.clear();
+        return c2.transmit(ByteBuffer.wrap(apdu), response);
+    }
+}
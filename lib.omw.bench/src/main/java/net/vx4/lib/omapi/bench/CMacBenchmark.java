@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.bench;
+
+import net.vx4.lib.omapi.CMac;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AES-CMAC over the send sequence counter and a protected APDU of the given size, fed in the two parts the secure
+ * messaging layer uses.
+ *
+ * @version $Id$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CMacBenchmark {
+
+    @Param({"16", "48", "288"})
+    private int size;
+
+    private final byte[] ssc = new byte[16];
+    private final byte[] mac = new byte[8];
+    private byte[] data;
+    private CMac cmac;
+
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        final Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(SMCardStub.KMAC, "AES"),
+                new IvParameterSpec(new byte[16]));
+        cmac = new CMac(cipher, 8);
+        data = new byte[size];
+    }
+
+
+    @Benchmark
+    public byte[] mac() throws GeneralSecurityException {
+        cmac.update(ssc, 0, ssc.length);
+        cmac.update(data, 0, data.length);
+        return cmac.doFinal();
+    }
+
+
+    /**
+     * The MAC written into a caller buffer, as done when protecting a command.
+     */
+    @Benchmark
+    public byte[] macInto() throws GeneralSecurityException {
+        cmac.update(ssc, 0, ssc.length);
+        cmac.update(data, 0, data.length);
+        cmac.doFinal(mac, 0);
+        return mac;
+    }
+
+
+    /**
+     * The MAC compared in constant time, as done when checking a response.
+     */
+    @Benchmark
+    public boolean verify() throws GeneralSecurityException {
+        cmac.update(ssc, 0, ssc.length);
+        cmac.update(data, 0, data.length);
+        return cmac.verify(mac, 0, mac.length);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.bench;
+
+import net.vx4.lib.omapi.Hex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion between bytes and their hex representation with {@link Hex}, for the sizes of a short APDU header, a
+ * short and an extended length response. The <code>hexFormat</code> benchmarks do the same with {@link HexFormat} for
+ * comparison.
+ *
+ * @version $Id$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexBenchmark {
+
+    @Param({"5", "258", "4096"})
+    private int size;
+
+    private static final HexFormat HEX_FORMAT = HexFormat.of().withUpperCase();
+
+    private byte[] bytes;
+    private String hex;
+    private String lowerHex;
+    private char[] chars;
+    private StringBuilder sb;
+    private ByteBuffer ascii;
+
+
+    @Setup
+    public void setup() {
+        bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        hex = Hex.toString(bytes);
+        lowerHex = hex.toLowerCase();
+        chars = new char[size * 2];
+        sb = new StringBuilder(size * 2);
+        ascii = ByteBuffer.allocate(size * 2);
+    }
+
+
+    @Benchmark
+    public String encode() {
+        return Hex.toString(bytes);
+    }
+
+
+    @Benchmark
+    public byte[] decode() {
+        return Hex.fromString(hex);
+    }
+
+
+    @Benchmark
+    public byte[] decodeLowerCase() {
+        return Hex.fromString(lowerHex);
+    }
+
+
+    @Benchmark
+    public char[] encodeIntoChars() {
+        Hex.encode(bytes, 0, bytes.length, chars, 0);
+        return chars;
+    }
+
+
+    @Benchmark
+    public StringBuilder encodeIntoStringBuilder() {
+        sb.setLength(0);
+        return Hex.append(sb, bytes, 0, bytes.length);
+    }
+
+
+    @Benchmark
+    public ByteBuffer encodeIntoByteBuffer() {
+        ascii.clear();
+        Hex.encode(bytes, 0, bytes.length, ascii, true);
+        return ascii;
+    }
+
+
+    @Benchmark
+    public int decodeInto() {
+        return Hex.decode(hex, 0, hex.length(), bytes, 0, true);
+    }
+
+
+    @Benchmark
+    public String hexFormatEncode() {
+        return HEX_FORMAT.formatHex(bytes);
+    }
+
+
+    @Benchmark
+    public StringBuilder hexFormatEncodeIntoStringBuilder() {
+        sb.setLength(0);
+        return HEX_FORMAT.formatHex(sb, bytes);
+    }
+
+
+    @Benchmark
+    public byte[] hexFormatDecode() {
+        return HEX_FORMAT.parseHex(hex);
+    }
+
+
+    @Benchmark
+    public byte[] hexFormatDecodeLowerCase() {
+        return HEX_FORMAT.parseHex(lowerHex);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.bench;
+
+import net.vx4.lib.omapi.APDUScript;
+import net.vx4.lib.omapi.Hex;
+import net.vx4.lib.omapi.Metrics;
+import net.vx4.lib.omapi.OMAPITP;
+import net.vx4.lib.omapi.Response;
+import net.vx4.lib.omapi.SessionCache;
+import net.vx4.lib.omapi.se.SecureElements;
+import net.vx4.lib.omapi.sim.SimulatedSecureElement;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.simalliance.openmobileapi.Channel;
+import org.simalliance.openmobileapi.Reader;
+import org.simalliance.openmobileapi.SEService;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commands through {@link OMAPITP} and an established PACE channel down to a {@link SimulatedSecureElement}, the whole
+ * stack from the terminal emulation to the OMAPI channel.
+ *
+ * @version $Id$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OMAPITPBenchmark {
+
+    private static final byte[] SECRET = Hex.x("000102030405060708090A0B0C0D0E0F");
+
+    /**
+     * Latency of the secure element per APDU.
+     */
+    @Param({"0", "200"})
+    private int latencyMicros;
+
+    /**
+     * Whether {@link Metrics} are recorded.
+     */
+    @Param({"false", "true"})
+    private boolean metrics;
+
+    private final byte[] select = Hex.x("00A4020C020101");
+    private final byte[] selectCardSecurity = Hex.x("00A4020C02011D");
+    private final byte[] readBinary = Hex.x("00B0000000");
+    private final byte[] readBinaryExtended = Hex.x("00B00000000000");
+
+    private final byte[] establishPACE = Hex.x("FF9A04020000");
+    private final byte[][] readFile = {select, Hex.x("00B0000000"), Hex.x("00B0010000"), Hex.x("00B0020000"),
+            Hex.x("00B0030000")};
+    private final APDUScript readFileScript = new APDUScript();
+
+    private OMAPITP omapiTP;
+    /**
+     * Second instance on the same channel, resuming the session of the first one.
+     */
+    private OMAPITP resumingTP;
+
+
+    @Setup
+    public void setup() throws IOException {
+        for (final byte[] apdu : readFile) {
+            readFileScript.add(apdu);
+        }
+
+        final byte[] aid = Hex.x(OMAPITP.AID_VX4ID);
+        final SimulatedSecureElement se = new SimulatedSecureElement(aid, SECRET);
+        se.addFile(0x0101, 1, new byte[1024]);
+        se.setLatency(latencyMicros, TimeUnit.MICROSECONDS);
+        SecureElements.register("SIM", se);
+
+        final Reader reader = new SEService(null, null).getReaders()[0];
+        final Channel channel = reader.openSession().openLogicalChannel(aid);
+        final OMAPITP.CallbackHandler cbh = new OMAPITP.CallbackHandler() {
+            @Override
+            public byte[] getSecret() {
+                return SECRET.clone();
+            }
+        };
+        final SessionCache sessions = new SessionCache(1, 1, TimeUnit.HOURS);
+        omapiTP = new OMAPITP(channel);
+        omapiTP.setCallbackHandler(cbh);
+        omapiTP.setSessionCache(sessions);
+        omapiTP.process(establishPACE);
+        resumingTP = new OMAPITP(channel);
+        resumingTP.setCallbackHandler(cbh);
+        resumingTP.setSessionCache(sessions);
+        Metrics.setEnabled(metrics);
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        Metrics.setEnabled(false);
+        Metrics.reset();
+        SecureElements.unregister("SIM");
+    }
+
+
+    /**
+     * EstablishPACEChannel running PACE-light: secret callback, two round trips, AES, SHA-256 and key derivation.
+     */
+    @Benchmark
+    public byte[] establishPACE() {
+        omapiTP.getSessionCache().clear();
+        return omapiTP.process(establishPACE);
+    }
+
+
+    /**
+     * EstablishPACEChannel resuming the cached session with one protected round trip.
+     */
+    @Benchmark
+    public byte[] resumePACE() {
+        return resumingTP.process(establishPACE);
+    }
+
+
+    /**
+     * SELECT passed through secure messaging to the secure element.
+     */
+    @Benchmark
+    public byte[] selectFile() {
+        return omapiTP.process(select);
+    }
+
+
+    /**
+     * EF.CardSecurity read in chunks of 256 bytes, answered by the emulation without the secure element.
+     */
+    @Benchmark
+    public int readCardSecurity() {
+        omapiTP.process(selectCardSecurity);
+        int total = 0;
+        for (int ofs = 0; ; ofs += 256) {
+            readBinary[2] = (byte) (ofs >> 8);
+            readBinary[3] = (byte) ofs;
+            final Response res = omapiTP.exchange(readBinary);
+            total += res.length();
+            if (res.sw() != 0x9000) {
+                return total;
+            }
+        }
+    }
+
+
+    /**
+     * EF.CardSecurity read at once with extended Le.
+     */
+    @Benchmark
+    public int readCardSecurityExtended() {
+        omapiTP.process(selectCardSecurity);
+        return omapiTP.exchange(readBinaryExtended).length();
+    }
+
+
+    /**
+     * SELECT and four READ BINARY of a file on the secure element through secure messaging, one by one.
+     */
+    @Benchmark
+    public int readFileSingle() {
+        int total = 0;
+        for (final byte[] apdu : readFile) {
+            total += omapiTP.exchange(apdu).length();
+        }
+        return total;
+    }
+
+
+    /**
+     * The commands of {@link #readFileSingle()} as a script, protected in one pass.
+     */
+    @Benchmark
+    public int readFileScript() {
+        return omapiTP.run(readFileScript).dataLength();
+    }
+}
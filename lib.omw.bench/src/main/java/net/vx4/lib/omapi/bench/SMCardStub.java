@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.bench;
+
+import net.vx4.lib.omapi.AbstractTransportProvider;
+import net.vx4.lib.omapi.CMac;
+import net.vx4.lib.omapi.Response;
+import net.vx4.lib.omapi.ResponseCallback;
+import net.vx4.lib.omapi.TLV;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * In-memory card stub answering secure messaging APDUs with precomputed protected responses. The responses are
+ * computed once for a window of send sequence counter values, so the benchmark measures the host side only. After
+ * the window is used up the SM session has to be set up again with {@link #KENC} and {@link #KMAC}.
+ *
+ * @version $Id$
+ */
+public final class SMCardStub extends AbstractTransportProvider {
+
+    /**
+     * Session keys shared with the transport under test.
+     */
+    public static final byte[] KENC = new byte[16], KMAC = new byte[16];
+
+    static {
+        for (int i = 0; i < 16; i++) {
+            KENC[i] = (byte) i;
+            KMAC[i] = (byte) (0xF0 - i);
+        }
+    }
+
+    private final byte[][] responses;
+    private final int sw;
+    private int next = 0;
+
+
+    /**
+     * @param data   - plain response data of every APDU
+     * @param sw     - status word of every APDU
+     * @param window - number of APDUs answered before the session has to be reset
+     * @throws GeneralSecurityException if the responses can't be protected
+     */
+    public SMCardStub(final byte[] data, final int sw, final int window) throws GeneralSecurityException {
+        this.sw = sw;
+        responses = new byte[window][];
+        for (int i = 0; i < window; i++) {
+            // the command uses the odd, the response the even counter values
+            responses[i] = protect(data, sw, 2L * (i + 1));
+        }
+    }
+
+
+    /**
+     * Returns true if all responses of the window have been used.
+     */
+    public boolean exhausted() {
+        return next == responses.length;
+    }
+
+
+    /**
+     * Restarts with the first response, to be called together with setting up the keys of the transport again.
+     */
+    public void reset() {
+        next = 0;
+    }
+
+
+    @Override
+    public Object getParent() {
+        return null;
+    }
+
+
+    @Override
+    public byte[] transmit(final byte[] apdu) {
+        return responses[next++].clone();
+    }
+
+
+    @Override
+    public Response exchange(final byte[] apdu) {
+        final byte[] rpdu = responses[next++];
+        return new Response(rpdu, 0, rpdu.length, sw);
+    }
+
+
+    @Override
+    public int transmit(final ByteBuffer command, final ByteBuffer response) {
+        command.position(command.limit());
+        response.put(responses[next++]);
+        return sw;
+    }
+
+
+    @Override
+    public void transmit(final byte[] apdu, final ResponseCallback callback) {
+        callback.completed(exchange(apdu));
+    }
+
+
+    @Override
+    @Deprecated
+    public int lastSW() {
+        return sw;
+    }
+
+
+    @Override
+    public void close() {
+    }
+
+
+    /**
+     * Builds the protected response DO'87 | DO'99 | DO'8E for the given counter value.
+     */
+    private static byte[] protect(final byte[] data, final int sw, final long ssc) throws GeneralSecurityException {
+        final byte[] sscBlock = ByteBuffer.allocate(16).putLong(8, ssc).array();
+        final SecretKeySpec kEnc = new SecretKeySpec(KENC, "AES");
+
+        byte[] body = new byte[0];
+        if (data.length > 0) {
+            final Cipher ecb = Cipher.getInstance("AES/ECB/NoPadding");
+            ecb.init(Cipher.ENCRYPT_MODE, kEnc);
+            final Cipher cbc = Cipher.getInstance("AES/CBC/NoPadding");
+            cbc.init(Cipher.ENCRYPT_MODE, kEnc, new IvParameterSpec(ecb.doFinal(sscBlock)));
+
+            final byte[] padded = new byte[data.length + 16 - data.length % 16];
+            System.arraycopy(data, 0, padded, 0, data.length);
+            padded[data.length] = (byte) 0x80;
+            body = TLV.build(0x87, TLV.concat(new byte[]{0x01}, cbc.doFinal(padded)));
+        }
+        body = TLV.concat(body, TLV.build(0x99, new byte[]{(byte) (sw >> 8), (byte) sw}));
+
+        final Cipher macCipher = Cipher.getInstance("AES/CBC/NoPadding");
+        macCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KMAC, "AES"), new IvParameterSpec(new byte[16]));
+        final CMac cmac = new CMac(macCipher, 8);
+        cmac.update(sscBlock, 0, sscBlock.length);
+        cmac.update(body, 0, body.length);
+        cmac.update(new byte[]{(byte) 0x80, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0}, 0, 16 - body.length % 16);
+
+        return TLV.concat(body, TLV.build(0x8E, cmac.doFinal()));
+    }
+}
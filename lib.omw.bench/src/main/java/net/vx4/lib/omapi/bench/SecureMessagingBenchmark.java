@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.bench;
+
+import net.vx4.lib.omapi.Hex;
+import net.vx4.lib.omapi.ISOSMTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-APDU cost of wrapping a command and unwrapping its response in {@link ISOSMTransport}, measured against a card
+ * stub with precomputed responses.
+ *
+ * @version $Id$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SecureMessagingBenchmark {
+
+    private static final int WINDOW = 4096;
+
+    private final byte[] select = Hex.x("00A4020C02011C");
+    private final byte[] readBinary = Hex.x("00B00000FF");
+    private final ByteBuffer response = ByteBuffer.allocate(65536);
+
+    private SMCardStub selectCard, readCard;
+    private ISOSMTransport selectSM, readSM;
+
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        selectCard = new SMCardStub(new byte[0], 0x9000, WINDOW);
+        selectSM = new ISOSMTransport(selectCard);
+        selectSM.setupKeys(SMCardStub.KENC, SMCardStub.KMAC);
+
+        readCard = new SMCardStub(new byte[255], 0x9000, WINDOW);
+        readSM = new ISOSMTransport(readCard);
+        readSM.setupKeys(SMCardStub.KENC, SMCardStub.KMAC);
+    }
+
+
+    /**
+     * Case 3 command with encrypted data, response without data.
+     */
+    @Benchmark
+    public int selectFile() {
+        if (selectCard.exhausted()) {
+            selectCard.reset();
+            selectSM.setupKeys(SMCardStub.KENC, SMCardStub.KMAC);
+        }
+        response.clear();
+        return selectSM.transmit(ByteBuffer.wrap(select), response);
+    }
+
+
+    /**
+     * Case 2 command, response with 255 bytes of encrypted data.
+     */
+    @Benchmark
+    public int readBinary() {
+        if (readCard.exhausted()) {
+            readCard.reset();
+            readSM.setupKeys(SMCardStub.KENC, SMCardStub.KMAC);
+        }
+        response.clear();
+        return readSM.transmit(ByteBuffer.wrap(readBinary), response);
+    }
+
+
+    /**
+     * Case 2 command through the array adapter.
+     */
+    @Benchmark
+    public byte[] readBinaryArray() {
+        if (readCard.exhausted()) {
+            readCard.reset();
+            readSM.setupKeys(SMCardStub.KENC, SMCardStub.KMAC);
+        }
+        return readSM.transmit(readBinary);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.bench;
+
+import net.vx4.lib.omapi.Hex;
+import net.vx4.lib.omapi.OMAPITP;
+import net.vx4.lib.omapi.SessionExecutors;
+import net.vx4.lib.omapi.se.SecureElements;
+import net.vx4.lib.omapi.sim.SimulatedSecureElement;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.simalliance.openmobileapi.Reader;
+import org.simalliance.openmobileapi.SEService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking {@link OMAPITP} sessions, each on a secure element of its own with a latency of 200 us per APDU. One
+ * operation runs a round of commands on all sessions at once. The sessions run on
+ * <ul>
+ * <li><code>pool</code>: a fixed pool with one platform thread per processor</li>
+ * <li><code>platform</code>: a platform thread per running session, from a cached thread pool</li>
+ * <li><code>virtual</code>: a virtual thread per session, requires Java 21</li>
+ * </ul>
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionThreadsBenchmark {
+
+    private static final byte[] SECRET = Hex.x("000102030405060708090A0B0C0D0E0F");
+    private static final int COMMANDS = 4;
+
+    @Param({"pool", "platform", "virtual"})
+    private String threads;
+
+    @Param({"100", "1000"})
+    private int sessions;
+
+    private final List<Callable<Integer>> rounds = new ArrayList<Callable<Integer>>();
+    private ExecutorService executor;
+
+
+    @Setup
+    public void setup() throws IOException {
+        if ("pool".equals(threads)) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        } else if ("platform".equals(threads)) {
+            // not SessionExecutors, which starts virtual threads on Java 21
+            executor = Executors.newCachedThreadPool();
+        } else {
+            if (!SessionExecutors.isVirtual()) {
+                throw new IllegalStateException("virtual threads require Java 21");
+            }
+            executor = SessionExecutors.newSessionExecutor();
+        }
+
+        final byte[] aid = Hex.x(OMAPITP.AID_VX4ID);
+        for (int i = 0; i < sessions; i++) {
+            final SimulatedSecureElement se = new SimulatedSecureElement(aid, SECRET);
+            se.setLatency(200, TimeUnit.MICROSECONDS);
+            se.addFile(0x0101, 1, new byte[16]);
+            SecureElements.register("SESSION" + i, se);
+        }
+
+        final byte[] select = Hex.x("00A4020C020101");
+        for (final Reader reader : new SEService(null, null).getReaders()) {
+            final OMAPITP omapiTP = new OMAPITP(reader.openSession().openLogicalChannel(aid));
+            omapiTP.setCallbackHandler(new OMAPITP.CallbackHandler() {
+                @Override
+                public byte[] getSecret() {
+                    return SECRET.clone();
+                }
+            });
+            omapiTP.process(Hex.x("FF9A04020000"));
+
+            rounds.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int sw = 0;
+                    for (int i = 0; i < COMMANDS; i++) {
+                        final byte[] rpdu = omapiTP.process(select);
+                        sw |= (rpdu[rpdu.length - 2] & 0xFF) << 8 | rpdu[rpdu.length - 1] & 0xFF;
+                    }
+                    return sw;
+                }
+            });
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+        for (int i = 0; i < sessions; i++) {
+            SecureElements.unregister("SESSION" + i);
+        }
+        rounds.clear();
+    }
+
+
+    /**
+     * One round of SELECT commands through secure messaging on every session.
+     */
+    @Benchmark
+    public int round() throws InterruptedException, ExecutionException {
+        int sw = 0;
+        for (final Future<Integer> result : executor.invokeAll(rounds)) {
+            sw |= result.get();
+        }
+        return sw;
+    }
+}
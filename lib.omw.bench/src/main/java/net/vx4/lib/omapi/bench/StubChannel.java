@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.bench;
+
+import org.simalliance.openmobileapi.Channel;
+
+/**
+ * OMAPI channel answering every APDU with 9000, as the physical end of a transport provider stack. The SELECT response
+ * carries the FCI with the given channel id in tag 85.
+ *
+ * @version $Id$
+ */
+public class StubChannel extends Channel {
+
+    private static final byte[] OK = {(byte) 0x90, 0x00};
+
+    private final byte[] selectResponse;
+
+
+    /**
+     * @param channelId - channel id returned in the SELECT response
+     */
+    public StubChannel(final int channelId) {
+        selectResponse = new byte[]{0x6F, 0x03, (byte) 0x85, 0x01, (byte) channelId, (byte) 0x90, 0x00};
+    }
+
+
+    @Override
+    public byte[] transmit(final byte[] command) {
+        return OK.clone();
+    }
+
+
+    @Override
+    public byte[] getSelectResponse() {
+        return selectResponse;
+    }
+}
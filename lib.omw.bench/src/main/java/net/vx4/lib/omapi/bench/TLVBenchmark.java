@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.bench;
+
+import net.vx4.lib.omapi.Hex;
+import net.vx4.lib.omapi.TLV;
+import net.vx4.lib.omapi.TLVCursor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and building of BER-TLV objects with {@link TLV} and {@link TLVCursor}, using the EF.CardAccess of the emulated eID application.
+ *
+ * @version $Id$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TLVBenchmark {
+
+    /**
+     * EF.CardAccess, a SET of 5 SEQUENCEs of security infos.
+     */
+    private final byte[] cardAccess = Hex.x(
+            "3181C13012060A04007F0007020204020202010202010D300D060804007F00070202020201023012060A04007F00070202030202020102020129301C060904007F000702020302300C060704007F0007010202010D020129303E060804007F000702020831323012060A04007F0007020203020202010202012D301C060904007F000702020302300C060704007F0007010202010D02012D302A060804007F0007020206161E687474703A2F2F6273692E62756E642E64652F6369662F6E70612E786D6C");
+
+    /**
+     * SELECT response with FCI template and two byte tags.
+     */
+    private final byte[] fci = Hex.x("6F118201388302011C8501018A01055F2F0100");
+
+    private final byte[] securityInfos = TLV.get(cardAccess, (byte) 0x31);
+    private final byte[] fcp = TLV.get(fci, (byte) 0x6F);
+    private final byte[] data = new byte[256];
+    private final TLVCursor cursor = new TLVCursor(fci);
+
+
+    /**
+     * First tag of the data.
+     */
+    @Benchmark
+    public byte[] getFirst() {
+        return TLV.get(cardAccess, (byte) 0x31);
+    }
+
+
+    /**
+     * Last tag of the data, skipping all preceding objects.
+     */
+    @Benchmark
+    public byte[] getLast() {
+        return TLV.get(fcp, (short) 0x5F2F);
+    }
+
+
+    /**
+     * Nested lookup as done for the channel id of a SELECT response.
+     */
+    @Benchmark
+    public byte[] getNested() {
+        return TLV.get(TLV.get(fci, (byte) 0x6F), (byte) 0x85);
+    }
+
+
+    /**
+     * Nested lookup with a reused cursor, returning the value offset instead of a copy.
+     */
+    @Benchmark
+    public int cursorNested() {
+        final TLVCursor c = cursor.reset(fci, 0, fci.length);
+        return c.find(0x6F) && c.enter().find(0x85) ? c.valueOffset() : -1;
+    }
+
+
+    /**
+     * Walk over all security infos, as {@link #getM()} without copying.
+     */
+    @Benchmark
+    public int cursorAll() {
+        final TLVCursor c = cursor.reset(securityInfos, 0, securityInfos.length);
+        int sum = 0;
+        while (c.find(0x30)) {
+            sum += c.valueLength();
+        }
+        return sum;
+    }
+
+
+    @Benchmark
+    public List<byte[]> getM() {
+        return TLV.getM(securityInfos, (byte) 0x30);
+    }
+
+
+    /**
+     * Short form length.
+     */
+    @Benchmark
+    public byte[] buildShort() {
+        return TLV.build(0x99, new byte[]{(byte) 0x90, 0x00});
+    }
+
+
+    /**
+     * Long form length, as for an encrypted DO'87 of a READ BINARY response.
+     */
+    @Benchmark
+    public byte[] buildLong() {
+        return TLV.build(0x87, data);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import java.util.Arrays;
+
+/**
+ * A fixed series of command APDUs with the status words expected for each, run by
+ * {@link AbstractTransportProvider#run(APDUScript)} until the first unexpected status word. The commands are kept in
+ * one array and copied once per run, as providers may rewrite them in place, so a script can be built once and run
+ * any number of times, also by several threads.
+ * <p>
+ * A typical script reads the files needed before PACE:
+ *
+ * <pre>
+ * final APDUScript script = new APDUScript()
+ *         .add(Hex.x("00A4020C02011C"))
+ *         .add(Hex.x("00B00000000000"), 0x9000, 0x6282);
+ * </pre>
+ *
+ * @version $Id$
+ */
+public final class APDUScript {
+
+    private static final int[] OK = {0x9000};
+
+    private byte[] data = new byte[64];
+    private int dataLength = 0;
+    private int size = 0;
+    private int[] offset = new int[4];
+    private int[] length = new int[4];
+    private int[] ne = new int[4];
+    private int[][] expected = new int[4][];
+    private int reserved = 0;
+
+
+    /**
+     * Appends a command.
+     *
+     * @param apdu       - command APDU, copied
+     * @param expectedSW - status words continuing the script, 9000 if none are given
+     * @return this script
+     * @throws IllegalArgumentException if the APDU is shorter than four bytes
+     */
+    public APDUScript add(final byte[] apdu, final int... expectedSW) {
+        if (apdu.length < 4) {
+            throw new IllegalArgumentException("APDU too short: " + apdu.length);
+        }
+        if (size == offset.length) {
+            offset = Arrays.copyOf(offset, size * 2);
+            length = Arrays.copyOf(length, size * 2);
+            ne = Arrays.copyOf(ne, size * 2);
+            expected = Arrays.copyOf(expected, size * 2);
+        }
+        if (dataLength + apdu.length > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + apdu.length));
+        }
+
+        System.arraycopy(apdu, 0, data, dataLength, apdu.length);
+        offset[size] = dataLength;
+        length[size] = apdu.length;
+        ne[size] = ne(apdu);
+        expected[size] = expectedSW.length > 0 ? expectedSW.clone() : OK;
+        dataLength += apdu.length;
+        size++;
+        reserved += reserve(size - 1);
+        return this;
+    }
+
+
+    /**
+     * @return number of commands
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * @param i - index of the command
+     * @return copy of the command
+     */
+    public byte[] command(final int i) {
+        return Arrays.copyOfRange(data, offset(i), offset[i] + length[i]);
+    }
+
+
+    /**
+     * @param i  - index of the command
+     * @param sw - status word returned for the command
+     * @return whether the status word continues the script
+     */
+    public boolean isExpected(final int i, final int sw) {
+        for (final int e : expected[check(i)]) {
+            if (e == sw) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * @return copy of all commands, to be rewritten by the providers running the script
+     */
+    byte[] commands() {
+        return Arrays.copyOf(data, dataLength);
+    }
+
+
+    int offset(final int i) {
+        return offset[check(i)];
+    }
+
+
+    int length(final int i) {
+        return length[check(i)];
+    }
+
+
+    /**
+     * Returns the space reserved for the response data of a command: Ne, at least 256 bytes as a command without Le
+     * may still return data, plus a block, as secure messaging decrypts the padded data in place.
+     *
+     * @param i - index of the command
+     * @return space in bytes
+     */
+    int reserve(final int i) {
+        return Math.max(ne[check(i)], 256) + 16;
+    }
+
+
+    /**
+     * @return space reserved for the response data of all commands
+     */
+    int reserved() {
+        return reserved;
+    }
+
+
+    private int check(final int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("command " + i + " of " + size);
+        }
+        return i;
+    }
+
+
+    /**
+     * Returns Ne of a command in short or extended form.
+     */
+    private static int ne(final byte[] apdu) {
+        final int len = apdu.length;
+        if (len == 5) { // case 2 short
+            return apdu[4] == 0 ? 256 : apdu[4] & 0xFF;
+        }
+        if (len > 5 && apdu[4] != 0) { // case 3 or 4 short
+            final int lc = apdu[4] & 0xFF;
+            return len == 5 + lc + 1 ? apdu[len - 1] == 0 ? 256 : apdu[len - 1] & 0xFF : 0;
+        }
+        if (len == 7) { // case 2 extended
+            final int le = (apdu[5] & 0xFF) << 8 | apdu[6] & 0xFF;
+            return le == 0 ? 65536 : le;
+        }
+        if (len > 7) { // case 3 or 4 extended
+            final int lc = (apdu[5] & 0xFF) << 8 | apdu[6] & 0xFF;
+            if (len == 7 + lc + 2) {
+                final int le = (apdu[len - 2] & 0xFF) << 8 | apdu[len - 1] & 0xFF;
+                return le == 0 ? 65536 : le;
+            }
+        }
+        return 0;
+    }
+}
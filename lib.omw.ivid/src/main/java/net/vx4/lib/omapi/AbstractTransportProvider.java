@@ -0,0 +1,333 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+
+/**
+ * Base class for transport providers implementing the buffer based transmit contract. The array based
+ * {@link #exchange(byte[])} and {@link #transmit(byte[])} are provided as adapters, which copy the response into a new
+ * array. The latter keeps track of the last status word for {@link #lastSW()}. The asynchronous
+ * {@link #transmit(byte[], ResponseCallback)} runs the blocking transmit on the calling thread unless overridden by a
+ * provider which can do better.
+ * <p>
+ * The adapter uses response buffers from a bounded pool shared by all threads, so nested calls through a provider stack
+ * don't allocate a new maximum sized buffer for every APDU, also not when every session runs on a thread of its own.
+ * Buffers are overwritten when they are returned to the pool.
+ *
+ * @version $Id$
+ */
+public abstract class AbstractTransportProvider implements TransportProvider {
+
+    /**
+     * Maximum size of response data for an extended length APDU, not including the status word.
+     */
+    public static final int MAX_RESPONSE_LENGTH = 65536;
+
+    /**
+     * Maximum number of free response buffers kept in the pool, 4 MB in total.
+     */
+    private static final int POOL_SIZE = 64;
+
+    /**
+     * Free response buffers shared by all threads. A buffer is held while the APDU is on its way, so the pool runs
+     * empty with more sessions in flight than buffers; further buffers are then allocated and dropped on release.
+     */
+    private static final BlockingQueue<ByteBuffer> POOL = new ArrayBlockingQueue<ByteBuffer>(POOL_SIZE);
+
+    /**
+     * The last status word received through the array adapter.
+     */
+    private int lastSW = -1;
+
+
+    @Override
+    public byte[] transmit(final byte[] apdu) {
+        final ByteBuffer response = borrow();
+        try {
+            final int sw = transmit(ByteBuffer.wrap(apdu), response);
+            lastSW = sw;
+
+            if (sw == Response.NO_RESPONSE && response.position() == 0) {
+                return null;
+            }
+            final byte[] data = new byte[response.position()];
+            response.flip();
+            response.get(data);
+            return data;
+        } finally {
+            release(response);
+        }
+    }
+
+
+    /**
+     * Transmit <em>APDU</em> through this TransportProvider using caller owned buffers. The command is read from
+     * position to limit of <code>command</code>, the response data without status word is written to
+     * <code>response</code> starting at its position. Direct buffers are supported. Implementations may rewrite the
+     * class byte of the command in place.
+     *
+     * @param command  - APDU to be transmitted, position is advanced to limit
+     * @param response - buffer receiving the response data, position is advanced by the length of the data
+     * @return status word of the response or -1 if no response was received
+     */
+    public abstract int transmit(ByteBuffer command, ByteBuffer response);
+
+
+    /**
+     * Transmit <em>APDU</em> through this TransportProvider and return response data and status word together.
+     *
+     * @param apdu - APDU to be transmitted
+     * @return response from card, with status word {@link Response#NO_RESPONSE} if none was received
+     */
+    public Response exchange(final byte[] apdu) {
+        final ByteBuffer response = borrow();
+        try {
+            return response(transmit(ByteBuffer.wrap(apdu), response), response);
+        } finally {
+            release(response);
+        }
+    }
+
+
+    /**
+     * Transmit <em>APDU</em> through this TransportProvider without waiting for the response. The callback is called
+     * once the response has been received, which may already happen before this method returns. Like the blocking
+     * variants, a provider handles one APDU at a time, so the next APDU of a session is to be sent from the callback.
+     * Implementations may rewrite the class byte of the command in place.
+     *
+     * @param apdu     - APDU to be transmitted
+     * @param callback - receives the response or the failure
+     * @see ResponseFuture
+     */
+    public void transmit(final byte[] apdu, final ResponseCallback callback) {
+        final Response response;
+        try {
+            response = exchange(apdu);
+        } catch (final RuntimeException e) {
+            callback.failed(e);
+            return;
+        }
+        callback.completed(response);
+    }
+
+
+    /**
+     * Transmits the APDU asynchronously and returns the future response.
+     *
+     * @param apdu - APDU to be transmitted
+     * @return future response
+     */
+    public Future<Response> transmitAsync(final byte[] apdu) {
+        final ResponseFuture future = new ResponseFuture();
+        transmit(apdu, future);
+        return future;
+    }
+
+
+    /**
+     * Runs the commands of a script one after the other until the first status word not expected by the script. The
+     * providers of a stack pass the script down as a whole where they can do better than one transmit per command,
+     * e.g. {@link ISOSMTransport} protects all commands in one pass and {@link OMAPITP} answers emulated commands
+     * in between.
+     *
+     * @param script - the script
+     * @return the responses of the commands run
+     */
+    public ScriptResult run(final APDUScript script) {
+        final ScriptResult result = new ScriptResult(script.size(),
+                Math.min(script.reserved(), MAX_RESPONSE_LENGTH + 16));
+        run(script, script.commands(), 0, script.size(), result);
+        return result;
+    }
+
+
+    /**
+     * Runs a range of the commands of a script, appending the responses to the result.
+     *
+     * @param script   - the script
+     * @param commands - copy of the commands of the script, may be rewritten in place
+     * @param from     - index of the first command
+     * @param to       - index after the last command
+     * @param result   - receives the responses
+     * @return whether all commands returned an expected status word
+     */
+    boolean run(final APDUScript script, final byte[] commands, final int from, final int to,
+                final ScriptResult result) {
+        return runEach(this, script, commands, from, to, result);
+    }
+
+
+    /**
+     * Runs a range of the commands of a script through any provider, by the provider itself if it is an
+     * {@link AbstractTransportProvider}, otherwise with one transmit per command.
+     */
+    static boolean run(final TransportProvider tp, final APDUScript script, final byte[] commands, final int from,
+                       final int to, final ScriptResult result) {
+        if (tp instanceof AbstractTransportProvider) {
+            return ((AbstractTransportProvider) tp).run(script, commands, from, to, result);
+        }
+        return runEach(tp, script, commands, from, to, result);
+    }
+
+
+    private static boolean runEach(final TransportProvider tp, final APDUScript script, final byte[] commands,
+                                   final int from, final int to, final ScriptResult result) {
+        final ByteBuffer command = ByteBuffer.wrap(commands);
+        for (int i = from; i < to; i++) {
+            command.limit(script.offset(i) + script.length(i)).position(script.offset(i));
+            final ByteBuffer response = result.buffer(script.reserve(i));
+            final int start = response.position();
+            if (!result.add(script, start, transmit(tp, command, response))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    @Override
+    @Deprecated
+    public int lastSW() {
+        return lastSW;
+    }
+
+
+    /**
+     * Transmits an APDU through any provider like {@link #transmit(ByteBuffer, ByteBuffer)}. A provider implementing
+     * only {@link TransportProvider} is called through its array based transmit.
+     */
+    @SuppressWarnings("deprecation")
+    static int transmit(final TransportProvider tp, final ByteBuffer command, final ByteBuffer response) {
+        if (tp instanceof AbstractTransportProvider) {
+            return ((AbstractTransportProvider) tp).transmit(command, response);
+        }
+
+        final byte[] data = tp.transmit(array(command));
+        if (data != null) {
+            response.put(data);
+        }
+        return tp.lastSW();
+    }
+
+
+    /**
+     * Transmits an APDU through any provider like {@link #exchange(byte[])}.
+     */
+    @SuppressWarnings("deprecation")
+    static Response exchange(final TransportProvider tp, final byte[] apdu) {
+        if (tp instanceof AbstractTransportProvider) {
+            return ((AbstractTransportProvider) tp).exchange(apdu);
+        }
+
+        final byte[] data = tp.transmit(apdu);
+        final int sw = tp.lastSW();
+        return data != null ? new Response(data, 0, data.length, sw) : new Response(sw);
+    }
+
+
+    /**
+     * Transmits an APDU through any provider like {@link #transmit(byte[], ResponseCallback)}, on the calling thread
+     * if the provider implements only {@link TransportProvider}.
+     */
+    static void transmit(final TransportProvider tp, final byte[] apdu, final ResponseCallback callback) {
+        if (tp instanceof AbstractTransportProvider) {
+            ((AbstractTransportProvider) tp).transmit(apdu, callback);
+            return;
+        }
+
+        final Response response;
+        try {
+            response = exchange(tp, apdu);
+        } catch (final RuntimeException e) {
+            callback.failed(e);
+            return;
+        }
+        callback.completed(response);
+    }
+
+
+    /**
+     * Returns the remaining content of the given buffer as array and consumes it. If the buffer is backed by an array
+     * which exactly matches the remaining content, the backing array is returned without copying.
+     *
+     * @param buf - the buffer to read
+     * @return content between position and limit
+     */
+    protected static byte[] array(final ByteBuffer buf) {
+        final int len = buf.remaining();
+        if (buf.hasArray() && buf.arrayOffset() + buf.position() == 0 && buf.array().length == len) {
+            buf.position(buf.limit());
+            return buf.array();
+        }
+
+        final byte[] result = new byte[len];
+        buf.get(result);
+        return result;
+    }
+
+
+    /**
+     * Copies the response data written to the buffer into a new response.
+     *
+     * @param sw       - status word
+     * @param response - buffer holding the response data before its position
+     * @return the response
+     */
+    static Response response(final int sw, final ByteBuffer response) {
+        if (response.position() == 0) {
+            return new Response(sw);
+        }
+
+        final byte[] data = new byte[response.position()];
+        response.flip();
+        response.get(data);
+        return new Response(data, 0, data.length, sw);
+    }
+
+
+    /**
+     * Takes a cleared response buffer of {@link #MAX_RESPONSE_LENGTH} bytes from the pool, or allocates one if the
+     * pool is empty.
+     *
+     * @return response buffer, to be returned with {@link #release(ByteBuffer)}
+     */
+    static ByteBuffer borrow() {
+        final ByteBuffer buf = POOL.poll();
+        if (buf == null) {
+            return ByteBuffer.allocate(MAX_RESPONSE_LENGTH);
+        }
+        buf.clear();
+        return buf;
+    }
+
+
+    /**
+     * Returns a buffer taken by {@link #borrow()} to the pool, unless the pool is full. The pool is shared by all
+     * sessions, so the data written to the buffer, e.g. a decrypted response, is overwritten first: up to the position
+     * or, for a buffer flipped for reading, up to the limit.
+     *
+     * @param buf - the buffer to return
+     */
+    static void release(final ByteBuffer buf) {
+        final int written = buf.limit() < buf.capacity() ? Math.max(buf.limit(), buf.position()) : buf.position();
+        ArrayTool.fill(buf.array(), buf.arrayOffset(), written, (byte) 0);
+        POOL.offer(buf);
+    }
+}
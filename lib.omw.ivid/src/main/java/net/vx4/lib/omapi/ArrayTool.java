@@ -61,10 +61,16 @@
 
 package net.vx4.lib.omapi;
 
+import java.util.Arrays;
+
 /**
  * <p>
  * The ArrayTool provides utility functions to alter arrays.
  * </p>
+ * <p>
+ * The bulk operations are backed by {@link Bytes}, which the multi-release JAR replaces on Java 21 with an
+ * implementation based on <code>VarHandle</code> views and the vectorized {@link Arrays} methods.
+ * </p>
  *
  * @author Christian Kahlo
  * @author Rico Klimsa - added javadoc comments.
@@ -162,12 +168,153 @@ public class ArrayTool {
             return false;
         }
 
-        for (int i = 0; i < b1.length; i++) {
-            if (b1[i] != b2[i]) {
-                return false;
-            }
-        }
-        return true;
+        return Bytes.equals(b1, b2);
+    }
+
+
+    /**
+     * <p>
+     * Evaluates the equality of the provided byte arrays in constant time. Every
+     * byte is compared, so the time taken doesn't reveal where the arrays
+     * differ; use this for MACs, authentication tokens and the like. Only the
+     * length is compared upfront.
+     * </p>
+     *
+     * @param b1 - The first array.
+     * @param b2 - The second array.
+     * @return This function returns <strong>true</strong> if the arrays are
+     * equal and <strong>false</strong> otherwise.
+     */
+    public static boolean constantTimeEquals(final byte[] b1, final byte[] b2) {
+        return b1.length == b2.length && Bytes.constantTimeEquals(b1, 0, b2, 0, b1.length);
+    }
+
+
+    /**
+     * <p>
+     * Evaluates the equality of two ranges in constant time.
+     * </p>
+     *
+     * @param b1   - The first array.
+     * @param ofs1 - The offset of the range in the first array.
+     * @param b2   - The second array.
+     * @param ofs2 - The offset of the range in the second array.
+     * @param len  - The length of the ranges.
+     * @return This function returns <strong>true</strong> if the ranges are
+     * equal and <strong>false</strong> otherwise.
+     * @see {@link #constantTimeEquals(byte[], byte[])}
+     */
+    public static boolean constantTimeEquals(final byte[] b1, final int ofs1, final byte[] b2, final int ofs2,
+                                             final int len) {
+        return Bytes.constantTimeEquals(b1, ofs1, b2, ofs2, len);
+    }
+
+
+    /**
+     * <p>
+     * This function finds the first difference of two ranges. It returns as
+     * soon as it is found and must not be used for secret data.
+     * </p>
+     *
+     * @param b1   - The first array.
+     * @param ofs1 - The offset of the range in the first array.
+     * @param b2   - The second array.
+     * @param ofs2 - The offset of the range in the second array.
+     * @param len  - The length of the ranges.
+     * @return The index of the first difference relative to the offsets or -1
+     * if the ranges are equal.
+     */
+    public static int mismatch(final byte[] b1, final int ofs1, final byte[] b2, final int ofs2, final int len) {
+        return Bytes.mismatch(b1, ofs1, b2, ofs2, len);
+    }
+
+
+    /**
+     * <p>
+     * This function XORs a range of the source array into the destination
+     * array.
+     * </p>
+     *
+     * @param dst    - The array, to modify.
+     * @param dstOfs - The offset in the destination.
+     * @param src    - The source array.
+     * @param srcOfs - The offset in the source.
+     * @param len    - The number of bytes.
+     */
+    public static void xorInto(final byte[] dst, final int dstOfs, final byte[] src, final int srcOfs,
+                               final int len) {
+        Bytes.xor(dst, dstOfs, src, srcOfs, len);
+    }
+
+
+    /**
+     * <p>
+     * This function sets a range of the given array to the provided value.
+     * </p>
+     *
+     * @param b     - The array, to modify.
+     * @param ofs   - The offset, to start.
+     * @param len   - The number of bytes.
+     * @param value - The value, to set.
+     */
+    public static void fill(final byte[] b, final int ofs, final int len, final byte value) {
+        Arrays.fill(b, ofs, ofs + len, value);
+    }
+
+
+    /**
+     * <p>
+     * This function reads a big endian integer from the array.
+     * </p>
+     *
+     * @param b   - The source array.
+     * @param ofs - The offset, to start.
+     * @return The integer value.
+     */
+    public static int getInt(final byte[] b, final int ofs) {
+        return Bytes.getInt(b, ofs);
+    }
+
+
+    /**
+     * <p>
+     * This function reads a big endian long from the array.
+     * </p>
+     *
+     * @param b   - The source array.
+     * @param ofs - The offset, to start.
+     * @return The long value.
+     */
+    public static long getLong(final byte[] b, final int ofs) {
+        return Bytes.getLong(b, ofs);
+    }
+
+
+    /**
+     * <p>
+     * This function writes a big endian integer into the array.
+     * </p>
+     *
+     * @param b   - The array, to modify.
+     * @param ofs - The offset, to start.
+     * @param i   - The value, to write.
+     */
+    public static void putInt(final byte[] b, final int ofs, final int i) {
+        Bytes.putInt(b, ofs, i);
+    }
+
+
+    /**
+     * <p>
+     * This function writes a big endian long into the array.
+     * </p>
+     *
+     * @param b   - The array, to modify.
+     * @param ofs - The offset, to start.
+     * @param l   - The value, to write.
+     */
+    public static void putLong(final byte[] b, final int ofs, final long l) {
+        Bytes.putLong(b, ofs, l);
     }
 
 
@@ -202,10 +349,7 @@ public class ArrayTool {
      * @see {@link #insertLongInByteArray(byte[], int, long)}
      */
     public static void insertIntInByteArray(final byte[] b, final int ofs, final int i) {
-        b[ofs + 0] = (byte) ((i & 0xFF000000) >> 24);
-        b[ofs + 1] = (byte) ((i & 0x00FF0000) >> 16);
-        b[ofs + 2] = (byte) ((i & 0x0000FF00) >> 8);
-        b[ofs + 3] = (byte) (i & 0x000000FF);
+        Bytes.putInt(b, ofs, i);
     }
 
 
@@ -222,14 +366,7 @@ public class ArrayTool {
      * @see {@link #insertIntInByteArray(byte[], int, int)}
      */
     public static void insertLongInByteArray(final byte[] b, final int ofs, final long l) {
-        b[ofs + 0] = (byte) ((l & 0xFF00000000000000L) >> 56);
-        b[ofs + 1] = (byte) ((l & 0x00FF000000000000L) >> 48);
-        b[ofs + 2] = (byte) ((l & 0x0000FF0000000000L) >> 40);
-        b[ofs + 3] = (byte) ((l & 0x000000FF00000000L) >> 32);
-        b[ofs + 4] = (byte) ((l & 0x00000000FF000000L) >> 24);
-        b[ofs + 5] = (byte) ((l & 0x0000000000FF0000L) >> 16);
-        b[ofs + 6] = (byte) ((l & 0x000000000000FF00L) >> 8);
-        b[ofs + 7] = (byte) (l & 0x00000000000000FFL);
+        Bytes.putLong(b, ofs, l);
     }
 
 
@@ -265,10 +402,7 @@ public class ArrayTool {
      * @see {@link #createShortfromByteArray(byte[], int)
      */
     public static int createIntfromByteArray(final byte[] b, final int ofs) {
-        final int result = ((b[ofs + 0] & 0xFF) << 24) + ((b[ofs + 1] & 0xFF) << 16) + ((b[ofs + 2] & 0xFF) << 8)
-                + (b[ofs + 3] & 0xFF);
-
-        return result;
+        return Bytes.getInt(b, ofs);
     }
 
 
@@ -285,12 +419,7 @@ public class ArrayTool {
      * @see {@link #createShortfromByteArray(byte[], int)}
      */
     public static long createLongfromByteArray(final byte[] b, final int ofs) {
-        final long result = ((long) (b[ofs + 0] & 0xFF) << 56) + ((long) (b[ofs + 1] & 0xFF) << 48)
-                + ((long) (b[ofs + 2] & 0xFF) << 40) + ((long) (b[ofs + 3] & 0xFF) << 32)
-                + ((long) (b[ofs + 4] & 0xFF) << 24) + ((long) (b[ofs + 5] & 0xFF) << 16)
-                + ((long) (b[ofs + 6] & 0xFF) << 8) + (b[ofs + 7] & 0xFF);
-
-        return result;
+        return Bytes.getLong(b, ofs);
     }
 
 
@@ -306,9 +435,7 @@ public class ArrayTool {
         if (b == null) {
             return;
         }
-        for (int i = 0; i < b.length; i++) {
-            b[i] = 0;
-        }
+        Arrays.fill(b, (byte) 0);
     }
 
 
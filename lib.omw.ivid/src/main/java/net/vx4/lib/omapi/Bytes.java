@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+/**
+ * Byte array primitives used by {@link Hex}, {@link ArrayTool}, {@link CMac} and {@link ISOSMTransport}. This is the
+ * Java 7 implementation, the multi-release JAR replaces it on Java 21 with one based on
+ * <code>VarHandle</code> views and <code>HexFormat</code>. Both behave identically.
+ *
+ * @version $Id$
+ */
+final class Bytes {
+
+    private Bytes() {
+    }
+
+
+    /**
+     * Reads a big endian integer.
+     */
+    static int getInt(final byte[] b, final int ofs) {
+        return (b[ofs] & 0xFF) << 24 | (b[ofs + 1] & 0xFF) << 16 | (b[ofs + 2] & 0xFF) << 8 | b[ofs + 3] & 0xFF;
+    }
+
+
+    /**
+     * Reads a big endian long.
+     */
+    static long getLong(final byte[] b, final int ofs) {
+        return (long) getInt(b, ofs) << 32 | getInt(b, ofs + 4) & 0xFFFFFFFFL;
+    }
+
+
+    /**
+     * Writes a big endian integer.
+     */
+    static void putInt(final byte[] b, final int ofs, final int v) {
+        b[ofs] = (byte) (v >>> 24);
+        b[ofs + 1] = (byte) (v >>> 16);
+        b[ofs + 2] = (byte) (v >>> 8);
+        b[ofs + 3] = (byte) v;
+    }
+
+
+    /**
+     * Writes a big endian long.
+     */
+    static void putLong(final byte[] b, final int ofs, final long v) {
+        putInt(b, ofs, (int) (v >>> 32));
+        putInt(b, ofs + 4, (int) v);
+    }
+
+
+    /**
+     * Compares the content of two arrays of the same length.
+     */
+    static boolean equals(final byte[] b1, final byte[] b2) {
+        for (int i = 0; i < b1.length; i++) {
+            if (b1[i] != b2[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Compares two ranges without an early exit, so the time taken doesn't depend on where they differ.
+     */
+    static boolean constantTimeEquals(final byte[] b1, final int ofs1, final byte[] b2, final int ofs2,
+                                      final int len) {
+        int diff = 0;
+        for (int i = 0; i < len; i++) {
+            diff |= b1[ofs1 + i] ^ b2[ofs2 + i];
+        }
+        return diff == 0;
+    }
+
+
+    /**
+     * Finds the first difference of two ranges.
+     *
+     * @return index relative to the offsets or -1 if the ranges are equal
+     */
+    static int mismatch(final byte[] b1, final int ofs1, final byte[] b2, final int ofs2, final int len) {
+        for (int i = 0; i < len; i++) {
+            if (b1[ofs1 + i] != b2[ofs2 + i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * XORs a range of the source into the destination.
+     *
+     * @param dst    - the destination
+     * @param dstOfs - offset in the destination
+     * @param src    - the source
+     * @param srcOfs - offset in the source
+     * @param len    - number of bytes
+     */
+    static void xor(final byte[] dst, final int dstOfs, final byte[] src, final int srcOfs, final int len) {
+        for (int i = 0; i < len; i++) {
+            dst[dstOfs + i] ^= src[srcOfs + i];
+        }
+    }
+
+
+    /**
+     * Encodes a range of the array as upper case hexadecimal digits.
+     */
+    static String toHex(final byte[] b, final int ofs, final int len) {
+        final char[] buf = new char[len * 2];
+        Hex.encode(b, ofs, len, buf, 0);
+        return new String(buf);
+    }
+}
@@ -15,22 +15,44 @@
  */
 package net.vx4.lib.omapi;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 /**
  * C2Transport is an implementation of a transport provider stack element to handle extended length APDU mapping to
  * ENVELOPE (C2) / GET RESPONSE (C0) APDUs. Hence its name as the response is handled by the underlying stack and this
  * class "only" cuts long APDUs into shorter ENVELOPE ADPUS.
+ * <p>
+ * Every ENVELOPE but the last has to be answered with 9000, otherwise the chain is aborted and the status word and
+ * response data of the failing ENVELOPE are returned. With an executor set by {@link #setExecutor(ExecutorService)}
+ * the next ENVELOPE is assembled while the current one is in flight. It is still only sent after the status word of
+ * the current one has been checked. Asynchronous transmits send every ENVELOPE from the callback of the previous
+ * one.
  *
  * @author kahlo, 2018
  * @version $Id$
  */
-public class C2Transport implements TransportProvider {
+public class C2Transport extends AbstractTransportProvider {
 
     private final TransportProvider parent;
     private final short APDULen = 261; // T=0 limit
     private byte envCLA = 0x10;
     private byte envCLAlast = 0x00;
     private byte envINS = (byte) 0xC2;
-    private short C2Len = 255;
+    /**
+     * Maximum number of APDU bytes carried by one ENVELOPE.
+     */
+    private int segmentSize = 255;
+    /**
+     * Buffers the ENVELOPE APDUs and sanitized APDUs are assembled in, two for assembling the next ENVELOPE while
+     * the current one is sent.
+     */
+    private final ByteBuffer[] segments = {ByteBuffer.allocate(APDULen), ByteBuffer.allocate(APDULen)};
+    private ExecutorService executor = null;
+    private final SegmentTask task = new SegmentTask();
 
 
     public C2Transport(final TransportProvider parent) {
@@ -41,51 +63,259 @@ public class C2Transport implements TransportProvider {
     }
 
 
+    /**
+     * Sets the number of APDU bytes carried by one ENVELOPE.
+     *
+     * @param segmentSize - size from 1 to 255, 255 by default
+     */
+    public void setSegmentSize(final int segmentSize) {
+        if (segmentSize < 1 || segmentSize > 255) {
+            throw new IllegalArgumentException("segment size must be between 1 and 255");
+        }
+        this.segmentSize = segmentSize;
+    }
+
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+
+    /**
+     * Sets the executor sending ENVELOPE APDUs while the next one is assembled. Without executor, which is the
+     * default, all ENVELOPE APDUs are sent by the calling thread.
+     *
+     * @param executor - executor or null
+     */
+    public void setExecutor(final ExecutorService executor) {
+        this.executor = executor;
+    }
+
+
+    @Override
+    public int transmit(final ByteBuffer command, final ByteBuffer response) {
+        final long started = Metrics.start();
+        final int ins = Metrics.ins(command);
+        encodeChannel(command);
+
+        final int sw = isExtended(command) ? transmitExtended(command, response) : transmit(parent, command, response);
+        Metrics.record(Metrics.Layer.C2, ins, sw, started);
+        return sw;
+    }
+
+
+    /**
+     * Sends the APDU like {@link #transmit(ByteBuffer, ByteBuffer)}, ENVELOPE APDUs are sent from the callback of the
+     * previous one, so no thread waits for the chain to complete.
+     */
     @Override
-    public byte[] transmit(byte[] apdu) {
+    public void transmit(final byte[] apdu, final ResponseCallback callback) {
+        final ByteBuffer command = ByteBuffer.wrap(apdu);
+        encodeChannel(command);
+
+        if (!isExtended(command)) {
+            transmit(parent, apdu, callback);
+            return;
+        }
+
+        final int skip = command.get(5) == 0 ? 2 : 0;
+        final int length = sanitizedLength(command, skip);
+        if (length > APDULen) {
+            new Chain(command, skip, length, callback).next();
+            return;
+        }
+
+        final byte[] sanitized = new byte[length];
+        putSanitized(command, ByteBuffer.wrap(sanitized), skip, 0, length);
+        transmit(parent, sanitized, callback);
+    }
+
+
+    /**
+     * Codes the logical channel number of the parent into the class byte of the command.
+     */
+    private void encodeChannel(final ByteBuffer command) {
         final byte channelId = ((ChannelTransportProvider) this.getParent()).getChannelId();
+        final int pos = command.position();
 
+        byte cla = command.get(pos);
         if (channelId < 4) {
-            apdu[0] = (byte) (apdu[0] & 0xBC | channelId);
+            cla = (byte) (cla & 0xBC | channelId);
         } else if (channelId < 20) {
-            final boolean isSM = (apdu[0] & 0x0C) != 0;
-            apdu[0] = (byte) (apdu[0] & 0xB0 | 0x40 | channelId - 4);
+            final boolean isSM = (cla & 0x0C) != 0;
+            cla = (byte) (cla & 0xB0 | 0x40 | channelId - 4);
             if (isSM) {
-                apdu[0] |= 0x20;
+                cla |= 0x20;
             }
         }
+        command.put(pos, cla);
+    }
+
+
+    private boolean isExtended(final ByteBuffer command) {
+        final int length = command.remaining();
+        return length > APDULen || length > 5 && command.get(command.position() + 4) == 0;
+    }
+
+
+    /**
+     * Returns the length of the APDU after dropping a zero first length byte and a trailing extended Le of 0000.
+     */
+    private static int sanitizedLength(final ByteBuffer command, final int skip) {
+        final int pos = command.position();
+        int length = command.limit() - pos - skip;
+        if (length >= 2 && command.get(pos + skip + length - 2) == 0 && command.get(pos + skip + length - 1) == 0) {
+            length -= 2;
+        }
+        return length;
+    }
+
+
+    /**
+     * Sanitizes the encoding of an extended length APDU and sends it either directly or cut into ENVELOPE APDUs. The
+     * APDU is read from the command buffer in place, every APDU sent is assembled in the segment buffer.
+     *
+     * @param command  - extended length APDU between position and limit
+     * @param response - buffer receiving the response data of the last APDU sent
+     * @return status word of the last APDU sent
+     */
+    private int transmitExtended(final ByteBuffer command, final ByteBuffer response) {
+        final int pos = command.position();
+        final int limit = command.limit();
+
+        // sanitize APDU encoding: drop a zero first length byte and a trailing extended Le of 0000
+        final int skip = command.get(pos + 5) == 0 ? 2 : 0;
+        final int length = sanitizedLength(command, skip);
+
+        try {
+            if (length > APDULen) {
+                return transmitChained(command, skip, length, response);
+            }
+
+            final ByteBuffer segment = segments[0];
+            segment.clear();
+            putSanitized(command, segment, skip, 0, length);
+            segment.flip();
+            Metrics.c2Segments(1);
+            return transmit(parent, segment, response);
+        } finally {
+            command.limit(limit);
+            command.position(limit);
+        }
+    }
+
+
+    /**
+     * Sends the sanitized APDU cut into ENVELOPE APDUs, aborting at the first ENVELOPE not answered with 9000.
+     *
+     * @param command  - the command, position at the start of the APDU
+     * @param skip     - number of bytes dropped after the header
+     * @param length   - length of the sanitized APDU
+     * @param response - buffer receiving the response data of the last APDU sent
+     * @return status word of the last APDU sent
+     */
+    private int transmitChained(final ByteBuffer command, final int skip, final int length,
+                                final ByteBuffer response) {
+        final int start = response.position();
+        int sent = nextSegment(command, segments[0], skip, 0, length);
+        int current = 0;
+        int count = 0;
+
+        while (true) {
+            final boolean last = sent == length;
+            // only the response of the last or of a failing ENVELOPE is returned
+            response.position(start);
+
+            final int sw;
+            if (executor == null || last) {
+                sw = transmit(parent, segments[current], response);
+            } else {
+                task.segment = segments[current];
+                task.response = response;
+                final Future<Integer> future = executor.submit(task);
+                final int next = nextSegment(command, segments[1 - current], skip, sent, length);
+                sw = await(future);
+                sent = next;
+            }
+
+            count++;
+            if (last || sw != 0x9000) {
+                Metrics.c2Segments(count);
+                return sw;
+            }
 
-        if (apdu.length > APDULen || apdu.length > 5 && apdu[4] == 0) {
-            // sanitize APDU encoding
-            String a2 = Hex.toString(apdu);
-            if (apdu[5] == 0) {
-                a2 = a2.substring(0, 8) + a2.substring(12);
+            if (executor == null) {
+                sent = nextSegment(command, segments[current], skip, sent, length);
+            } else {
+                current = 1 - current;
             }
+        }
+    }
 
-            apdu = Hex.fromString(a2.endsWith("0000") ? a2.substring(0, a2.length() - 4) : a2);
-
-            if (apdu.length > APDULen) {
-                int sent = 0;
-                byte[] last = null;
-                while (apdu.length - sent > 0) {
-                    final int len = apdu.length - sent > C2Len ? C2Len : apdu.length - sent;
-                    if (apdu.length - (sent + len) > 0) {
-                        last = parent.transmit(
-                                Hex.fromString(Hex.toString(new byte[]{envCLA, envINS, 0, 0, (byte) len})
-                                        + Hex.toString(apdu, sent, len & 0xFF)));
-                    } else {
-                        last = parent.transmit(
-                                Hex.fromString(
-                                        Hex.toString(new byte[]{envCLAlast, envINS, 0, 0, (byte) len})
-                                                + Hex.toString(apdu, sent, len & 0xFF)));
-                    }
-                    sent += len;
-                }
-                return last;
+
+    /**
+     * Assembles the ENVELOPE APDU carrying the sanitized APDU from the given offset.
+     *
+     * @return offset of the following ENVELOPE
+     */
+    private int nextSegment(final ByteBuffer command, final ByteBuffer segment, final int skip, final int sent,
+                            final int length) {
+        final int len = length - sent > segmentSize ? segmentSize : length - sent;
+        segment.clear();
+        segment.put(length - (sent + len) > 0 ? envCLA : envCLAlast).put(envINS).put((byte) 0).put((byte) 0)
+                .put((byte) len);
+        putSanitized(command, segment, skip, sent, len);
+        segment.flip();
+        return sent + len;
+    }
+
+
+    /**
+     * Waits for the status word of an ENVELOPE sent by the executor.
+     */
+    private static int await(final Future<Integer> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
             }
+            return -1;
         }
+    }
+
 
-        return parent.transmit(apdu);
+    /**
+     * Copies a range of the sanitized APDU into the segment buffer. The sanitized APDU is the header of the command
+     * followed by its remaining bytes after skipping the given number of bytes.
+     *
+     * @param command - the command, position at the start of the APDU
+     * @param segment - the segment buffer
+     * @param skip    - number of bytes dropped after the header
+     * @param from    - offset in the sanitized APDU
+     * @param count   - number of bytes to copy
+     */
+    private static void putSanitized(final ByteBuffer command, final ByteBuffer segment, final int skip, int from,
+                                     int count) {
+        final int pos = command.position();
+        for (; count > 0 && from < 4; from++, count--) {
+            segment.put(command.get(pos + from));
+        }
+        if (count > 0) {
+            final int limit = command.limit();
+            command.limit(pos + skip + from + count);
+            command.position(pos + skip + from);
+            segment.put(command);
+            command.limit(limit);
+            command.position(pos);
+        }
     }
 
     @Override
@@ -100,8 +330,61 @@ public class C2Transport implements TransportProvider {
     }
 
 
-    @Override
-    public int lastSW() {
-        return parent.lastSW();
+    /**
+     * Sends the ENVELOPE APDUs of one asynchronous transmit, each from the callback of the previous one.
+     */
+    private final class Chain implements ResponseCallback {
+        private final ByteBuffer command;
+        private final int skip;
+        private final int length;
+        private final ResponseCallback callback;
+        private int sent = 0;
+
+
+        Chain(final ByteBuffer command, final int skip, final int length, final ResponseCallback callback) {
+            this.command = command;
+            this.skip = skip;
+            this.length = length;
+            this.callback = callback;
+        }
+
+
+        void next() {
+            final int len = length - sent > segmentSize ? segmentSize : length - sent;
+            final byte[] segment = new byte[5 + len];
+            sent = nextSegment(command, ByteBuffer.wrap(segment), skip, sent, length);
+            transmit(parent, segment, this);
+        }
+
+
+        @Override
+        public void completed(final Response response) {
+            if (sent == length || response.sw() != 0x9000) {
+                callback.completed(response);
+            } else {
+                next();
+            }
+        }
+
+
+        @Override
+        public void failed(final Throwable cause) {
+            callback.failed(cause);
+        }
+    }
+
+
+    /**
+     * Sends one ENVELOPE APDU on the executor.
+     */
+    private final class SegmentTask implements Callable<Integer> {
+        private ByteBuffer segment;
+        private ByteBuffer response;
+
+
+        @Override
+        public Integer call() {
+            return transmit(parent, segment, response);
+        }
     }
 }
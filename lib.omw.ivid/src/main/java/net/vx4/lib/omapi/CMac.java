@@ -69,6 +69,11 @@ import java.security.GeneralSecurityException;
  * Functions for creating a CMac - <em>cipher based message authentication code</em> using standard Java cipher
  * interfaces as a base. Inspired by BouncyCastles internal engine.
  * </p>
+ * <p>
+ * The cipher is only ever updated, never finished: whole runs of blocks go to the cipher in a single call, and the
+ * chaining value it carries over from the previous MAC is cancelled by XORing it into the first block of the next
+ * one. Reset therefore needs no cipher operation, and no output is allocated except by {@link #doFinal()}.
+ * </p>
  *
  * @author Christian Kahlo
  * @author Rico Klimsa - added javadoc comments.
@@ -85,6 +90,14 @@ public class CMac {
     private static final byte[] SM_PAD = new byte[]{
             (byte) 0x80, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0
     };
+    /**
+     * The block size of the cipher.
+     */
+    private static final int BLOCK = 16;
+    /**
+     * The largest number of bytes passed to the cipher in one call.
+     */
+    private static final int RUN = 32 * BLOCK;
     /**
      * The temporary buffer.
      */
@@ -103,16 +116,29 @@ public class CMac {
      * The values for additionally randomness.
      */
     private final byte[] L, Lu, Lu2;
+    /**
+     * The last block put out by the cipher, which the cipher chains into the next block.
+     */
+    private final byte[] chain;
+    /**
+     * The cipher output of runs of blocks, of which only the last block is kept.
+     */
+    private final byte[] scratch = new byte[RUN];
     /**
      * The offset of the current processed data during the creation of the cmac.
      */
     private int bufOff;
+    /**
+     * Whether no block of the current MAC has been passed to the cipher yet.
+     */
+    private boolean first = true;
 
 
     /**
      * Create a standard MAC based on a block cipher with the size of the MAC been given in bits.
      *
-     * @param cipher  - The cipher to be used as the basis of the MAC generation.
+     * @param cipher  - The cipher to be used as the basis of the MAC generation, in CBC mode without padding and
+     *                initialized with a zero IV.
      * @param macSize - The size of the MAC in bytes. Must be a multiple of 8 and <= 128.
      * @throws GeneralSecurityException If a error occurs during the creation process of the cipher.
      */
@@ -121,47 +147,46 @@ public class CMac {
             throw new IllegalArgumentException("macSize must be <= " + cipher.getBlockSize());
         }
 
-        if (cipher.getBlockSize() != 16) {
+        if (cipher.getBlockSize() != BLOCK) {
             throw new IllegalArgumentException("cipher blocksize != 16 bytes");
         }
 
         this.cipher = cipher;
         this.macSize = macSize;
 
-        buf = new byte[cipher.getBlockSize()];
+        buf = new byte[BLOCK];
         bufOff = 0;
 
-        // initializes the L, Lu, Lu2 numbers
-        final byte[] ZEROES = new byte[cipher.getBlockSize()];
-        L = new byte[ZEROES.length];
+        // initializes the L, Lu, Lu2 numbers, which also leaves the cipher at the zero IV
+        final byte[] ZEROES = new byte[BLOCK];
+        L = new byte[BLOCK];
         cipher.doFinal(ZEROES, 0, ZEROES.length, L, 0);
+        chain = new byte[BLOCK];
 
         Lu = doubleLu(L);
         Lu2 = doubleLu(Lu);
     }
 
     /**
-     * Doubles the values of every byte of the given byte array.
+     * Doubles the given block in GF(2^128), without branching on the key dependent carry.
      *
-     * @param in - The byte array, to modify.
-     * @return The byte array, which contains the doubled bytes.
+     * @param in - The block to double.
+     * @return The byte array, which contains the doubled block.
      */
-    private byte[] doubleLu(final byte[] in) {
-        final int FirstBit = (in[0] & 0xFF) >> 7;
+    private static byte[] doubleLu(final byte[] in) {
+        final int carry = (in[0] & 0xFF) >> 7;
         final byte[] ret = new byte[in.length];
         for (int i = 0; i < in.length - 1; i++) {
             ret[i] = (byte) ((in[i] << 1) + ((in[i + 1] & 0xFF) >> 7));
         }
-        ret[in.length - 1] = (byte) (in[in.length - 1] << 1);
-        if (FirstBit == 1) {
-            ret[in.length - 1] ^= CONSTANT_128;
-        }
+        ret[in.length - 1] = (byte) (in[in.length - 1] << 1 ^ CONSTANT_128 & -carry);
         return ret;
     }
 
     /**
      * Continues the multiple-part creation of the {@link CMac}, processing another data part. The first len bytes in
-     * the input buffer, starting at inOff are processed.
+     * the input buffer, starting at inOff are processed. The last block is held back until it is known whether more
+     * data follows; all complete blocks before it are encrypted directly from the input buffer.
      *
      * @param in    - The input buffer.
      * @param inOff - The offset in the input buffer, where the input starts.
@@ -169,22 +194,28 @@ public class CMac {
      * @throws GeneralSecurityException If an error occurs during the encryption operation.
      */
     public void update(final byte[] in, int inOff, int len) throws GeneralSecurityException {
-        final int blockSize = cipher.getBlockSize();
-        final int gapLen = blockSize - bufOff;
+        final int gapLen = BLOCK - bufOff;
 
         if (len > gapLen) {
             System.arraycopy(in, inOff, buf, bufOff, gapLen);
-            cipher.update(buf, 0, blockSize);
+            encryptBuffer();
 
             bufOff = 0;
             len -= gapLen;
             inOff += gapLen;
 
-            while (len > blockSize) {
-                cipher.update(in, inOff, blockSize);
-
-                len -= blockSize;
-                inOff += blockSize;
+            // all blocks but the last one, which may have to be padded
+            int blocks = (len - 1) & -BLOCK;
+            while (blocks > 0) {
+                final int run = blocks < RUN ? blocks : RUN;
+                if (cipher.update(in, inOff, run, scratch, 0) != run) {
+                    throw new GeneralSecurityException("cipher holds back input");
+                }
+                System.arraycopy(scratch, run - BLOCK, chain, 0, BLOCK);
+
+                blocks -= run;
+                len -= run;
+                inOff += run;
             }
         }
 
@@ -194,6 +225,21 @@ public class CMac {
         bufOff += len;
     }
 
+    /**
+     * Finishes the MAC into the given buffer and resets the generator.
+     *
+     * @param out    - The buffer receiving the MAC.
+     * @param outOff - The offset in the buffer.
+     * @return The size of the MAC.
+     * @throws GeneralSecurityException If a error occurs during the encryption process.
+     */
+    public int doFinal(final byte[] out, final int outOff) throws GeneralSecurityException {
+        finish();
+        System.arraycopy(chain, 0, out, outOff, macSize);
+        reset();
+        return macSize;
+    }
+
     /**
      * <p>
      * Encrypts or decrypts data in a single-part operation, or finishes a multiple-part operation.
@@ -203,24 +249,9 @@ public class CMac {
      * @throws GeneralSecurityException If a error occurs during the encryption or decryption process.
      */
     public byte[] doFinal() throws GeneralSecurityException {
-        final int blockSize = cipher.getBlockSize();
-
-        byte[] lu;
-        // Padding doesn't has to be added.
-        if (bufOff == blockSize) {
-            lu = Lu;
-        } else {
-            // Padding is added.
-            System.arraycopy(SM_PAD, 0, buf, bufOff, buf.length - bufOff);
-            lu = Lu2;
-        }
-        for (int i = 0; i < buf.length; i++) {
-            buf[i] ^= lu[i];
-        }
-
-        final byte[] mac = cipher.doFinal(buf, 0, buf.length);
-        reset();
-        return ArrayTool.sub(mac, 0, macSize);
+        final byte[] mac = new byte[macSize];
+        doFinal(mac, 0);
+        return mac;
     }
 
 
@@ -237,25 +268,69 @@ public class CMac {
 
 
     /**
-     * Resets the mac generator.
+     * Finishes the MAC and compares it with the given one in constant time, i.e. without an early exit on the first
+     * differing byte. Resets the generator.
      *
-     * @throws GeneralSecurityException If an error occurs during the call of the doFinal method.
+     * @param mac    - The buffer holding the expected MAC.
+     * @param macOff - The offset of the MAC in the buffer.
+     * @param macLen - The length of the expected MAC, which has to be the size of the MAC to be accepted.
+     * @return Whether the MAC matches.
+     * @throws GeneralSecurityException If a error occurs during the encryption process.
+     */
+    public boolean verify(final byte[] mac, final int macOff, final int macLen) throws GeneralSecurityException {
+        finish();
+        final boolean equal = Bytes.constantTimeEquals(chain, 0, mac, macOff, macLen < macSize ? macLen : macSize);
+        reset();
+        return equal & macLen == macSize;
+    }
+
+
+    /**
+     * Resets the mac generator. The state of the cipher is kept and cancelled out by the next MAC, so no cipher
+     * operation is needed.
+     *
+     * @throws GeneralSecurityException declared for existing callers, no longer thrown
      */
     public void reset() throws GeneralSecurityException {
         /*
          * clean the buffer.
          */
-        for (int i = 0; i < buf.length; i++) {
-            buf[i] = 0;
-        }
+        ArrayTool.fill(buf, 0, buf.length, (byte) 0);
 
         bufOff = 0;
+        first = true;
+    }
 
-        /*
-         * reset the underlying cipher.
-         */
-        cipher.doFinal();
+
+    /**
+     * Pads and masks the last block and encrypts it, leaving the full MAC in {@link #chain}.
+     */
+    private void finish() throws GeneralSecurityException {
+        byte[] lu;
+        // Padding doesn't has to be added.
+        if (bufOff == BLOCK) {
+            lu = Lu;
+        } else {
+            // Padding is added.
+            System.arraycopy(SM_PAD, 0, buf, bufOff, buf.length - bufOff);
+            lu = Lu2;
+        }
+        Bytes.xor(buf, 0, lu, 0, buf.length);
+        encryptBuffer();
     }
 
 
+    /**
+     * Encrypts the block in the buffer. The first block of a MAC is XORed with the chaining value of the cipher
+     * first, which gives the encryption under a zero IV.
+     */
+    private void encryptBuffer() throws GeneralSecurityException {
+        if (first) {
+            Bytes.xor(buf, 0, chain, 0, BLOCK);
+            first = false;
+        }
+        if (cipher.update(buf, 0, BLOCK, chain, 0) != BLOCK) {
+            throw new GeneralSecurityException("cipher holds back input");
+        }
+    }
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import org.simalliance.openmobileapi.Channel;
+import org.simalliance.openmobileapi.Session;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Multiplexes concurrent callers onto the logical channels of one secure element. Every caller acquires a
+ * {@link ChannelTransportProvider} for a logical channel of its own and builds its provider stack on top of it, e.g.
+ * an {@link OMAPITP} or a {@link C2Transport}. The stacks share no state, so callers don't need to synchronize.
+ * <p>
+ * Channels are opened on demand with {@link Session#openLogicalChannel(byte[])} up to the given maximum, and kept
+ * open for the next caller when a provider is closed. Callers wait for a channel when all are in use. The APDUs of
+ * all channels are exchanged one at a time over the physical link, in the order the callers asked for it.
+ *
+ * @version $Id$
+ */
+public class ChannelMultiplexer {
+
+    private final Session session;
+    private final byte[] aid;
+    private final Semaphore permits;
+    private final Executor executor;
+    private final ReentrantLock link = new ReentrantLock(true);
+    private final ConcurrentLinkedQueue<Channel> idle = new ConcurrentLinkedQueue<Channel>();
+    private final List<Channel> channels = new ArrayList<Channel>();
+    private volatile boolean closed = false;
+
+
+    /**
+     * @param session     - session to the secure element
+     * @param aid         - AID of the application selected on every channel
+     * @param maxChannels - maximum number of logical channels opened, from 1 to 19
+     */
+    public ChannelMultiplexer(final Session session, final byte[] aid, final int maxChannels) {
+        this(session, aid, maxChannels, null);
+    }
+
+
+    /**
+     * @param session     - session to the secure element
+     * @param aid         - AID of the application selected on every channel
+     * @param maxChannels - maximum number of logical channels opened, from 1 to 19
+     * @param executor    - executor running asynchronous transmits of all channels or null
+     * @see ChannelTransportProvider#newExecutor(int, int)
+     */
+    public ChannelMultiplexer(final Session session, final byte[] aid, final int maxChannels,
+                              final Executor executor) {
+        if (session == null) {
+            throw new NullPointerException("session required");
+        }
+        if (maxChannels < 1 || maxChannels > 19) {
+            throw new IllegalArgumentException("maximum number of channels must be between 1 and 19");
+        }
+        this.session = session;
+        this.aid = aid != null ? aid.clone() : null;
+        permits = new Semaphore(maxChannels, true);
+        this.executor = executor;
+    }
+
+
+    /**
+     * Acquires a logical channel, waiting until one is available.
+     *
+     * @return transport provider of the channel, to be closed when done
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if the multiplexer is closed or the channel can't be opened
+     */
+    public ChannelTransportProvider acquire() throws InterruptedException {
+        permits.acquire();
+        return open();
+    }
+
+
+    /**
+     * Acquires a logical channel, waiting at most the given time until one is available.
+     *
+     * @param timeout - maximum time to wait
+     * @param unit    - unit of the timeout
+     * @return transport provider of the channel, to be closed when done, or null if none became available
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if the multiplexer is closed or the channel can't be opened
+     */
+    public ChannelTransportProvider tryAcquire(final long timeout, final TimeUnit unit) throws InterruptedException {
+        if (!permits.tryAcquire(timeout, unit)) {
+            return null;
+        }
+        return open();
+    }
+
+
+    /**
+     * Closes all logical channels. Providers still in use fail on their next APDU.
+     */
+    public void close() {
+        closed = true;
+        link.lock();
+        try {
+            synchronized (channels) {
+                for (final Channel channel : channels) {
+                    channel.close();
+                }
+                channels.clear();
+            }
+            idle.clear();
+        } finally {
+            link.unlock();
+        }
+    }
+
+
+    /**
+     * Takes an idle channel or opens a new one, the permit for it has been acquired.
+     */
+    private ChannelTransportProvider open() {
+        try {
+            if (closed) {
+                throw new IllegalStateException("multiplexer closed");
+            }
+
+            Channel channel = idle.poll();
+            if (channel != null && channel.isClosed()) {
+                synchronized (channels) {
+                    channels.remove(channel);
+                }
+                channel = null;
+            }
+            if (channel == null) {
+                link.lock();
+                try {
+                    channel = session.openLogicalChannel(aid);
+                } finally {
+                    link.unlock();
+                }
+                if (channel == null) {
+                    throw new IllegalStateException("no logical channel available");
+                }
+                synchronized (channels) {
+                    channels.add(channel);
+                }
+            }
+            return new MultiplexedChannel(channel);
+        } catch (final RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Transport provider of one acquired channel, exchanging its APDUs under the lock of the physical link.
+     */
+    private final class MultiplexedChannel extends ChannelTransportProvider {
+        private final Channel channel;
+        private boolean released = false;
+
+
+        MultiplexedChannel(final Channel channel) {
+            super(channel, executor);
+            this.channel = channel;
+        }
+
+
+        @Override
+        public int transmit(final ByteBuffer command, final ByteBuffer response) {
+            if (released) {
+                throw new IllegalStateException("channel released");
+            }
+            link.lock();
+            try {
+                return super.transmit(command, response);
+            } finally {
+                link.unlock();
+            }
+        }
+
+
+        /**
+         * Returns the channel to the multiplexer.
+         */
+        @Override
+        public void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (!closed && !channel.isClosed()) {
+                idle.offer(channel);
+            }
+            permits.release();
+        }
+    }
+}
@@ -17,35 +17,96 @@ package net.vx4.lib.omapi;
 
 import org.simalliance.openmobileapi.Channel;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * The ChannelTransportProvider deals with automatically negotiated channels on the underlying terminal interface.
  * If a channel has been opened successfully it is the first contact to the selected app, so the SELECT APDU
  * response is fetch belowed and used to adopt to protocol and implementation specifics of the secure element.
+ * <p>
+ * OMAPI only offers a blocking transmit. With an executor, asynchronous transmits are run on it, so a small pool
+ * created by {@link #newExecutor(int, int)} can serve the channels of many sessions.
+ * <p>
+ * Responses chained by the secure element are completed here, below secure messaging, so the layers above always see
+ * the complete response: after 61xx the remaining data is fetched by GET RESPONSE and appended to the response buffer,
+ * after 6Cxx the command is sent once more with the Le given by the secure element.
  *
  * @author kahlo, 2018
  * @version $Id$
  */
-public class ChannelTransportProvider implements TransportProvider {
+public class ChannelTransportProvider extends AbstractTransportProvider {
+
+    private static final String TAG = "ChannelTransportProvider";
 
     private final byte channelId;
     private Channel channel = null;
-    private int lastSW = -1;
+    private final Executor executor;
+    /**
+     * Maximum size of response data gathered by GET RESPONSE, 0 to return 61xx and 6Cxx to the caller.
+     */
+    private int maxResponseLength = MAX_RESPONSE_LENGTH;
 
     /**
      *
      * @param channel
      */
     public ChannelTransportProvider(final Channel channel) {
+        this(channel, null);
+    }
+
+
+    /**
+     * @param channel  - the opened channel
+     * @param executor - executor running asynchronous transmits or null to run them on the calling thread
+     */
+    public ChannelTransportProvider(final Channel channel, final Executor executor) {
         this.channel = channel;
-        final byte[] selRes = this.channel.getSelectResponse();
-        channelId = TLV.get(TLV.get(selRes, (byte) 0x6F), (byte) 0x85)[0];
+        this.executor = executor;
+        final TLVCursor fci = new TLVCursor(this.channel.getSelectResponse());
+        if (!fci.find(0x6F) || !fci.enter().find(0x85) || fci.valueLength() == 0) {
+            throw new IllegalArgumentException("no channel number in SELECT response");
+        }
+        channelId = fci.array()[fci.valueOffset()];
+    }
+
+
+    /**
+     * Creates a bounded executor for asynchronous transmits with daemon threads. If all threads are busy and the
+     * queue is full, the APDU is sent by the submitting thread, which slows down callers instead of failing a
+     * session in the middle of a secure messaging exchange.
+     *
+     * @param threads   - number of threads
+     * @param queueSize - number of APDUs waiting for a thread
+     * @return the executor, to be shut down by the caller
+     */
+    public static ExecutorService newExecutor(final int threads, final int queueSize) {
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "omapi-transmit-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
 
     @Override
     public void close() {
         // TODO: checking closing behaviour
-        System.out.println("ChannelTransportProvider.close(): WARNING, not closed");
+        Log.log(Log.Level.WARN, TAG, "close(): channel not closed");
         // channel.close();
     }
 
@@ -56,34 +117,143 @@ public class ChannelTransportProvider implements TransportProvider {
     }
 
 
-    @Override
-    public int lastSW() {
-        return lastSW;
+    public byte getChannelId() {
+        return channelId;
     }
 
 
-    public byte getChannelId() {
-        return channelId;
+    /**
+     * Sets the maximum size of response data gathered by GET RESPONSE. If the next part would exceed it or the
+     * response buffer, the data received so far is returned with the status word 61xx, so the caller can continue with
+     * GET RESPONSE itself.
+     *
+     * @param maxResponseLength - size from 0 to {@link #MAX_RESPONSE_LENGTH}, 0 to disable the handling of 61xx and
+     *                          6Cxx
+     */
+    public void setMaxResponseLength(final int maxResponseLength) {
+        if (maxResponseLength < 0 || maxResponseLength > MAX_RESPONSE_LENGTH) {
+            throw new IllegalArgumentException("maximum response length must be between 0 and " + MAX_RESPONSE_LENGTH);
+        }
+        this.maxResponseLength = maxResponseLength;
+    }
+
+
+    public int getMaxResponseLength() {
+        return maxResponseLength;
     }
 
 
     @Override
-    public byte[] transmit(final byte[] apdu) {
-        lastSW = -1;
-
-        System.out.println("ChannelTrannsport: channel = " + channel + " open? " + (channel != null ? !channel.isClosed() : "<null>"));
-        if (channel != null && !channel.isClosed()) {
-            System.out.println("<[SE] apdu = [" + Hex.toString(apdu) + "]");
-            byte[] rpdu = channel.transmit(apdu);
-            System.out.println(">[SE] rpdu = [" + Hex.toString(rpdu) + "]");
-
-            if (rpdu != null && rpdu.length >= 2) {
-                lastSW = ((rpdu[rpdu.length - 2] & 0xFF) << 8) + (rpdu[rpdu.length - 1] & 0xFF);
-                rpdu = ArrayTool.sub(rpdu, 0, rpdu.length - 2);
+    public void transmit(final byte[] apdu, final ResponseCallback callback) {
+        if (executor == null) {
+            super.transmit(apdu, callback);
+            return;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ChannelTransportProvider.super.transmit(apdu, callback);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            callback.failed(e);
+        }
+    }
+
+
+    @Override
+    public int transmit(final ByteBuffer command, final ByteBuffer response) {
+        final long started = Metrics.start();
+        final int ins = Metrics.ins(command);
+        final int sw = transmitChannel(command, response);
+        Metrics.record(Metrics.Layer.CHANNEL, ins, sw, started);
+        return sw;
+    }
+
+
+    private int transmitChannel(final ByteBuffer command, final ByteBuffer response) {
+        final boolean trace = Log.isEnabled(Log.Level.TRACE);
+        if (trace) {
+            Log.log(Log.Level.TRACE, TAG, "channel = " + channel + " open? " + (channel != null ? !channel.isClosed() : "<null>"));
+        }
+        if (channel == null || channel.isClosed()) {
+            return -1;
+        }
+
+        // OMAPI only accepts and returns arrays, so this is the one place where the buffers are copied
+        byte[] apdu = array(command);
+        final int start = response.position();
+        byte[] rpdu = send(apdu, trace);
+        int sw = put(rpdu, response);
+        if (maxResponseLength == 0) {
+            return sw;
+        }
+
+        // wrong Le, sent once more with the exact one
+        if ((sw & 0xFF00) == 0x6C00) {
+            final int le = le(apdu);
+            if (le >= 0) {
+                apdu = apdu.clone();
+                apdu[le] = (byte) sw;
+                response.position(start);
+                rpdu = send(apdu, trace);
+                sw = put(rpdu, response);
+            }
+        }
+
+        // more data available, appended in place
+        while ((sw & 0xFF00) == 0x6100) {
+            final int ne = (sw & 0xFF) == 0 ? 256 : sw & 0xFF;
+            if (response.position() - start + ne > maxResponseLength || response.remaining() < ne) {
+                break;
             }
-            return rpdu;
-        } else {
-            return null;
+            // GET RESPONSE on the logical channel of the command, always without secure messaging
+            final byte cla = (apdu[0] & 0x40) != 0 ? (byte) (apdu[0] & 0x0F | 0x40) : (byte) (apdu[0] & 0x03);
+            rpdu = send(new byte[]{cla, (byte) 0xC0, 0x00, 0x00, (byte) sw}, trace);
+            sw = put(rpdu, response);
+        }
+        return sw;
+    }
+
+
+    private byte[] send(final byte[] apdu, final boolean trace) {
+        if (trace) {
+            Log.log(Log.Level.TRACE, TAG, "<[SE] apdu = [" + Hex.toString(apdu) + "]");
+        }
+        final byte[] rpdu = channel.transmit(apdu);
+        if (trace) {
+            Log.log(Log.Level.TRACE, TAG, ">[SE] rpdu = [" + (rpdu != null ? Hex.toString(rpdu) : null) + "]");
+        }
+        return rpdu;
+    }
+
+
+    /**
+     * Appends the response data to the buffer.
+     *
+     * @return the status word or -1 if there is none
+     */
+    private static int put(final byte[] rpdu, final ByteBuffer response) {
+        if (rpdu != null && rpdu.length >= 2) {
+            response.put(rpdu, 0, rpdu.length - 2);
+            return ((rpdu[rpdu.length - 2] & 0xFF) << 8) + (rpdu[rpdu.length - 1] & 0xFF);
+        } else if (rpdu != null) {
+            response.put(rpdu);
+        }
+        return -1;
+    }
+
+
+    /**
+     * @return index of the short Le of a case 2 or case 4 command or -1 if there is none
+     */
+    private static int le(final byte[] apdu) {
+        if (apdu.length == 5) {
+            return 4;
         }
+        final int lc = apdu.length > 5 ? apdu[4] & 0xFF : 0;
+        return lc != 0 && apdu.length == 5 + lc + 1 ? apdu.length - 1 : -1;
     }
 }
@@ -132,8 +132,16 @@
  */
 package net.vx4.lib.omapi;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 /**
  * Static functions for converting to and from hexadecimal strings.
+ * <p>
+ * Digits are decoded through a lookup table accepting upper and lower case. Besides strings, bytes can be encoded
+ * into a <code>char[]</code>, a {@link StringBuilder} or a {@link ByteBuffer} and decoded from a range of any
+ * {@link CharSequence}, without intermediate copies. Decoding is lenient by default, taking an odd number of digits
+ * as a leading half byte; strict decoding rejects that.
  *
  * @author Christian Kahlo
  * @author Rico Klimsa - added javadoc comments.
@@ -148,6 +156,29 @@ public class Hex {
             'E', 'F'
     };
 
+    /**
+     * The lower case hexadecimal digits.
+     */
+    private static final char[] lowerDigits = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd',
+            'e', 'f'
+    };
+
+    /**
+     * The value of every Latin-1 character as hexadecimal digit or -1.
+     */
+    private static final byte[] digitValues = new byte[256];
+
+    static {
+        for (int i = 0; i < digitValues.length; i++) {
+            digitValues[i] = -1;
+        }
+        for (int i = 0; i < 16; i++) {
+            digitValues[hexDigits[i]] = (byte) i;
+            digitValues[lowerDigits[i]] = (byte) i;
+        }
+    }
+
 
     /**
      * Utility functions. Constructor is not used.
@@ -173,16 +204,149 @@ public class Hex {
      * @return The string which contains the hexadecimal digits. The length of the returned string is 2 * length.
      */
     public static String toString(final byte[] ba, final int offset, final int length) {
-        final char[] buf = new char[length * 2];
-        int j = 0;
-        int k;
+        return Bytes.toHex(ba, offset, length);
+    }
+
+
+    /**
+     * Converts the remaining bytes of the given buffer in an hexadecimal string, without changing its position.
+     *
+     * @param buf
+     *            - The buffer, to convert.
+     * @return The created String.
+     */
+    public static String toString(final ByteBuffer buf) {
+        if (buf.hasArray()) {
+            return toString(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        }
+        final char[] out = new char[buf.remaining() * 2];
+        for (int i = buf.position(), j = 0; i < buf.limit(); i++) {
+            final int k = buf.get(i);
+            out[j++] = hexDigits[k >>> 4 & 0x0F];
+            out[j++] = hexDigits[k & 0x0F];
+        }
+        return new String(out);
+    }
 
+
+    /**
+     * Converts a range of the given array in a lower case hexadecimal string.
+     *
+     * @param ba
+     *            - The byte array, to convert.
+     * @param offset
+     *            - The starting offset.
+     * @param length
+     *            - The number of bytes, to convert.
+     * @return The created String. The length of the returned string is 2 * length.
+     */
+    public static String toLowerString(final byte[] ba, final int offset, final int length) {
+        final char[] out = new char[length * 2];
+        encode(ba, offset, length, out, 0, false);
+        return new String(out);
+    }
+
+
+    /**
+     * Encodes a range of the given array as upper case hexadecimal digits into a char array.
+     *
+     * @param ba
+     *            - The byte array, to convert.
+     * @param offset
+     *            - The starting offset.
+     * @param length
+     *            - The number of bytes, to convert.
+     * @param dst
+     *            - The char array receiving 2 * length digits.
+     * @param dstOffset
+     *            - The offset in the char array.
+     * @return The offset in the char array behind the last digit.
+     */
+    public static int encode(final byte[] ba, final int offset, final int length, final char[] dst,
+                             final int dstOffset) {
+        return encode(ba, offset, length, dst, dstOffset, true);
+    }
+
+
+    /**
+     * Encodes a range of the given array as hexadecimal digits into a char array.
+     *
+     * @param ba
+     *            - The byte array, to convert.
+     * @param offset
+     *            - The starting offset.
+     * @param length
+     *            - The number of bytes, to convert.
+     * @param dst
+     *            - The char array receiving 2 * length digits.
+     * @param dstOffset
+     *            - The offset in the char array.
+     * @param upperCase
+     *            - Whether to use upper or lower case digits.
+     * @return The offset in the char array behind the last digit.
+     */
+    public static int encode(final byte[] ba, final int offset, final int length, final char[] dst,
+                             final int dstOffset, final boolean upperCase) {
+        final char[] digits = upperCase ? hexDigits : lowerDigits;
+        int j = dstOffset;
         for (int i = offset; i < offset + length; i++) {
-            k = ba[i];
-            buf[j++] = hexDigits[k >>> 4 & 0x0F];
-            buf[j++] = hexDigits[k & 0x0F];
+            final int k = ba[i];
+            dst[j++] = digits[k >>> 4 & 0x0F];
+            dst[j++] = digits[k & 0x0F];
+        }
+        return j;
+    }
+
+
+    /**
+     * Appends a range of the given array as upper case hexadecimal digits, e.g. to a log message.
+     *
+     * @param sb
+     *            - The {@link StringBuilder}, to append to.
+     * @param ba
+     *            - The byte array, to convert.
+     * @param offset
+     *            - The starting offset.
+     * @param length
+     *            - The number of bytes, to convert.
+     * @return The given {@link StringBuilder}.
+     */
+    public static StringBuilder append(final StringBuilder sb, final byte[] ba, final int offset, final int length) {
+        sb.ensureCapacity(sb.length() + length * 2);
+        for (int i = offset; i < offset + length; i++) {
+            final int k = ba[i];
+            sb.append(hexDigits[k >>> 4 & 0x0F]).append(hexDigits[k & 0x0F]);
+        }
+        return sb;
+    }
+
+
+    /**
+     * Encodes a range of the given array as hexadecimal digits in ASCII into a buffer, starting at its position.
+     *
+     * @param ba
+     *            - The byte array, to convert.
+     * @param offset
+     *            - The starting offset.
+     * @param length
+     *            - The number of bytes, to convert.
+     * @param dst
+     *            - The buffer receiving 2 * length bytes.
+     * @param upperCase
+     *            - Whether to use upper or lower case digits.
+     * @throws BufferOverflowException
+     *             If the buffer has not enough space.
+     */
+    public static void encode(final byte[] ba, final int offset, final int length, final ByteBuffer dst,
+                              final boolean upperCase) {
+        final char[] digits = upperCase ? hexDigits : lowerDigits;
+        if (dst.remaining() < length * 2) {
+            throw new BufferOverflowException();
+        }
+        for (int i = offset; i < offset + length; i++) {
+            final int k = ba[i];
+            dst.put((byte) digits[k >>> 4 & 0x0F]).put((byte) digits[k & 0x0F]);
         }
-        return new String(buf);
     }
 
 
@@ -210,18 +374,78 @@ public class Hex {
      *         string.
      */
     public static byte[] fromString(final String hex) {
-        final int len = hex.length();
-        final byte[] buf = new byte[(len + 1) / 2];
+        return decode(hex, 0, hex.length(), false);
+    }
+
+
+    /**
+     * Decodes a range of hexadecimal digits.
+     *
+     * @param hex
+     *            - The characters, e.g. a {@link String} or a {@link StringBuilder}.
+     * @param start
+     *            - The index of the first digit.
+     * @param end
+     *            - The index behind the last digit.
+     * @param strict
+     *            - Whether to reject an odd number of digits instead of taking the first one as a half byte.
+     * @return The decoded bytes.
+     * @throws IllegalArgumentException
+     *             If a character isn't a hex digit or the number of digits is odd in strict mode.
+     */
+    public static byte[] decode(final CharSequence hex, final int start, final int end, final boolean strict) {
+        final byte[] buf = new byte[(end - start + 1) / 2];
+        decode(hex, start, end, buf, 0, strict);
+        return buf;
+    }
+
+
+    /**
+     * Decodes a range of hexadecimal digits into the given array.
+     *
+     * @param hex
+     *            - The characters, e.g. a {@link String} or a {@link StringBuilder}.
+     * @param start
+     *            - The index of the first digit.
+     * @param end
+     *            - The index behind the last digit.
+     * @param dst
+     *            - The array receiving the bytes.
+     * @param dstOffset
+     *            - The offset in the array.
+     * @param strict
+     *            - Whether to reject an odd number of digits instead of taking the first one as a half byte.
+     * @return The number of bytes decoded.
+     * @throws IllegalArgumentException
+     *             If a character isn't a hex digit or the number of digits is odd in strict mode.
+     */
+    public static int decode(final CharSequence hex, final int start, final int end, final byte[] dst,
+                             final int dstOffset, final boolean strict) {
+        final int len = end - start;
+        if (strict && len % 2 == 1) {
+            throw new IllegalArgumentException("odd number of hex digits: " + len);
+        }
 
-        int i = 0, j = 0;
+        int i = start, j = dstOffset;
         if (len % 2 == 1) {
-            buf[j++] = (byte) fromDigit(hex.charAt(i++));
+            dst[j++] = (byte) fromDigit(hex.charAt(i++));
         }
 
-        while (i < len) {
-            buf[j++] = (byte) (fromDigit(hex.charAt(i++)) << 4 | fromDigit(hex.charAt(i++)));
+        final int pairs = len / 2;
+        for (int k = 0; k < pairs; k++) {
+            final char c1 = hex.charAt(i + 2 * k);
+            final char c2 = hex.charAt(i + 2 * k + 1);
+            final int hi = digitValues[c1 & 0xFF];
+            final int lo = digitValues[c2 & 0xFF];
+            // negative for an invalid digit or a character beyond Latin-1
+            if ((hi | lo | -((c1 | c2) >>> 8)) < 0) {
+                // throws for the invalid one of both
+                fromDigit(c1);
+                fromDigit(c2);
+            }
+            dst[j + k] = (byte) (hi << 4 | lo);
         }
-        return buf;
+        return j + pairs - dstOffset;
     }
 
 
@@ -235,14 +459,9 @@ public class Hex {
      *             If the given hex digit is invalid.
      */
     public static int fromDigit(final char ch) {
-        if (ch >= '0' && ch <= '9') {
-            return ch - '0';
-        }
-        if (ch >= 'A' && ch <= 'F') {
-            return ch - 'A' + 10;
-        }
-        if (ch >= 'a' && ch <= 'f') {
-            return ch - 'a' + 10;
+        final int digit = ch < 256 ? digitValues[ch] : -1;
+        if (digit >= 0) {
+            return digit;
         }
 
         throw new IllegalArgumentException("invalid hex digit '" + ch + "'");
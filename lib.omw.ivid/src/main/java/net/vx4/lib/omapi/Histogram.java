@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values with buckets on a log-linear scale, like an HDR histogram with 16 sub-buckets per
+ * power of two. Values below 32 are counted exactly, larger ones with a relative error below 6.25%. The buckets cover
+ * the whole range of long values in 960 counters.
+ * <p>
+ * Recording is lock and allocation free and may be called concurrently. Reading while recording sees a consistent
+ * value for every single counter, but not necessarily across counters.
+ *
+ * @version $Id$
+ */
+public final class Histogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+
+    /**
+     * Counts a value, negative values are counted as 0.
+     *
+     * @param value - the value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // retry
+        }
+    }
+
+
+    /**
+     * @return number of values recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+
+    /**
+     * @return sum of the values recorded
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+
+    /**
+     * @return largest value recorded, 0 if none
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+
+    /**
+     * @return mean of the values recorded, 0 if none
+     */
+    public double getMean() {
+        final long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+
+    /**
+     * Returns the value below or equal to which the given percentage of the recorded values fall. The result is the
+     * upper bound of the bucket containing the value, but never more than the maximum.
+     *
+     * @param percentile - percentile from 0 to 100
+     * @return the value, 0 if no value has been recorded
+     */
+    public long getValueAtPercentile(final double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        final long target = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+
+    /**
+     * Sets all counters to 0.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+
+    static int index(final long value) {
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        if (msb < SUB_BITS) {
+            return (int) value;
+        }
+        final int shift = msb - SUB_BITS;
+        return (shift + 1) * SUB + (int) ((value >>> shift) - SUB);
+    }
+
+
+    static long highestValue(final int index) {
+        if (index < SUB) {
+            return index;
+        }
+        final int shift = index / SUB - 1;
+        final long mantissa = index % SUB + SUB;
+        final long upper = (mantissa + 1 << shift) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+}
@@ -64,6 +64,8 @@ import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 
 
 /**
@@ -75,7 +77,7 @@ import java.nio.ByteBuffer;
  * @author Christian Kahlo
  * @author Rico Klimsa - added javadoc comments.
  */
-public class ISOSMTransport implements TransportProvider {
+public class ISOSMTransport extends AbstractTransportProvider {
 
     /**
      * The algorithm to encrypt the initialization vector.
@@ -92,6 +94,10 @@ public class ISOSMTransport implements TransportProvider {
     private static final byte[] SM_PAD = new byte[]{
             (byte) 0x80, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0
     };
+    /**
+     * Tag of log messages.
+     */
+    private static final String TAG = "ISOSMTransport";
     /**
      * The currently used TransportProvider.
      */
@@ -101,9 +107,19 @@ public class ISOSMTransport implements TransportProvider {
      */
     private byte[] kEnc, kMac;
     /**
-     * The ciphers for encoding, decoding and the initialization vector.
+     * The ciphers for encoding, decoding and the initialization vector. They are initialized once per session, the
+     * line ciphers with a zero IV they return to after every <code>doFinal</code>. The IV of an APDU is applied to
+     * the first block by hand.
      */
     private Cipher ivCipher, encCipher, decCipher;
+    /**
+     * The initialization vector derived from the current send sequence counter.
+     */
+    private final byte[] iv = new byte[16];
+    /**
+     * The first plaintext block of a command, combined with the initialization vector.
+     */
+    private final byte[] block = new byte[16];
     /**
      * The used block-cipher based message authentication code.
      */
@@ -117,9 +133,30 @@ public class ISOSMTransport implements TransportProvider {
      */
     private long ssc = 0;
     /**
-     * The last status word.
+     * Whether the keys were overwritten by {@link #destroyKeys()}, which ends the session for good.
+     */
+    private volatile boolean destroyed = false;
+    /**
+     * The protected command APDU, reused and grown on demand.
      */
-    private int lastSW = -1;
+    private byte[] smAPDU = new byte[0];
+    /**
+     * View on the protected command APDU handed to the parent.
+     */
+    private ByteBuffer smAPDUBuf = ByteBuffer.wrap(smAPDU);
+    /**
+     * The protected commands of a script, one after the other, and their offsets.
+     */
+    private byte[] batch = new byte[0];
+    private int[] batchOffset = new int[0];
+    /**
+     * Decrypted response data which doesn't fit into the caller's buffer before removing the padding.
+     */
+    private byte[] plain = new byte[0];
+    /**
+     * Cursor over the data objects of the protected response, reused for every response.
+     */
+    private final TLVCursor cursor = new TLVCursor(plain);
 
 
     /**
@@ -151,30 +188,207 @@ public class ISOSMTransport implements TransportProvider {
     // }
 
     @Override
-    public int lastSW() {
-        if (lastSW == -1) {
-            return parent.lastSW();
+    public int transmit(final ByteBuffer command, final ByteBuffer response) {
+        if (destroyed) {
+            return -1;
+        }
+        if (ivCipher == null || encCipher == null || decCipher == null) {
+            return transmit(parent, command, response);
         }
-        return lastSW;
+
+        final long started = Metrics.start();
+        final int ins = Metrics.ins(command);
+        final int sw = transmitSM(command, response);
+        Metrics.record(Metrics.Layer.SM, ins, sw, started);
+        return sw;
     }
 
+
+    private int transmitSM(final ByteBuffer command, final ByteBuffer response) {
+        if (Log.isEnabled(Log.Level.TRACE)) {
+            Log.log(Log.Level.TRACE, TAG, "<" + Hex.toString(command));
+        }
+
+        final int smLength = encodeSM(command);
+        if (smLength < 0) {
+            return -1;
+        }
+        smAPDUBuf.clear();
+        smAPDUBuf.limit(smLength);
+
+        final ByteBuffer rpdu = borrow();
+        try {
+            final int sw = transmit(parent, smAPDUBuf, rpdu);
+            rpdu.flip();
+
+            final ByteBuffer data = response.duplicate();
+            final int result = decodeSM(rpdu, sw, response);
+
+            data.limit(response.position());
+            if (Log.isEnabled(Log.Level.TRACE)) {
+                Log.log(Log.Level.TRACE, TAG, ">" + Hex.toString(data));
+            }
+            return result;
+        } finally {
+            release(rpdu);
+        }
+    }
+
+    /**
+     * Protects all commands of the range in one pass, then sends them back to back and unprotects the responses into
+     * the result. The send sequence counter of every command is known in advance, as each command and each response
+     * takes one step, so after an unexpected status word the counter continues behind its response.
+     */
     @Override
-    public byte[] transmit(byte[] apdu) {
-        System.out.println("<" + Hex.toString(apdu)); // Kept for debugging issues
+    boolean run(final APDUScript script, final byte[] commands, final int from, final int to,
+                final ScriptResult result) {
+        if (!destroyed && (ivCipher == null || encCipher == null || decCipher == null)) {
+            return run(parent, script, commands, from, to, result);
+        }
+
+        final long base = ssc;
+        final int count = destroyed ? 0 : to - from;
+        if (batchOffset.length < count + 1) {
+            batchOffset = new int[count + 1];
+        }
 
-        if (ivCipher != null && encCipher != null && decCipher != null) {
-            apdu = encodeSM(apdu);
+        // protect
+        final ByteBuffer command = ByteBuffer.wrap(commands);
+        int wrapped = 0;
+        int total = 0;
+        for (; wrapped < count; wrapped++) {
+            final int i = from + wrapped;
+            command.limit(script.offset(i) + script.length(i)).position(script.offset(i));
+            final int smLength = encodeSM(command);
+            if (smLength < 0) {
+                break;
+            }
+            if (batch.length < total + smLength) {
+                batch = Arrays.copyOf(batch, Math.max(batch.length * 2, total + smLength));
+            }
+            System.arraycopy(smAPDU, 0, batch, total, smLength);
+            batchOffset[wrapped] = total;
+            total += smLength;
+            batchOffset[wrapped + 1] = total;
+            ssc++; // taken by the response
         }
 
-        apdu = parent.transmit(apdu);
+        // send and unprotect
+        final ByteBuffer protectedCommand = ByteBuffer.wrap(batch);
+        final ByteBuffer rpdu = borrow();
+        try {
+            for (int j = 0; j < wrapped; j++) {
+                final int i = from + j;
+                final long started = Metrics.start();
+                protectedCommand.limit(batchOffset[j + 1]).position(batchOffset[j]);
+                ssc = base + 2 * j + 1;
+                rpdu.clear();
+                final int parentSW = transmit(parent, protectedCommand, rpdu);
+                rpdu.flip();
+
+                final ByteBuffer response = result.buffer(script.reserve(i));
+                final int start = response.position();
+                final int sw = decodeSM(rpdu, parentSW, response);
+                Metrics.record(Metrics.Layer.SM, commands[script.offset(i) + 1] & 0xFF, sw, started);
+                if (!result.add(script, start, sw)) {
+                    return false;
+                }
+            }
+        } finally {
+            release(rpdu);
+        }
 
-        if (ivCipher != null && encCipher != null && decCipher != null) {
-            apdu = decodeSM(apdu);
+        if (wrapped < to - from) {
+            ssc = base + 2 * wrapped;
+            final int start = result.buffer(0).position();
+            return result.add(script, start, Response.NO_RESPONSE);
         }
+        return true;
+    }
+
+    /**
+     * Protects the command on the calling thread and unprotects the response in the callback of the parent.
+     */
+    @Override
+    public void transmit(final byte[] apdu, final ResponseCallback callback) {
+        if (destroyed) {
+            callback.completed(new Response(Response.NO_RESPONSE));
+            return;
+        }
+        if (ivCipher == null || encCipher == null || decCipher == null) {
+            transmit(parent, apdu, callback);
+            return;
+        }
+
+        final int smLength = encodeSM(ByteBuffer.wrap(apdu));
+        if (smLength < 0) {
+            callback.completed(new Response(Response.NO_RESPONSE));
+            return;
+        }
+
+        transmit(parent, Arrays.copyOf(smAPDU, smLength), new ResponseCallback() {
+            @Override
+            public void completed(final Response response) {
+                final ByteBuffer rpdu = ByteBuffer.allocate(response.length());
+                response.copyTo(rpdu);
+                rpdu.flip();
+
+                final ByteBuffer data = ByteBuffer.allocate(response.length());
+                final int sw;
+                try {
+                    sw = decodeSM(rpdu, response.sw(), data);
+                } catch (final RuntimeException e) {
+                    callback.failed(e);
+                    return;
+                }
+                callback.completed(new Response(data.array(), 0, data.position(), sw));
+            }
 
-        System.out.println(">" + Hex.toString(apdu)); // Kept for debugging issues
 
-        return apdu;
+            @Override
+            public void failed(final Throwable cause) {
+                callback.failed(cause);
+            }
+        });
+    }
+
+    /**
+     * Overwrites the keys and ends the session, further APDUs aren't sent at all. The key schedules of the cipher
+     * instances can't be overwritten, so the instances are dropped.
+     */
+    void destroyKeys() {
+        destroyed = true;
+        ArrayTool.overwrite(kEnc);
+        ArrayTool.overwrite(kMac);
+        ivCipher = null;
+        encCipher = null;
+        decCipher = null;
+        cmac = null;
+        ssc = 0;
+    }
+
+    /**
+     * Hands the keys and the send sequence counter over to a session kept for resumption and ends this transport.
+     *
+     * @param session - receives the state of the session
+     */
+    void suspend(final SessionCache.Session session) {
+        if (!destroyed && kEnc != null) {
+            session.keep(kEnc, kMac, ssc);
+        }
+        destroyKeys();
+    }
+
+    /**
+     * Continues a session suspended by another transport with its keys and send sequence counter.
+     *
+     * @param newkEnc - The EncKey.
+     * @param newkMac - The MacKey.
+     * @param ssc     - The send sequence counter of the last response.
+     */
+    void resume(final byte[] newkEnc, final byte[] newkMac, final long ssc) {
+        setupKeys(newkEnc, newkMac);
+        this.ssc = ssc;
     }
 
     /**
@@ -187,6 +401,7 @@ public class ISOSMTransport implements TransportProvider {
     public void setupKeys(final byte[] newkEnc, final byte[] newkMac) {
         kEnc = newkEnc.clone();
         kMac = newkMac.clone();
+        destroyed = false;
 
         try {
             ivCipher = Cipher.getInstance(IV_ENC_ALG);
@@ -200,7 +415,11 @@ public class ISOSMTransport implements TransportProvider {
             ivBuf = ByteBuffer.allocate(16);
             ssc = 0;
 
-            ivCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(kEnc, "AES"));
+            final SecretKeySpec encKey = new SecretKeySpec(kEnc, "AES");
+            final IvParameterSpec zeroIV = new IvParameterSpec(new byte[16]);
+            ivCipher.init(Cipher.ENCRYPT_MODE, encKey);
+            encCipher.init(Cipher.ENCRYPT_MODE, encKey, zeroIV);
+            decCipher.init(Cipher.DECRYPT_MODE, encKey, zeroIV);
         } catch (final Exception e) {
             throw new IllegalStateException(e);
         }
@@ -223,195 +442,345 @@ public class ISOSMTransport implements TransportProvider {
     }
 
     /**
-     * Decodes the given data.
+     * Encrypts the send sequence counter into the initialization vector of the line ciphers.
      *
-     * @param in - The encoded message, as ANS1-structure.
-     * @return Returns the decoded message.
+     * @param currentSSC - The current send sequence counter.
+     * @throws GeneralSecurityException If the encryption fails.
+     */
+    private void deriveIV(final byte[] currentSSC) throws GeneralSecurityException {
+        ivCipher.update(currentSSC, 0, currentSSC.length, iv, 0);
+    }
+
+    /**
+     * Decodes the given response in a single walk over its data objects. DO'87 is decrypted straight into the
+     * response buffer if it fits, DO'99 and DO'8E are evaluated in place.
+     *
+     * @param rpdu     - The encoded message, as ANS1-structure, in a heap buffer.
+     * @param parentSW - The status word received by the underlying transport provider.
+     * @param response - The buffer receiving the decoded message.
+     * @return Returns the status word of the decoded message.
      * @throws IllegalStateException If the cmac is corrupted.
      */
-    private byte[] decodeSM(final byte[] in) {
+    private int decodeSM(final ByteBuffer rpdu, final int parentSW, final ByteBuffer response) {
         try {
-            byte[] data = TLV.get(in, (byte) 0x87);
-            final byte[] mac = TLV.get(in, (byte) 0x8E);
-            final byte[] sw = TLV.get(in, (byte) 0x99);
+            final byte[] in = rpdu.array();
+            final int base = rpdu.arrayOffset() + rpdu.position();
+            final int length = rpdu.remaining();
+
+            // value offsets and lengths of DO'87, DO'99 and DO'8E
+            int dataOfs = -1, dataLen = 0, swOfs = -1, swLen = 0, macOfs = -1, macLen = 0;
+
+            final TLVCursor objects = cursor.reset(in, base, length);
+            while (objects.next()) {
+                final int tag = objects.tag();
+                if (tag == 0x87 && dataOfs < 0) {
+                    dataOfs = objects.valueOffset() - base;
+                    dataLen = objects.valueLength();
+                } else if (tag == 0x99 && swOfs < 0) {
+                    swOfs = objects.valueOffset() - base;
+                    swLen = objects.valueLength();
+                } else if (tag == 0x8E && macOfs < 0) {
+                    macOfs = objects.valueOffset() - base;
+                    macLen = objects.valueLength();
+                }
+            }
 
             final byte[] currentSSC = getIV();
-            cmac.update(currentSSC, 0, currentSSC.length);
-            if (in.length > 0) {
-                // -8 -2 is short for "ignore MAC"
-                cmac.update(in, 0, in.length - 8 - 2);
-                cmac.update(SM_PAD, 0, SM_PAD.length - (in.length - 8 - 2) % SM_PAD.length);
-            }
+            if (macOfs >= 0) {
+                cmac.update(currentSSC, 0, currentSSC.length);
+                if (length > 0) {
+                    // -8 -2 is short for "ignore MAC"
+                    cmac.update(in, base, length - 8 - 2);
+                    cmac.update(SM_PAD, 0, SM_PAD.length - (length - 8 - 2) % SM_PAD.length);
+                }
 
-            if (mac != null && !ArrayTool.equals(mac, cmac.doFinal())) {
-                throw new IllegalStateException("MAC error.");
+                if (!cmac.verify(in, base + macOfs, macLen)) {
+                    Metrics.macFailure();
+                    throw new IllegalStateException("MAC error.");
+                }
             }
 
-            decCipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(kEnc, "AES"),
-                    new IvParameterSpec(ivCipher.doFinal(currentSSC)));
-
-            if (data != null) {
-                data = decCipher.doFinal(data, 1, data.length - 1);
-                for (int i = data.length - 1; i > 0; i--) {
-                    if (data[i] == 0x00) {
-                        continue;
-                    } else if (data[i] == (byte) 0x80) {
-                        data = ArrayTool.sub(data, 0, i);
-                        break;
-                    } else {
-                        break;
+            if (dataOfs >= 0) {
+                deriveIV(currentSSC);
+
+                // first byte is the padding-content indicator
+                final int ctOfs = base + dataOfs + 1;
+                final int ctLen = dataLen - 1;
+                final int start = response.position();
+
+                if (response.hasArray() && response.remaining() >= ctLen) {
+                    final byte[] out = response.array();
+                    final int outOfs = response.arrayOffset() + start;
+                    final int len = decCipher.doFinal(in, ctOfs, ctLen, out, outOfs);
+                    xorIV(out, outOfs, len);
+                    response.position(start + unpad(out, outOfs, len));
+                } else {
+                    if (plain.length < ctLen) {
+                        plain = new byte[ctLen];
                     }
+                    final int len = decCipher.doFinal(in, ctOfs, ctLen, plain, 0);
+                    xorIV(plain, 0, len);
+                    response.put(plain, 0, unpad(plain, 0, len));
                 }
-            } else {
-                data = new byte[0];
             }
 
-            if (sw != null) {
-                lastSW = ((sw[0] & 0xFF) << 8) + (sw[1] & 0xFF);
-            } else {
-                lastSW = parent.lastSW();
+            if (swOfs >= 0) {
+                if (swLen < 2) {
+                    throw new IllegalStateException("Invalid DO'99.");
+                }
+                return ((in[base + swOfs] & 0xFF) << 8) + (in[base + swOfs + 1] & 0xFF);
             }
-
-            return data;
+            return parentSW;
         } catch (final Exception e) {
-            e.printStackTrace();
-            return null;
+            Log.log(Log.Level.WARN, TAG, "unprotecting response failed", e);
+            return -1;
         }
     }
 
 
     /**
-     * Encodes the given APDU after <em>ISO 7816-4</em>.
+     * Applies the initialization vector to the first block of data decrypted from a zero IV.
      *
-     * @param in - The APDU, to encode.
-     * @return Returns the encoded APDU.
-     * @throws IllegalArgumentException If the APDU has an malformed structure.
+     * @param data   - The decrypted data.
+     * @param ofs    - The offset of the data.
+     * @param length - The length of the data.
      */
-    private byte[] encodeSM(final byte[] in) {
+    private void xorIV(final byte[] data, final int ofs, final int length) {
+        Bytes.xor(data, ofs, iv, 0, length < iv.length ? length : iv.length);
+    }
+
+
+    /**
+     * Returns the length of the decrypted data without padding. The data is left as is if no padding is found.
+     *
+     * @param data   - The decrypted data.
+     * @param ofs    - The offset of the data.
+     * @param length - The length of the data including padding.
+     * @return Returns the length of the data without padding.
+     */
+    private static int unpad(final byte[] data, final int ofs, final int length) {
+        for (int i = length - 1; i > 0; i--) {
+            if (data[ofs + i] == 0x00) {
+                continue;
+            } else if (data[ofs + i] == (byte) 0x80) {
+                return i;
+            } else {
+                break;
+            }
+        }
+        return length;
+    }
+
+
+    /**
+     * Encodes the given APDU after <em>ISO 7816-4</em> in a single pass. The protected APDU is written to the
+     * reusable command buffer: header, Lc, DO'87 with the data encrypted in place, DO'97 and DO'8E with the MAC
+     * computed over the already written data objects.
+     *
+     * @param apdu - The APDU, to encode, between position and limit. The position is advanced to limit.
+     * @return Returns the length of the encoded APDU or -1 if the APDU has an malformed structure.
+     */
+    private int encodeSM(final ByteBuffer apdu) {
+        final int pos = apdu.position();
+        final int limit = apdu.limit();
+        final int length = limit - pos;
+
         try {
             final byte[] currentSSC = getIV();
 
-            byte[] cmdHead = null;
-            byte[] data = null;
-            int ne = 0;
+            int dataOfs = 0, dataLen = 0, ne = 0;
 
             try {
-                cmdHead = ArrayTool.sub(in, 0, 4);
+                if (length < 4) {
+                    return -1;
+                }
                 // case 1 APDU
-                if (in.length < 5) {
-                    data = new byte[0];
+                if (length < 5) {
+                    dataLen = 0;
                 } else {
-                    final int l1 = in[4] & 0xff;
+                    final int l1 = apdu.get(pos + 4) & 0xff;
                     // case 2 short
-                    if (in.length == 5) {
-                        data = new byte[0];
-                        // XXX: 255 instead of 256 - better 0?
-                        ne = l1 == 0 ? 255 : l1;
+                    if (length == 5) {
+                        ne = l1 == 0 ? 256 : l1;
                         // short APDU
                     } else if (l1 != 0) {
+                        dataOfs = 5;
+                        dataLen = l1;
                         // case 3 short, header, length, data
-                        if (in.length == 4 + 1 + l1) {
-                            data = ArrayTool.sub(in, 5, l1);
+                        if (length == 4 + 1 + l1) {
                             // case 4 short, header, length, data, response-length
-                        } else if (in.length == 4 + 2 + l1) {
-                            data = ArrayTool.sub(in, 5, l1);
-                            final int l2 = in[in.length - 1] & 0xff;
-                            // XXX: 255 instead of 256 - better 0?
-                            ne = l2 == 0 ? 255 : l2;
+                        } else if (length == 4 + 2 + l1) {
+                            final int l2 = apdu.get(limit - 1) & 0xff;
+                            ne = l2 == 0 ? 256 : l2;
                         } else {
-                            throw new IllegalArgumentException("Invalid APDU#1: length=" + in.length + ", le=" + l1);
+                            throw new IllegalArgumentException("Invalid APDU#1: length=" + length + ", le=" + l1);
                         }
                         // extended length
-                    } else if (in.length >= 7) {
-                        final int l2 = (in[5] & 0xff) << 8 | in[6] & 0xff;
+                    } else if (length >= 7) {
+                        final int l2 = (apdu.get(pos + 5) & 0xff) << 8 | apdu.get(pos + 6) & 0xff;
                         // case 2 extended
-                        if (in.length == 7) {
-                            data = new byte[0];
-                            // XXX: 255 instead of 256 - better 0?
+                        if (length == 7) {
                             ne = l2 == 0 ? 65536 : l2;
                         } else if (l2 == 0) {
-                            throw new IllegalArgumentException("Invalid APDU#3: length=" + in.length + ", le1=" + l1
+                            throw new IllegalArgumentException("Invalid APDU#3: length=" + length + ", le1=" + l1
                                     + ", le2=" + l2);
-                            // case 3 extended
-                        } else if (in.length == 4 + 3 + l2) {
-                            data = ArrayTool.sub(in, 7, l2);
-                            // case 4 extended
-                        } else if (in.length == 4 + 5 + l2) {
-                            data = ArrayTool.sub(in, 7, l2);
-                            final int neOfs = in.length - 2;
-                            final int l3 = (in[neOfs] & 0xff) << 8 | in[neOfs + 1] & 0xff;
-                            ne = l3 == 0 ? 65536 : l3;
                         } else {
-                            throw new IllegalArgumentException("Invalid APDU#4: length=" + in.length + ", le1=" + l1
-                                    + ", le2=" + l2);
+                            dataOfs = 7;
+                            dataLen = l2;
+                            // case 3 extended
+                            if (length == 4 + 3 + l2) {
+                                // case 4 extended
+                            } else if (length == 4 + 5 + l2) {
+                                final int l3 = (apdu.get(limit - 2) & 0xff) << 8 | apdu.get(limit - 1) & 0xff;
+                                ne = l3 == 0 ? 65536 : l3;
+                            } else {
+                                throw new IllegalArgumentException("Invalid APDU#4: length=" + length + ", le1="
+                                        + l1 + ", le2=" + l2);
+                            }
                         }
                     } else {
-                        throw new IllegalArgumentException("Invalid APDU#2: length=" + in.length + ", le=" + l1);
+                        throw new IllegalArgumentException("Invalid APDU#2: length=" + length + ", le=" + l1);
                     }
                 }
-            } catch (final Exception e) {
+            } catch (final IllegalArgumentException e) {
                 // e.printStackTrace();
-                cmdHead = ArrayTool.sub(in, 0, 4);
-                data = ArrayTool.sub(in, 5, in[4]);
-                if (in.length > 5 + data.length) {
-                    ne = in[5 + data.length];
+                dataOfs = 5;
+                dataLen = apdu.get(pos + 4);
+                ne = 0;
+                if (dataLen < 0 || 5 + dataLen > length) {
+                    return -1;
+                }
+                if (length > 5 + dataLen) {
+                    ne = apdu.get(pos + 5 + dataLen);
                 }
             }
 
-            if (data.length > 0) {
-                encCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(kEnc, "AES"),
-                        new IvParameterSpec(ivCipher.doFinal(currentSSC)));
+            // size of the data objects
+            final int paddedLen = dataLen > 0 ? dataLen + SM_PAD.length - dataLen % SM_PAD.length : 0;
+            final int do87Len = dataLen > 0 ? 1 + sizeOfLength(1 + paddedLen) + 1 + paddedLen : 0;
+            // Le in DO'97' takes one byte up to 256 and two bytes up to 65536, with 00 and 0000 for the maximum
+            final int do97Len = ne > 0 ? ne <= 0x0100 ? 3 : 4 : 0;
+            final int bodyLen = do87Len + do97Len + 2 + 8;
+            final boolean isShort = bodyLen < 0x0100 && ne <= 0x0100;
+
+            final int smLength = 4 + (isShort ? 1 + bodyLen + 1 : 3 + bodyLen + 2);
+            if (smAPDU.length < smLength) {
+                smAPDU = new byte[smLength];
+                smAPDUBuf = ByteBuffer.wrap(smAPDU);
+            }
 
-                final int dataLength = data.length;
-                data = encCipher.update(data, 0, dataLength);
+            final byte[] out = smAPDU;
+            int x = 0;
 
-                if (data != null) {
-                    data = ArrayTool.concat(data,
-                            encCipher.doFinal(SM_PAD, 0, SM_PAD.length - (dataLength - 0) % SM_PAD.length));
-                } else {
-                    data = encCipher.doFinal(SM_PAD, 0, SM_PAD.length - (dataLength - 0) % SM_PAD.length);
+            // header
+            apdu.get(out, 0, 4);
+            out[0] |= 0x0C;
+            x += 4;
+
+            // Lc
+            if (isShort) {
+                out[x++] = (byte) bodyLen;
+            } else {
+                out[x++] = 0;
+                out[x++] = (byte) (bodyLen >> 8);
+                out[x++] = (byte) bodyLen;
+            }
+            final int bodyOfs = x;
+
+            if (dataLen > 0) {
+                deriveIV(currentSSC);
+
+                out[x++] = (byte) 0x87;
+                x = putLength(out, x, 1 + paddedLen);
+                out[x++] = 0x01;
+
+                // first block of data and padding, combined with the IV
+                final int first = dataLen < block.length ? dataLen : block.length;
+                for (int i = 0; i < first; i++) {
+                    block[i] = (byte) (apdu.get(pos + dataOfs + i) ^ iv[i]);
+                }
+                for (int i = first; i < block.length; i++) {
+                    block[i] = (byte) (SM_PAD[i - first] ^ iv[i]);
+                }
+                x += encCipher.update(block, 0, block.length, out, x);
+
+                if (dataLen > block.length) {
+                    apdu.limit(pos + dataOfs + dataLen);
+                    apdu.position(pos + dataOfs + block.length);
+                    smAPDUBuf.clear();
+                    smAPDUBuf.position(x);
+                    x += encCipher.update(apdu, smAPDUBuf);
+                    apdu.limit(limit);
                 }
 
-                data = TLV.build((byte) 0x87, ArrayTool.concat(new byte[]{0x01}, data));
+                // rest of the padding, if not already part of the first block
+                final int padOfs = block.length - first;
+                x += encCipher.doFinal(SM_PAD, padOfs, SM_PAD.length - dataLen % SM_PAD.length - padOfs, out, x);
             }
 
             if (ne > 0) {
-                if (ne < 0x0100) {
-                    data = ArrayTool.concat(data, TLV.build((byte) 0x97, new byte[]{(byte) ne}));
+                out[x++] = (byte) 0x97;
+                if (ne <= 0x0100) {
+                    out[x++] = 1;
+                    out[x++] = (byte) ne;
                 } else {
-                    data = ArrayTool.concat(data, TLV.build((byte) 0x97, new byte[]{(byte) 0, (byte) 0}));
+                    out[x++] = 2;
+                    out[x++] = (byte) (ne >> 8);
+                    out[x++] = (byte) ne;
                 }
             }
 
-            cmdHead[0] |= 0x0C;
-
             cmac.update(currentSSC, 0, currentSSC.length);
-            cmac.update(cmdHead, 0, cmdHead.length);
-            cmac.update(SM_PAD, 0, SM_PAD.length - cmdHead.length % SM_PAD.length);
-            if (data.length > 0) {
-                cmac.update(data, 0, data.length);
-                cmac.update(SM_PAD, 0, SM_PAD.length - data.length % SM_PAD.length);
+            cmac.update(out, 0, 4);
+            cmac.update(SM_PAD, 0, SM_PAD.length - 4);
+            if (x > bodyOfs) {
+                cmac.update(out, bodyOfs, x - bodyOfs);
+                cmac.update(SM_PAD, 0, SM_PAD.length - (x - bodyOfs) % SM_PAD.length);
             }
 
-            data = ArrayTool.concat(data, TLV.build((byte) 0x8E, cmac.doFinal()));
+            out[x++] = (byte) 0x8E;
+            out[x++] = 8;
+            x += cmac.doFinal(out, x);
 
-            if (data.length < 0x0100 && ne < 0x0100) {
-                data = ArrayTool.concat(cmdHead, ArrayTool.concat(
-                        ArrayTool.concat(new byte[]{(byte) data.length}, data), new byte[]{0}));
-            } else {
-                data = ArrayTool.concat(
-                        cmdHead,
-                        ArrayTool.concat(ArrayTool.concat(new byte[]{0, (byte) (data.length >> 8),
-                                (byte) data.length}, data), new byte[]{0, 0}));
+            // Le
+            out[x++] = 0;
+            if (!isShort) {
+                out[x++] = 0;
             }
 
-            return data;
-        } catch (
+            return x;
+        } catch (final Exception e) {
+            Log.log(Log.Level.WARN, TAG, "protecting command failed", e);
+            return -1;
+        } finally {
+            apdu.limit(limit);
+            apdu.position(limit);
+        }
+    }
+
 
-                final Exception e) {
-            e.printStackTrace();
-            return null;
+    /**
+     * Returns the size of the BER encoded length field for the given length.
+     */
+    private static int sizeOfLength(final int length) {
+        return length < 0x80 ? 1 : length < 0x0100 ? 2 : length < 0x10000 ? 3 : 4;
+    }
+
+
+    /**
+     * Writes the BER encoded length field and returns the offset behind it.
+     */
+    private static int putLength(final byte[] dst, int ofs, final int length) {
+        final int sizeLen = sizeOfLength(length);
+        if (sizeLen == 1) {
+            dst[ofs++] = (byte) length;
+        } else {
+            dst[ofs++] = (byte) (0x80 + sizeLen - 1);
+            for (int i = sizeLen - 2; i >= 0; i--) {
+                dst[ofs++] = (byte) (length >> 8 * i);
+            }
         }
+        return ofs;
     }
 
 
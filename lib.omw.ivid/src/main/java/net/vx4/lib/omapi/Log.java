@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import java.io.PrintStream;
+
+/**
+ * Logging hook of the transport stack. Nothing is logged until a sink is set with {@link #setSink(Sink, Level)}.
+ * Callers check {@link #isEnabled(Level)} before building a message, so APDUs are only hex encoded if someone reads
+ * them. Secrets and keys are never passed to the sink.
+ * <p>
+ * APDUs are logged on {@link Level#TRACE}, the setup of transport providers and PACE on {@link Level#DEBUG}.
+ *
+ * @version $Id$
+ */
+public final class Log {
+
+    /**
+     * Log levels in ascending order.
+     */
+    public enum Level {
+        TRACE, DEBUG, INFO, WARN, ERROR
+    }
+
+
+    /**
+     * Receives the log messages, called by the threads transmitting APDUs.
+     */
+    public interface Sink {
+        /**
+         * @param level   - level of the message
+         * @param tag     - name of the class logging
+         * @param message - the message
+         * @param cause   - exception logged with the message or null
+         */
+        void log(Level level, String tag, String message, Throwable cause);
+    }
+
+
+    /**
+     * Sink printing to <code>System.out</code> and exceptions to <code>System.err</code>, as the stack did before
+     * the logging hook.
+     */
+    public static final Sink CONSOLE = new Sink() {
+        @Override
+        public void log(final Level level, final String tag, final String message, final Throwable cause) {
+            final PrintStream out = cause != null || level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+            out.println(tag + ": " + message);
+            if (cause != null) {
+                cause.printStackTrace();
+            }
+        }
+    };
+
+    /**
+     * Ordinal of the lowest level passed to the sink, beyond all levels if there is no sink.
+     */
+    private static volatile int threshold = Integer.MAX_VALUE;
+    private static volatile Sink sink = null;
+
+
+    private Log() {
+    }
+
+
+    /**
+     * Routes messages of the given level and above to the sink.
+     *
+     * @param sink  - the sink or null to switch logging off
+     * @param level - lowest level passed to the sink
+     */
+    public static synchronized void setSink(final Sink sink, final Level level) {
+        threshold = Integer.MAX_VALUE;
+        Log.sink = sink;
+        if (sink != null) {
+            threshold = level.ordinal();
+        }
+    }
+
+
+    /**
+     * @param level - the level
+     * @return whether messages of the level are passed to the sink
+     */
+    public static boolean isEnabled(final Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+
+    /**
+     * Passes the message to the sink if its level is enabled.
+     *
+     * @param level   - level of the message
+     * @param tag     - name of the class logging
+     * @param message - the message
+     */
+    public static void log(final Level level, final String tag, final String message) {
+        log(level, tag, message, null);
+    }
+
+
+    /**
+     * Passes the message to the sink if its level is enabled.
+     *
+     * @param level   - level of the message
+     * @param tag     - name of the class logging
+     * @param message - the message
+     * @param cause   - exception logged with the message or null
+     */
+    public static void log(final Level level, final String tag, final String message, final Throwable cause) {
+        final Sink s = sink;
+        if (s != null && isEnabled(level)) {
+            s.log(level, tag, message, cause);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Metrics of the transport stack, recorded for all instances while enabled by {@link #setEnabled(boolean)}. For every
+ * {@link Layer} the latency of each command in nanoseconds is recorded in total and per instruction byte, and the
+ * status words returned are counted. Further the number of ENVELOPE APDUs per extended length APDU, responses
+ * rejected because of a wrong MAC and the duration of PACE-light are recorded.
+ * <p>
+ * Recording is lock free and doesn't allocate, except once for the first command with a new instruction byte or the
+ * first status word with a new SW1 on a layer. The values are read through the getters or as maps of named values,
+ * which {@link MetricsMXBean} exposes through JMX.
+ *
+ * @version $Id$
+ */
+public final class Metrics {
+
+    /**
+     * Layers of the transport stack, from the terminal emulation down to the OMAPI channel.
+     */
+    public enum Layer {
+        OMAPITP, SM, C2, CHANNEL
+    }
+
+
+    private static final Layer[] LAYERS = Layer.values();
+    private static final LayerMetrics[] BY_LAYER = new LayerMetrics[LAYERS.length];
+    private static final Histogram C2_SEGMENTS = new Histogram();
+    private static final Histogram PACE_DURATION = new Histogram();
+    private static final AtomicLong PACE_FAILURES = new AtomicLong();
+    private static final AtomicLong MAC_FAILURES = new AtomicLong();
+    private static volatile boolean enabled = false;
+
+    static {
+        for (int i = 0; i < LAYERS.length; i++) {
+            BY_LAYER[i] = new LayerMetrics();
+        }
+    }
+
+
+    private Metrics() {
+    }
+
+
+    /**
+     * Switches recording on or off, off by default.
+     *
+     * @param enabled - whether to record
+     */
+    public static void setEnabled(final boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /**
+     * Sets all metrics to 0.
+     */
+    public static void reset() {
+        for (final LayerMetrics m : BY_LAYER) {
+            m.reset();
+        }
+        C2_SEGMENTS.reset();
+        PACE_DURATION.reset();
+        PACE_FAILURES.set(0);
+        MAC_FAILURES.set(0);
+    }
+
+
+    /**
+     * @param layer - the layer
+     * @return latency of all commands in nanoseconds
+     */
+    public static Histogram latency(final Layer layer) {
+        return BY_LAYER[layer.ordinal()].all;
+    }
+
+
+    /**
+     * @param layer - the layer
+     * @param ins   - instruction byte
+     * @return latency of the commands with the instruction byte in nanoseconds or null if there was none
+     */
+    public static Histogram latency(final Layer layer, final int ins) {
+        return BY_LAYER[layer.ordinal()].byINS.get(ins & 0xFF);
+    }
+
+
+    /**
+     * @param layer - the layer
+     * @param sw    - status word or -1 for commands without response
+     * @return number of responses with the status word
+     */
+    public static long statusWordCount(final Layer layer, final int sw) {
+        final LayerMetrics m = BY_LAYER[layer.ordinal()];
+        if (sw < 0) {
+            return m.noResponse.get();
+        }
+        final AtomicLongArray row = m.bySW1.get(sw >> 8 & 0xFF);
+        return row != null ? row.get(sw & 0xFF) : 0;
+    }
+
+
+    /**
+     * @return number of ENVELOPE APDUs per extended length APDU
+     */
+    public static Histogram c2Segments() {
+        return C2_SEGMENTS;
+    }
+
+
+    /**
+     * @return duration of successful PACE-light runs in nanoseconds
+     */
+    public static Histogram paceDuration() {
+        return PACE_DURATION;
+    }
+
+
+    public static long paceFailures() {
+        return PACE_FAILURES.get();
+    }
+
+
+    /**
+     * @return number of responses rejected by secure messaging because of a wrong MAC
+     */
+    public static long macFailures() {
+        return MAC_FAILURES.get();
+    }
+
+
+    /**
+     * Returns the counters by name: <code>SM.macFailures</code>, <code>PACE.failures</code>, <code>PACE.count</code>
+     * and <code>C2.chainedAPDUs</code>.
+     *
+     * @return counters by name
+     */
+    public static Map<String, Long> counters() {
+        final Map<String, Long> result = new LinkedHashMap<String, Long>();
+        result.put("SM.macFailures", MAC_FAILURES.get());
+        result.put("PACE.failures", PACE_FAILURES.get());
+        result.put("PACE.count", PACE_DURATION.getCount());
+        result.put("C2.chainedAPDUs", C2_SEGMENTS.getCount());
+        return result;
+    }
+
+
+    /**
+     * Returns count, mean, 50th, 90th and 99th percentile and maximum of all histograms by name. The latency of a
+     * layer is named after it, e.g. <code>SM.p99</code>, per instruction byte with the byte in hex, e.g.
+     * <code>SM.B0.p99</code>. Further there are <code>C2.segments</code> and <code>PACE.duration</code>.
+     *
+     * @return values by name, times in nanoseconds
+     */
+    public static Map<String, Long> histograms() {
+        final Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (final Layer layer : LAYERS) {
+            final LayerMetrics m = BY_LAYER[layer.ordinal()];
+            put(result, layer.name(), m.all);
+            for (int ins = 0; ins < 256; ins++) {
+                final Histogram h = m.byINS.get(ins);
+                if (h != null) {
+                    put(result, layer.name() + "." + Hex.byteToString(ins), h);
+                }
+            }
+        }
+        put(result, "C2.segments", C2_SEGMENTS);
+        put(result, "PACE.duration", PACE_DURATION);
+        return result;
+    }
+
+
+    /**
+     * Returns the number of responses per status word by name, e.g. <code>CHANNEL.9000</code>, commands without
+     * response as <code>CHANNEL.none</code>.
+     *
+     * @return counts by name, only status words seen
+     */
+    public static Map<String, Long> statusWords() {
+        final Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (final Layer layer : LAYERS) {
+            final LayerMetrics m = BY_LAYER[layer.ordinal()];
+            for (int sw1 = 0; sw1 < 256; sw1++) {
+                final AtomicLongArray row = m.bySW1.get(sw1);
+                for (int sw2 = 0; row != null && sw2 < 256; sw2++) {
+                    final long n = row.get(sw2);
+                    if (n > 0) {
+                        result.put(layer.name() + "." + Hex.shortToString(sw1 << 8 | sw2), n);
+                    }
+                }
+            }
+            final long none = m.noResponse.get();
+            if (none > 0) {
+                result.put(layer.name() + ".none", none);
+            }
+        }
+        return result;
+    }
+
+
+    private static void put(final Map<String, Long> result, final String name, final Histogram h) {
+        result.put(name + ".count", h.getCount());
+        result.put(name + ".mean", Math.round(h.getMean()));
+        result.put(name + ".p50", h.getValueAtPercentile(50));
+        result.put(name + ".p90", h.getValueAtPercentile(90));
+        result.put(name + ".p99", h.getValueAtPercentile(99));
+        result.put(name + ".max", h.getMax());
+    }
+
+
+    /**
+     * @return instruction byte of the command APDU between position and limit
+     */
+    static int ins(final ByteBuffer apdu) {
+        return apdu.remaining() > 1 ? apdu.get(apdu.position() + 1) & 0xFF : 0;
+    }
+
+
+    /**
+     * Starts timing a command.
+     *
+     * @return start time to be passed to {@link #record(Layer, int, int, long)}, 0 if recording is off
+     */
+    static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+
+    /**
+     * Records a command that has been started with {@link #start()}.
+     *
+     * @param layer - the layer
+     * @param ins   - instruction byte
+     * @param sw    - status word or -1 without response
+     * @param start - result of {@link #start()}
+     */
+    static void record(final Layer layer, final int ins, final int sw, final long start) {
+        if (start == 0 || !enabled) {
+            return;
+        }
+        final long nanos = System.nanoTime() - start;
+        final LayerMetrics m = BY_LAYER[layer.ordinal()];
+        m.all.record(nanos);
+        m.histogram(ins & 0xFF).record(nanos);
+        if (sw < 0) {
+            m.noResponse.incrementAndGet();
+        } else {
+            m.row(sw >> 8 & 0xFF).incrementAndGet(sw & 0xFF);
+        }
+    }
+
+
+    static void c2Segments(final int segments) {
+        if (enabled) {
+            C2_SEGMENTS.record(segments);
+        }
+    }
+
+
+    static void macFailure() {
+        if (enabled) {
+            MAC_FAILURES.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Records the end of PACE-light started with {@link #start()}.
+     *
+     * @param start   - result of {@link #start()}
+     * @param success - whether the PACE channel has been established
+     */
+    static void pace(final long start, final boolean success) {
+        if (start == 0 || !enabled) {
+            return;
+        }
+        if (success) {
+            PACE_DURATION.record(System.nanoTime() - start);
+        } else {
+            PACE_FAILURES.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Metrics of one layer.
+     */
+    private static final class LayerMetrics {
+        private final Histogram all = new Histogram();
+        private final AtomicReferenceArray<Histogram> byINS = new AtomicReferenceArray<Histogram>(256);
+        private final AtomicReferenceArray<AtomicLongArray> bySW1 = new AtomicReferenceArray<AtomicLongArray>(256);
+        private final AtomicLong noResponse = new AtomicLong();
+
+
+        Histogram histogram(final int ins) {
+            Histogram h = byINS.get(ins);
+            if (h == null) {
+                byINS.compareAndSet(ins, null, new Histogram());
+                h = byINS.get(ins);
+            }
+            return h;
+        }
+
+
+        AtomicLongArray row(final int sw1) {
+            AtomicLongArray row = bySW1.get(sw1);
+            if (row == null) {
+                bySW1.compareAndSet(sw1, null, new AtomicLongArray(256));
+                row = bySW1.get(sw1);
+            }
+            return row;
+        }
+
+
+        void reset() {
+            all.reset();
+            for (int i = 0; i < 256; i++) {
+                final Histogram h = byINS.get(i);
+                if (h != null) {
+                    h.reset();
+                }
+                final AtomicLongArray row = bySW1.get(i);
+                for (int j = 0; row != null && j < 256; j++) {
+                    row.set(j, 0);
+                }
+            }
+            noResponse.set(0);
+        }
+    }
+}
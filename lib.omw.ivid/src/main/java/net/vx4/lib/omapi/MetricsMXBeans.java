@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+/**
+ * Registers {@link Metrics} with the platform MBean server. Kept apart from {@link Metrics}, so the class is never
+ * loaded on platforms without JMX like Android.
+ *
+ * @version $Id$
+ */
+public final class MetricsMXBeans {
+
+    /**
+     * Name the metrics are registered with.
+     */
+    public static final String NAME = "net.vx4.lib.omapi:type=Metrics";
+
+
+    private MetricsMXBeans() {
+    }
+
+
+    /**
+     * Registers the metrics with the platform MBean server, unless already registered.
+     *
+     * @return name of the MBean
+     * @throws JMException if the registration fails
+     */
+    public static synchronized ObjectName register() throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(NAME);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(new View(), name);
+        }
+        return name;
+    }
+
+
+    /**
+     * Removes the metrics from the platform MBean server.
+     *
+     * @throws JMException if the removal fails
+     */
+    public static synchronized void unregister() throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+
+    private static final class View implements MetricsMXBean {
+        @Override
+        public boolean isEnabled() {
+            return Metrics.isEnabled();
+        }
+
+
+        @Override
+        public void setEnabled(final boolean enabled) {
+            Metrics.setEnabled(enabled);
+        }
+
+
+        @Override
+        public Map<String, Long> getCounters() {
+            return Metrics.counters();
+        }
+
+
+        @Override
+        public Map<String, Long> getHistograms() {
+            return Metrics.histograms();
+        }
+
+
+        @Override
+        public Map<String, Long> getStatusWords() {
+            return Metrics.statusWords();
+        }
+
+
+        @Override
+        public void reset() {
+            Metrics.reset();
+        }
+    }
+}
@@ -26,8 +26,6 @@ import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
-import java.util.ArrayList;
-import java.util.List;
 
 
 /**
@@ -44,7 +42,7 @@ import java.util.List;
  * ISO secure messaging transport provider.
  *
  */
-public final class OMAPITP implements TransportProvider {
+public final class OMAPITP extends AbstractTransportProvider {
     public static final String AID_NPA = "E80704007F00070302";
     public static final String AID_VX4ID = "D2760000930101";
 
@@ -58,12 +56,47 @@ public final class OMAPITP implements TransportProvider {
 
     private static final byte[] EF_CS = Hex.x(
             "308206B006092A864886F70D010702A08206A13082069D020103310F300D0609608648016503040204050030820188060804007F0007030201A082017A04820176318201723012060A04007F0007020204020202010202010D300D060804007F00070202020201023017060A04007F0007020205020330090201010201010101003019060904007F000702020502300C060704007F0007010202010D3017060A04007F0007020205020330090201010201020101FF3012060A04007F00070202030202020102020129301C060904007F000702020302300C060704007F0007010202010D0201293062060904007F0007020201023052300C060704007F0007010202010D0342000419D4B7447788B0E1993DB35500999627E739A4E5E35F02D8FB07D6122E76567F17758D7A3AA6943EF23E5E2909B3E8B31BFAA4544C2CBF1FB487F31FF239C8F8020129303E060804007F000702020831323012060A04007F0007020203020202010202012D301C060904007F000702020302300C060704007F0007010202010D02012D302A060804007F0007020206161E687474703A2F2F6273692E62756E642E64652F6369662F6E70612E786D6CA08203EE308203EA30820371A00302010202012D300A06082A8648CE3D0403033055310B3009060355040613024445310D300B060355040A0C0462756E64310C300A060355040B0C03627369310D300B0603550405130430303033311A301806035504030C115445535420637363612D6765726D616E79301E170D3134303732333036333034305A170D3235303232333233353935395A305C310B3009060355040613024445310C300A060355040A0C03425349310D300B06035504051304303035303130302E06035504030C275445535420446F63756D656E74205369676E6572204964656E7469747920446F63756D656E7473308201133081D406072A8648CE3D02013081C8020101302806072A8648CE3D0101021D00FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF000000000000000000000001303C041CFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFFFFFFFFFFFFFFFFFFFE041CB4050A850C04B3ABF54132565044B0B7D7BFD8BA270B39432355FFB4043904B70E0CBD6BB4BF7F321390B94A03C1D356C21122343280D6115C1D21BD376388B5F723FB4C22DFE6CD4375A05A07476444D5819985007E34021D00FFFFFFFFFFFFFFFFFFFFFFFFFFFF16A2E0B8F03E13DD29455C5C2A3D020101033A00043A79C3CBFDB8A6E569C9226CD54E81DE14381BC92A61AD554EBF349BFAFD72F18DC85D78E49742F37A75411E28E894308D6880D1380FBEB4A382016D30820169301F0603551D23041830168014A38DB7C0DBECF5A91FCA6B3D5EB2F328B5A5DC17301D0603551D0E04160414CF0A2AC150F28ADE4329F662E3D21CE5C78BCDE9300E0603551D0F0101FF040403020780302B0603551D1004243022800F32303134303732333036333034305A810F32303135303232333233353935395A30160603551D20040F300D300B060904007F000703010101302D0603551D1104263024821262756E646573647275636B657265692E6465A40E300C310A300806035504070C014430510603551D12044A30488118637363612D6765726D616E79406273692E62756E642E6465861C68747470733A2F2F7777772E6273692E62756E642E64652F63736361A40E300C310A300806035504070C01443019060767810801010602040E300C02010031071301411302494430350603551D1F042E302C302AA028A0268624687474703A2F2F7777772E6273692E62756E642E64652F746573745F637363615F63726C300A06082A8648CE3D040303036700306402300D90B1C6E52B5E20D8ECE1520981E11EF1AF02906A930420F87E90315588B70C0C9642160E877E42B1CE311849E388B802303450209749C1368D965CE879460F729E68BAB9D5D3269724721D0C564FB2752EC4C0F8F5542990CFDB7C848AA7D0A2BB3182010730820103020101305A3055310B3009060355040613024445310D300B060355040A0C0462756E64310C300A060355040B0C03627369310D300B0603550405130430303033311A301806035504030C115445535420637363612D6765726D616E7902012D300D06096086480165030402040500A046301706092A864886F70D010903310A060804007F0007030201302B06092A864886F70D010904311E041CC57AFB616E6837B63B22666F48547E3AD71795E33326C0CE5FF27C3A300A06082A8648CE3D040301043F303D021C58AE1E82475BE9C9167810593FCF7CA791DE45910380D5CF4FEB84D7021D00FFD316D91D85664479596BAFBBB2532540047334668E0C47EE99B826");
-    private final TransportProvider plainTP;
-    //
-    int lastSW = -1;
-    private TransportProvider tp;
+    private static final byte[] VENDOR = "VX4.NET".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] PRODUCT = "OMAPI-SE".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] DF_EID = Hex.x("09" + AID_NPA);
+    private static final byte[] SELECT_DF_SM = Hex.x("0CA4040C");
+    private static final String TAG = "OMAPITP";
+    private static final byte[] PACE_ERROR = Hex.x("80026985860087006985");
+    private static final byte[] GET_CA_REFERENCE = Hex.x("80CE0000");
+
+    /**
+     * Files of the eID application shared by all instances without a file system of their own.
+     */
+    private static final VirtualFileSystem EID_FILES = eIDFiles();
+    private static final byte[] EID_PACE_OUTPUT = paceOutput(EID_FILES);
+
+    /**
+     * Command handlers indexed by class and instruction byte.
+     */
+    private final CommandHandler[][] handlers = new CommandHandler[256][];
+    private final AbstractTransportProvider plainTP;
+    /**
+     * Identity of the channel to the secure element, the key of resumable sessions.
+     */
+    private final Object channel;
+    private SessionCache sessions = null;
+    /**
+     * The session established or resumed by this instance, released into the cache on close and on the next
+     * EstablishPACEChannel.
+     */
+    private SessionCache.Session current = null;
+    private AbstractTransportProvider tp;
     private CallbackHandler cbh;
-    private byte[] efData = null;
+    private VirtualFileSystem files = EID_FILES;
+    /**
+     * Start of the EstablishPACEChannel output up to the length of the CA reference: status, length of EF.CardAccess
+     * little-endian, EF.CardAccess.
+     */
+    private byte[] paceOutput = EID_PACE_OUTPUT;
+    /**
+     * The emulated file selected in this session, null if the current file is on the secure element.
+     */
+    private VirtualFileSystem.EF currentEF = null;
 
     /**
      *
@@ -77,16 +110,27 @@ public final class OMAPITP implements TransportProvider {
      * @param seTP
      */
     public OMAPITP(final TransportProvider seTP) {
-        System.out.println("OMAPITP: seTP = [" + seTP + "]");
-        System.out.println("OMAPITP: seTP.getParent = [" + seTP.getParent() + "]");
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.log(Log.Level.DEBUG, TAG, "seTP = [" + seTP + "]");
+            Log.log(Log.Level.DEBUG, TAG, "seTP.getParent = [" + seTP.getParent() + "]");
+        }
 
         // if ("T=0".equals(card.getProtocol())) {
         tp = new C2Transport(seTP);
         // tp = seTP;
         // }
 
-        System.out.println(tp);
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.log(Log.Level.DEBUG, TAG, String.valueOf(tp));
+        }
         plainTP = tp;
+        channel = seTP.getParent() != null ? seTP.getParent() : seTP;
+
+        setCommandHandler((byte) 0xFF, (byte) 0x9A, new ReaderCommands());
+        setCommandHandler((byte) 0x00, (byte) 0xA4, new Select());
+        setCommandHandler((byte) 0x00, (byte) 0xB0, new ReadBinary());
+        setCommandHandler((byte) 0x00, (byte) 0xB1, new ReadBinaryOdd());
+        setCommandHandler((byte) 0x00, (byte) 0x22, new ManageSecurityEnvironment());
     }
 
     public final void setCallbackHandler(final CallbackHandler cbh) {
@@ -94,250 +138,1149 @@ public final class OMAPITP implements TransportProvider {
     }
 
 
+    /**
+     * Creates a file system with the emulated files of the eID application, EF.DIR, EF.ATR, EF.CardAccess and
+     * EF.CardSecurity, to be used as is or extended for a card profile.
+     *
+     * @return new file system
+     */
+    public static VirtualFileSystem eIDFiles() {
+        return new VirtualFileSystem()
+                .addFile(0x2F00, 0x1E, EF_DIR)
+                .addFile(0x2F01, 0x01, EF_ATR)
+                .addFile(0x011C, 0x1C, EF_CA)
+                .addFile(0x011D, 0x1D, EF_CS);
+    }
+
+
+    /**
+     * Replaces the emulated files, e.g. by a card profile loaded with {@link VirtualFileSystem#fromDirectory}.
+     * EstablishPACEChannel returns the EF.CardAccess (011C) of the file system.
+     *
+     * @param files - the file system
+     */
+    public final void setFileSystem(final VirtualFileSystem files) {
+        if (files == null) {
+            throw new NullPointerException("file system required");
+        }
+        this.paceOutput = paceOutput(files);
+        this.files = files;
+        this.currentEF = null;
+    }
+
+
+    public final VirtualFileSystem getFileSystem() {
+        return files;
+    }
+
+
+    /**
+     * Sets the cache of secure messaging sessions, which lets EstablishPACEChannel resume the session last established
+     * on the same channel instead of running PACE-light again. The cache is usually shared by all instances for one
+     * secure element.
+     *
+     * @param sessions - the cache or null to run PACE-light every time
+     */
+    public final void setSessionCache(final SessionCache sessions) {
+        this.sessions = sessions;
+    }
+
+
+    public final SessionCache getSessionCache() {
+        return sessions;
+    }
+
+
+    private static byte[] paceOutput(final VirtualFileSystem files) {
+        final VirtualFileSystem.EF cardAccess = files.file(0x011C);
+        final int len = cardAccess != null ? cardAccess.length() : 0;
+        final ByteBuffer output = ByteBuffer.allocate(5 + len);
+        output.put((byte) 0x90).put((byte) 0x00).put((byte) len).put((byte) (len >> 8));
+        if (cardAccess != null) {
+            cardAccess.read(0, len, output);
+        }
+        output.put((byte) 0x0E);
+        return output.array();
+    }
+
+
+    /**
+     * Registers a handler for all commands with the given class and instruction byte, replacing the built-in
+     * emulation for this combination. A <code>null</code> handler removes the entry, so matching commands are passed
+     * on to the secure element.
+     *
+     * @param cla     - class byte
+     * @param ins     - instruction byte
+     * @param handler - handler to be called or null
+     */
+    public final void setCommandHandler(final byte cla, final byte ins, final CommandHandler handler) {
+        CommandHandler[] byINS = handlers[cla & 0xFF];
+        if (byINS == null) {
+            if (handler == null) {
+                return;
+            }
+            byINS = new CommandHandler[256];
+            handlers[cla & 0xFF] = byINS;
+        }
+        byINS[ins & 0xFF] = handler;
+    }
+
+
     public final byte[] process(final byte[] apdu) {
-        byte[] rpdu = new byte[0];
-        short sw = (short) 0x9000;
+        final Response read = readEmulated(apdu);
+        if (read != null) {
+            return read.toBytes();
+        }
 
+        final ByteBuffer response = borrow();
         try {
-            System.out.println("APDU: " + Hex.x(apdu));
-            final String cmd = Hex.x(apdu);
-
-            if (cmd.startsWith("FF9A")) { // reader commands
-                if (cmd.startsWith("FF9A0101")) { // get vendor
-                    rpdu = "VX4.NET".getBytes(StandardCharsets.ISO_8859_1);
-                } else if (cmd.startsWith("FF9A0103")) { // get product
-                    rpdu = "OMAPI-SE".getBytes(StandardCharsets.ISO_8859_1);
-                } else if (cmd.startsWith("FF9A010600")) { // get firmware
-                    // NOP
-                } else if (cmd.startsWith("FF9A010700")) { // get driver
-                    // NOP
-                } else if (cmd.startsWith("FF9A0401")) {   // GetReaderPACE Capabilities
-                    rpdu = new byte[]{ 0x03 };
-                } else if (cmd.startsWith("FF9A0402")) {   // EstablishPACEChannel
-                    if (tp != plainTP) { // reset transport provider if channel already exists
-                        tp = plainTP;
+            final int sw = process(ByteBuffer.wrap(apdu), response);
+            if (sw == -1) {
+                return null;
+            }
+
+            final byte[] rpdu = new byte[response.position() + 2];
+            response.flip();
+            response.get(rpdu, 0, rpdu.length - 2);
+            rpdu[rpdu.length - 2] = (byte) (sw >> 8 & 0xFF);
+            rpdu[rpdu.length - 1] = (byte) (sw & 0xFF);
+            return rpdu;
+        } finally {
+            release(response);
+        }
+    }
+
+
+    /**
+     * Processes a command APDU either by the emulation registered for its class and instruction byte or by passing
+     * it on to the secure element.
+     *
+     * @param apdu     - command APDU between position and limit
+     * @param response - buffer receiving the response data
+     * @return status word or -1 if the secure element didn't respond
+     */
+    public final int process(final ByteBuffer apdu, final ByteBuffer response) {
+        final long started = Metrics.start();
+        final int ins = Metrics.ins(apdu);
+        final int sw = dispatch(apdu, response);
+        Metrics.record(Metrics.Layer.OMAPITP, ins, sw, started);
+        return sw;
+    }
+
+
+    /**
+     * Serves READ BINARY of emulated files without the response buffer of the array adapter.
+     */
+    @Override
+    public Response exchange(final byte[] apdu) {
+        final Response read = readEmulated(apdu);
+        return read != null ? read : super.exchange(apdu);
+    }
+
+
+    /**
+     * Runs a script like {@link #process(ByteBuffer, ByteBuffer)} processes single commands. Emulated commands are
+     * answered in between, the commands passed on to the secure element are handed down in runs of consecutive
+     * commands, which secure messaging protects in one pass.
+     */
+    @Override
+    boolean run(final APDUScript script, final byte[] commands, final int from, final int to,
+                final ScriptResult result) {
+        final ByteBuffer command = ByteBuffer.wrap(commands);
+        // commands from pending on are passed on through route when the run ends
+        int pending = from;
+        AbstractTransportProvider route = null;
+
+        for (int i = from; i < to; i++) {
+            final int ofs = script.offset(i);
+            command.limit(ofs + script.length(i)).position(ofs);
+            final CommandHandler handler = handler(commands[ofs], commands[ofs + 1]);
+
+            if (handler instanceof ReaderCommands && pending < i) { // PACE talks to the secure element itself
+                if (!run(route, script, commands, pending, i, result)) {
+                    return false;
+                }
+                pending = i;
+            }
+
+            if (handler != null) {
+                // the response goes to the result directly or, behind commands not yet passed on, is kept aside
+                final boolean aside = pending < i;
+                final ByteBuffer response = aside ? borrow() : result.buffer(script.reserve(i));
+                final int start = response.position();
+                try {
+                    int sw;
+                    try {
+                        sw = handler.process(command, response);
+                    } catch (final RuntimeException e) {
+                        Log.log(Log.Level.WARN, TAG, "processing APDU failed", e);
+                        response.position(start);
+                        sw = 0x6FFF;
                     }
 
-                    final byte[] miniPACERes = miniPACE();
-
-                    if (miniPACERes == null) {
-                        rpdu = new byte[0];
-                        sw = 0x6985;
-                    } else {
-                        //rpdu = miniPACERes;
-//                        if(this.lastSW() == 0x9000) { // doesn't work here, because sw is not set, comes from HAL-SE
-
-                        byte[] IDPICC = TLV.get(miniPACERes, (byte) 0x86);
-                        byte[] CAR = TLV.get(miniPACERes, (byte) 0x87);
-
-                        StringBuffer sb = new StringBuffer();
-                        sb.append("9000"); // SW
-                        sb.append(Hex.byteToString(EF_CA.length) + "00"); // len EF_CardAccess
-                        sb.append(Hex.toString(EF_CA));
-                        sb.append("0E").append(Hex.x(CAR));
-                        sb.append("00");
-                        sb.append("2000");
-                        sb.append(Hex.x(IDPICC));
-
-                        byte[] res = Hex.x(sb.toString());
-                        int dataLen = res.length;
-                        rpdu = ArrayTool.concat(new byte[]{0, 0, 0, 0, (byte) dataLen, (byte) (dataLen >> 8)}, res);
-//                        } else {
-//                            rpdu = new byte[]{0x01, 0x00, 0x20, (byte) 0xF0}; // status, little-endian, abort
-//                        }
-
-                        sw = (short) 0x9000;
+                    if (sw != -1) {
+                        if (aside) {
+                            if (!run(route, script, commands, pending, i, result)) {
+                                return false;
+                            }
+                            response.flip();
+                            final int resultStart = result.buffer(response.remaining()).position();
+                            result.buffer(0).put(response);
+                            if (!result.add(script, resultStart, sw)) {
+                                return false;
+                            }
+                        } else if (!result.add(script, start, sw)) {
+                            return false;
+                        }
+                        pending = i + 1;
+                        route = null;
+                        continue;
+                    }
+                    response.position(start);
+                } finally {
+                    if (aside) {
+                        release(response);
                     }
-                } else if (cmd.startsWith("FF9A0403")) {    // DestroyPACEChannel
-                    // reset transport provider
-                    tp = plainTP;
-                    rpdu = new byte[0];
-                } else if (cmd.startsWith("FF9A0410")) {    // VerifyPIN / ModifyPIN
-                    // NOP
-                    rpdu = new byte[0];
                 }
+            }
 
-                return ArrayTool.concat(rpdu, new byte[]{(byte) (sw >> 8 & 0xFF), (byte) (sw & 0xFF)});
-            }
-
-            if ("00A4040C09E80704007F00070302".equals(cmd)) {  // select DF_EID
-                // return Hex.x("9000");
-            } else if ("00A4000000".equals(cmd)) {    // select MF
-                // return Hex.x("9000");
-            } else if ("00A40000023F00".equals(cmd)) {    // select MF
-                // return Hex.x("9000");
-            } else if ("00A4000C023F00".equals(cmd)) {    // select MF
-                // return Hex.x("9000");
-            } else if ("00A4020C022F00".equals(cmd)) {    // select EF.DIR
-                efData = EF_DIR;
-                // return Hex.x("9000");
-            } else if ("00A4020C022F01".equals(cmd)) {    // select EF.ATR
-                efData = EF_ATR;
-                // return Hex.x("9000");
-            } else if ("00A4020C02011C".equals(cmd)) {    // select EF.CA
-                efData = EF_CA;
-                // return Hex.x("9000");
-            } else if ("00A4020C02011D".equals(cmd)) {    // select EF.CS
-
-                efData = EF_CS;
-                // return Hex.x("9000");
-            } else if (cmd.startsWith("00B0")) {    // read binary
-
-                int ofs = ((apdu[2] & 0xFF) << 8) + (apdu[3] & 0xFF);
-                int len = apdu[4] & 0xFF;
-                if (cmd.startsWith("00B09C00")) {
-                    efData = EF_CA;
-                    ofs = 0;
-                }
-                len = len == 0 ? 255 : len;
-                if (efData.length - ofs < len) {
-                    len = efData.length - ofs;
-                    sw = 0x6282;
+            command.limit(ofs + script.length(i)).position(ofs);
+            final AbstractTransportProvider next = route(command);
+            if (route != null && next != route) {
+                if (!run(route, script, commands, pending, i, result)) {
+                    return false;
                 }
+                pending = i;
+            }
+            route = next;
+        }
 
-                rpdu = ArrayTool.sub(efData, ofs, len);
-            } else if (cmd.startsWith("0022C1A4")) { // MSE PACE, 0022C1A4 12 80 0A 04007F00070202040202830103 84010D
-                // NOP for now
-            } else {
-                System.out.println("TRANSMIT DOWN TO SE: " + Hex.x(apdu));
-
-                if ((apdu[0] & 0x0C) == 0x0C) { // distinguish between PACE transfer and CA-SM transfer
-                    if (cmd.startsWith("0CA4040C")) { // escape select DF with proprietary Type 4 APDU
-                        apdu[0] ^= (byte) 0xA0;
-                        apdu[1] ^= (byte) 0xAA;
-                        apdu[2] ^= (byte) 0xAA;
-                        apdu[3] ^= (byte) 0xAA;
+        return pending == to || run(route, script, commands, pending, to, result);
+    }
+
+
+    /**
+     * Answers READ BINARY of an emulated file with the precomputed response or a view on the file content.
+     *
+     * @param apdu - command APDU
+     * @return the response or null if the command isn't handled by the built-in READ BINARY of an emulated file
+     */
+    private Response readEmulated(final byte[] apdu) {
+        if (apdu.length != 5 && apdu.length != 7) {
+            return null;
+        }
+        final CommandHandler handler = handler(apdu[0], apdu[1]);
+        if (!(handler instanceof ReadBinary)) {
+            return null;
+        }
+
+        final long started = Metrics.start();
+        Response res;
+        try {
+            res = ((ReadBinary) handler).read(apdu);
+            if (res == null) {
+                return null;
+            }
+        } catch (final RuntimeException e) {
+            Log.log(Log.Level.WARN, TAG, "processing APDU failed", e);
+            res = new Response(0x6FFF);
+        }
+        if (Log.isEnabled(Log.Level.TRACE)) {
+            Log.log(Log.Level.TRACE, TAG, "APDU: " + Hex.toString(apdu));
+        }
+        Metrics.record(Metrics.Layer.OMAPITP, apdu[1] & 0xFF, res.sw(), started);
+        return res;
+    }
+
+
+    private int dispatch(final ByteBuffer apdu, final ByteBuffer response) {
+        final int start = response.position();
+
+        try {
+            if (Log.isEnabled(Log.Level.TRACE)) {
+                Log.log(Log.Level.TRACE, TAG, "APDU: " + Hex.toString(apdu));
+            }
+
+            if (apdu.remaining() >= 4) {
+                final int ofs = apdu.position();
+                final CommandHandler handler = handler(apdu.get(ofs), apdu.get(ofs + 1));
+
+                if (handler != null) {
+                    final int sw = handler.process(apdu, response);
+                    if (sw != -1) {
+                        return sw;
                     }
+                }
+            }
+
+            return transmitToSE(apdu, response);
+        } catch (final Exception e) {
+            Log.log(Log.Level.WARN, TAG, "processing APDU failed", e);
+            response.position(start);
+            return 0x6FFF;
+        }
+    }
+
+
+    /**
+     * Processes a command APDU like {@link #process(ByteBuffer, ByteBuffer)} without waiting for the secure element.
+     * Emulated commands complete on the calling thread, EstablishPACEChannel and all commands passed on to the secure
+     * element complete in the callback of the transport provider below.
+     *
+     * @param apdu     - APDU to be processed
+     * @param callback - receives the response or the failure
+     */
+    @Override
+    public void transmit(final byte[] apdu, ResponseCallback callback) {
+        final long started = Metrics.start();
+        if (started != 0) {
+            callback = new TimedCallback(apdu.length > 1 ? apdu[1] : 0, started, callback);
+        }
+
+        if (Log.isEnabled(Log.Level.TRACE)) {
+            Log.log(Log.Level.TRACE, TAG, "APDU: " + Hex.toString(apdu));
+        }
+
+        final CommandHandler handler = apdu.length >= 4 ? handler(apdu[0], apdu[1]) : null;
+        if (handler instanceof ReaderCommands && apdu[2] == 0x04 && apdu[3] == 0x02) {
+            establishPACEChannel(callback);
+            return;
+        }
+
+        if (handler instanceof ReadBinary) {
+            Response res;
+            try {
+                res = ((ReadBinary) handler).read(apdu);
+            } catch (final RuntimeException e) {
+                Log.log(Log.Level.WARN, TAG, "processing APDU failed", e);
+                res = new Response(0x6FFF);
+            }
+            if (res != null) {
+                callback.completed(res);
+                return;
+            }
+        }
+
+        if (handler != null) {
+            final ByteBuffer response = borrow();
+            final int sw;
+            try {
+                sw = handler.process(ByteBuffer.wrap(apdu), response);
+                if (sw != -1) {
+                    callback.completed(response(sw, response));
+                    return;
+                }
+            } catch (final RuntimeException e) {
+                Log.log(Log.Level.WARN, TAG, "processing APDU failed", e);
+                callback.completed(new Response(0x6FFF));
+                return;
+            } finally {
+                release(response);
+            }
+        }
+
+        final ByteBuffer command = ByteBuffer.wrap(apdu);
+        route(command).transmit(apdu, callback);
+    }
+
+
+    private CommandHandler handler(final byte cla, final byte ins) {
+        final CommandHandler[] byINS = handlers[cla & 0xFF];
+        return byINS != null ? byINS[ins & 0xFF] : null;
+    }
+
+
+    private int transmitToSE(final ByteBuffer apdu, final ByteBuffer response) {
+        return route(apdu).transmit(apdu, response);
+    }
+
+
+    /**
+     * Selects the transport provider for a command passed on to the secure element.
+     *
+     * @param apdu - command APDU between position and limit, escaped in place if required
+     * @return the plain transport provider for commands protected by chip authentication, the current one otherwise
+     */
+    private AbstractTransportProvider route(final ByteBuffer apdu) {
+        if (Log.isEnabled(Log.Level.TRACE)) {
+            Log.log(Log.Level.TRACE, TAG, "TRANSMIT DOWN TO SE: " + Hex.toString(apdu));
+        }
+
+        final int ofs = apdu.position();
+        if ((apdu.get(ofs) & 0x0C) == 0x0C) { // distinguish between PACE transfer and CA-SM transfer
+            if (matches(apdu, ofs, SELECT_DF_SM)) { // escape select DF with proprietary Type 4 APDU
+                apdu.put(ofs, (byte) (apdu.get(ofs) ^ 0xA0));
+                apdu.put(ofs + 1, (byte) (apdu.get(ofs + 1) ^ 0xAA));
+                apdu.put(ofs + 2, (byte) (apdu.get(ofs + 2) ^ 0xAA));
+                apdu.put(ofs + 3, (byte) (apdu.get(ofs + 3) ^ 0xAA));
+            }
+
+            return plainTP; // CA-SM
+        }
 
-                    rpdu = plainTP.transmit(apdu); // CA-SM
+        return tp; // transmit with PACE channel
+    }
+
+
+    private int establishPACEChannel(final ByteBuffer response) {
+        releaseSession();
+        if (tp != plainTP) { // reset transport provider if channel already exists
+            tp = plainTP;
+        }
+
+        final long started = Metrics.start();
+        final byte[] secret = secret();
+        final SessionCache.Session session = takeSession(secret);
+        byte[] miniPACERes = null;
+        if (session != null) {
+            Response caReference = null;
+            try {
+                caReference = session.resume(plainTP).exchange(GET_CA_REFERENCE);
+            } catch (final RuntimeException e) {
+                Log.log(Log.Level.WARN, TAG, "session not resumed", e);
+                session.destroy();
+            }
+            if (caReference != null) {
+                miniPACERes = resumePACE(session, caReference);
+            }
+        }
+        if (miniPACERes == null) {
+            miniPACERes = miniPACE(secret);
+        }
+        Metrics.pace(started, miniPACERes != null && miniPACERes != PACE_ERROR);
+        return establishPACEChannel(miniPACERes, response);
+    }
+
+
+    /**
+     * Runs PACE-light like {@link #miniPACE(byte[])}, sending the second command from the callback of the first one.
+     */
+    private void establishPACEChannel(final ResponseCallback callback) {
+        final long started = Metrics.start();
+        releaseSession();
+        tp = plainTP;
+
+        final byte[] secret = secret();
+        final SessionCache.Session session = takeSession(secret);
+        if (session == null) {
+            runPACE(started, secret, callback);
+            return;
+        }
+        session.resume(plainTP).transmit(GET_CA_REFERENCE, new ResponseCallback() {
+            @Override
+            public void completed(final Response response) {
+                final byte[] miniPACERes = resumePACE(session, response);
+                if (miniPACERes != null) {
+                    completePACE(started, miniPACERes, callback);
                 } else {
-                    rpdu = tp.transmit(apdu); // transmit with PACE channel
+                    runPACE(started, secret, callback);
                 }
+            }
 
-                sw = (short) tp.lastSW();
+
+            @Override
+            public void failed(final Throwable cause) {
+                Log.log(Log.Level.WARN, TAG, "session not resumed", cause);
+                session.destroy();
+                runPACE(started, secret, callback);
+            }
+        });
+    }
+
+
+    private void runPACE(final long started, final byte[] secret, final ResponseCallback callback) {
+        final PACELight pace = startPACE(secret);
+        if (pace == null) {
+            completePACE(started, null, callback);
+            return;
+        }
+
+        try {
+            tp.transmit(pace.firstCommand(), new ResponseCallback() {
+                @Override
+                public void completed(final Response plResponse) {
+                    final byte[] ceCommand;
+                    try {
+                        ceCommand = pace.secondCommand(plResponse);
+                    } catch (final GeneralSecurityException e) {
+                        Log.log(Log.Level.WARN, TAG, "PACE-light failed", e);
+                        completePACE(started, PACE_ERROR, callback);
+                        return;
+                    }
+                    if (ceCommand == null) {
+                        completePACE(started, null, callback);
+                        return;
+                    }
+
+                    tp.transmit(ceCommand, new ResponseCallback() {
+                        @Override
+                        public void completed(final Response ceResponse) {
+                            final byte[] miniPACERes;
+                            try {
+                                miniPACERes = pace.result(ceResponse);
+                            } catch (final RuntimeException e) {
+                                tp = plainTP;
+                                Metrics.pace(started, false);
+                                callback.failed(e);
+                                return;
+                            }
+                            completePACE(started, miniPACERes, callback);
+                        }
+
+
+                        @Override
+                        public void failed(final Throwable cause) {
+                            tp = plainTP;
+                            Metrics.pace(started, false);
+                            callback.failed(cause);
+                        }
+                    });
+                }
+
+
+                @Override
+                public void failed(final Throwable cause) {
+                    Metrics.pace(started, false);
+                    callback.failed(cause);
+                }
+            });
+        } catch (final GeneralSecurityException e) {
+            Log.log(Log.Level.WARN, TAG, "PACE-light failed", e);
+            completePACE(started, PACE_ERROR, callback);
+        }
+    }
+
+
+    private void completePACE(final long started, final byte[] miniPACERes, final ResponseCallback callback) {
+        Metrics.pace(started, miniPACERes != null && miniPACERes != PACE_ERROR);
+        final ByteBuffer response = borrow();
+        final Response res;
+        try {
+            res = response(establishPACEChannel(miniPACERes, response), response);
+        } catch (final RuntimeException e) {
+            callback.failed(e);
+            return;
+        } finally {
+            release(response);
+        }
+        callback.completed(res);
+    }
+
+
+    /**
+     * Builds the response of EstablishPACEChannel.
+     *
+     * @param miniPACERes - result of PACE-light or null if it failed
+     * @param response    - buffer receiving the response data
+     * @return status word
+     */
+    private int establishPACEChannel(final byte[] miniPACERes, final ByteBuffer response) {
+        if (miniPACERes == null) {
+            return 0x6985;
+        }
+
+        //rpdu = miniPACERes;
+//        if(this.lastSW() == 0x9000) { // doesn't work here, because sw is not set, comes from HAL-SE
+
+        final TLVCursor res = new TLVCursor(miniPACERes);
+        final int idOfs = res.find(0x86) ? res.valueOffset() : 0;
+        final int idLen = res.valueLength();
+        res.reset(miniPACERes, 0, miniPACERes.length);
+        final int carOfs = res.find(0x87) ? res.valueOffset() : 0;
+        final int carLen = res.valueLength();
+
+        // paceOutput | CAR | length of previous CAR | length of IDPICC little-endian | IDPICC
+        final byte[] paceOutput = this.paceOutput;
+        final int dataLen = paceOutput.length + carLen + 3 + idLen;
+        response.putInt(0).put((byte) dataLen).put((byte) (dataLen >> 8));
+        response.put(paceOutput);
+        response.put(miniPACERes, carOfs, carLen);
+        response.put((byte) 0x00).put((byte) 0x20).put((byte) 0x00);
+        response.put(miniPACERes, idOfs, idLen);
+//        } else {
+//            rpdu = new byte[]{0x01, 0x00, 0x20, (byte) 0xF0}; // status, little-endian, abort
+//        }
+
+        return 0x9000;
+    }
+
+
+    /**
+     * Compares the content of the buffer at the given absolute offset with the given pattern.
+     */
+    private static boolean matches(final ByteBuffer buf, final int ofs, final byte[] pattern) {
+        if (buf.limit() - ofs < pattern.length) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            if (buf.get(ofs + i) != pattern[i]) {
+                return false;
             }
-        } catch (final Exception e) {
-            e.printStackTrace();
-            return new byte[]{0x6F, (byte) 0xFF};
         }
+        return true;
+    }
+
 
-        return ArrayTool.concat(rpdu, new byte[]{(byte) (sw >> 8 & 0xFF), (byte) (sw & 0xFF)});
+    private byte[] miniPACE(final byte[] secret) {
+        final PACELight pace = startPACE(secret);
+        if (pace == null) {
+            return null;
+        }
+
+        try {
+            final byte[] ceCommand = pace.secondCommand(tp.exchange(pace.firstCommand()));
+            if (ceCommand == null) {
+                return null;
+            }
+            return pace.result(tp.exchange(ceCommand));
+        } catch (final GeneralSecurityException e) {
+            Log.log(Log.Level.WARN, TAG, "PACE-light failed", e);
+        }
+
+        return PACE_ERROR;
     }
 
 
-    private byte[] miniPACE() {
+    /**
+     * Takes the cached session of the channel if it was established with the given secret. A session established with
+     * another secret is dropped, as PACE-light replaces it on the secure element anyway.
+     *
+     * @param secret - secret of the caller
+     * @return the session or null
+     */
+    private SessionCache.Session takeSession(final byte[] secret) {
+        final SessionCache cache = sessions;
+        final SessionCache.Session session = cache != null && secret != null ? cache.take(channel) : null;
+        if (session != null && !session.isBoundTo(secret)) {
+            Log.log(Log.Level.INFO, TAG, "session not resumed: established with another secret");
+            session.destroy();
+            return null;
+        }
+        return session;
+    }
+
+
+    /**
+     * Hands the session of this instance over to the cache, or destroys its keys if there is no cache.
+     */
+    private void releaseSession() {
+        final SessionCache.Session session = current;
+        current = null;
+        if (session != null) {
+            final SessionCache cache = sessions;
+            if (cache != null) {
+                cache.put(session);
+            } else {
+                session.destroy();
+            }
+        }
+    }
+
+
+    /**
+     * Resumes a cached session if the secure element answers the protected request for the CA reference.
+     *
+     * @param session  - session taken from the cache and resumed on {@link #plainTP}
+     * @param response - response to {@link #GET_CA_REFERENCE} sent through the session
+     * @return result like {@link PACELight#result(Response)} or null if the session was dropped
+     */
+    private byte[] resumePACE(final SessionCache.Session session, final Response response) {
+        final TLVCursor ceres = response.cursor();
+        if (!response.isOK() || !ceres.find(0x7C) || !ceres.enter().find(0x87)) {
+            Log.log(Log.Level.INFO, TAG, "session not resumed: " + response);
+            session.destroy();
+            return null;
+        }
+
+        tp = session.getTransport();
+        current = session;
+        return TLV.concat(TLV.build(0x80, Hex.x("9000")), TLV.build(0x86, session.getIDPICC()),
+                TLV.build(0x87, ceres.value()), Hex.x("9000"));
+    }
+
+
+    /**
+     * Fetches the secret from the callback handler.
+     *
+     * @return the secret or null if none is available
+     */
+    private byte[] secret() {
         if (cbh == null) {
-            System.err.println("OMAPI-TP: miniPACE: no callback handler for secret registered.");
+            Log.log(Log.Level.ERROR, TAG, "miniPACE: no callback handler for secret registered.");
+            return null;
         }
 
-        System.out.println("OMAPI-TP: using callback handler: " + cbh.getClass() + " / " + cbh.toString());
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.log(Log.Level.DEBUG, TAG, "using callback handler: " + cbh.getClass() + " / " + cbh.toString());
+        }
         final byte[] ulk = cbh.getSecret();
         if (ulk == null) {
-            System.out.println("OMAPI-TP: secret is null, aborting and returning with null.");
+            Log.log(Log.Level.DEBUG, TAG, "secret is null, aborting and returning with null.");
             return null;
         }
 
-        System.out.println("OMAPI-TP: got secret: " + Hex.x(ulk));
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.log(Log.Level.DEBUG, TAG, "got secret: <" + ulk.length + " bytes redacted>");
+        }
+        return ulk;
+    }
 
-        try {
-            final SecretKeySpec pinKey = new SecretKeySpec(ulk, "AES");
 
+    /**
+     * @param secret - secret from {@link #secret()}
+     * @return PACE-light run or null if no secret is available
+     */
+    private PACELight startPACE(final byte[] secret) {
+        return secret != null ? new PACELight(secret) : null;
+    }
+
+
+    private byte[] KDF(final MessageDigest md, final byte[] secret, final int counter, final int limit) {
+        // Temporary storage for key derivation.
+        final ByteBuffer temp = ByteBuffer.allocate(secret.length + (counter != -1 ? 4 : 0));
+        temp.order(ByteOrder.BIG_ENDIAN);
+        temp.put(secret);
+        if (counter != -1) {
+            temp.putInt(counter);
+        }
+        return ArrayTool.sub(md.digest(temp.array()), 0, limit);
+    }
+
+    @Override
+    public Object getParent() {
+        return null;
+    }
+
+    @Override
+    public int transmit(final ByteBuffer command, final ByteBuffer response) {
+        return process(command, response);
+    }
+
+    /**
+     * Releases the secure messaging session into the session cache, if there is one, where it can be resumed with
+     * the same secret.
+     */
+    @Override
+    public void close() {
+        releaseSession();
+        tp = plainTP;
+    }
+
+
+    public interface CallbackHandler {
+        byte[] getSecret();
+    }
+
+
+    /**
+     * Emulation of a command, registered for its class and instruction byte by
+     * {@link OMAPITP#setCommandHandler(byte, byte, CommandHandler)}.
+     */
+    public interface CommandHandler {
+
+        /**
+         * Processes the command. The APDU is read with absolute positions and must not be consumed, as unhandled
+         * commands are passed on to the secure element unchanged.
+         *
+         * @param apdu     - command APDU between position and limit
+         * @param response - buffer receiving the response data
+         * @return status word or -1 to pass the command on to the secure element
+         */
+        int process(ByteBuffer apdu, ByteBuffer response);
+    }
+
+
+    /**
+     * One run of PACE-light, split into its steps so it can be driven by blocking and asynchronous transmits.
+     */
+    private final class PACELight {
+        private final SecretKeySpec pinKey;
+        private final byte[] hsRandom = new byte[32];
+        private byte[] IDPICC;
+        private ISOSMTransport sesmTP;
+
+
+        PACELight(final byte[] ulk) {
+            pinKey = new SecretKeySpec(ulk, "AES");
+        }
+
+
+        /**
+         * @return the command sending the encrypted host random
+         */
+        byte[] firstCommand() throws GeneralSecurityException {
             final Cipher c = Cipher.getInstance("AES/CBC/NoPadding");
             c.init(Cipher.ENCRYPT_MODE, pinKey, new IvParameterSpec(new byte[16]));
 
-            final byte[] hsRandom = new byte[32];
             new SecureRandom().nextBytes(hsRandom);
             byte[] hsRandEnc = c.doFinal(hsRandom, 0, hsRandom.length);
             hsRandEnc = TLV.build(0x7C, TLV.build(0x81, hsRandEnc));
 
-            byte[] plRes = tp.transmit(Hex.fromString(
-                    "80CE0000" + Hex.byteToString((byte) hsRandEnc.length) + Hex.toString(hsRandEnc) + "00"));
+            final byte[] command = new byte[5 + hsRandEnc.length + 1];
+            System.arraycopy(GET_CA_REFERENCE, 0, command, 0, GET_CA_REFERENCE.length);
+            command[4] = (byte) hsRandEnc.length;
+            System.arraycopy(hsRandEnc, 0, command, 5, hsRandEnc.length);
+            return command;
+        }
 
-            // TODO: lastSW != 0x9000 -> error
 
-            plRes = TLV.get(TLV.get(plRes, (byte) 0x7C), (byte) 0x82);
+        /**
+         * Derives the session keys from the card random and switches to secure messaging.
+         *
+         * @param plResponse - response to the first command
+         * @return the command fetching the CA reference or null if PACE-light failed
+         */
+        byte[] secondCommand(final Response plResponse) throws GeneralSecurityException {
+            if (!plResponse.isOK()) {
+                Log.log(Log.Level.INFO, TAG, "PACE-light failed: " + plResponse);
+                return null;
+            }
+
+            final TLVCursor dad = plResponse.cursor();
+            if (!dad.find(0x7C) || !dad.enter().find(0x82)) {
+                Log.log(Log.Level.INFO, TAG, "PACE-light failed: no encrypted card random");
+                return null;
+            }
+            byte[] plRes = dad.value();
 
-            final byte[] IDPICC = plRes.clone(); // encrypted card random is IDPICC
+            IDPICC = plRes.clone(); // encrypted card random is IDPICC
 
-            System.out.println("PL-RES 1: " + Hex.toString(IDPICC));
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.log(Log.Level.DEBUG, TAG, "IDPICC: " + Hex.toString(IDPICC));
+            }
 
             //
+            final Cipher c = Cipher.getInstance("AES/CBC/NoPadding");
             final MessageDigest mdSHA256 = MessageDigest.getInstance("SHA-256");
             c.init(Cipher.DECRYPT_MODE, pinKey, new IvParameterSpec(new byte[16]));
             mdSHA256.update(c.doFinal(plRes));
             plRes = mdSHA256.digest(hsRandom);
 
-            System.out.println("PL-RES 2: " + Hex.toString(IDPICC));
-
-            System.out.println("PACE-light secret2: " + Hex.toString(plRes));
-
-            System.out.println("SE-TP parent: " + tp + " / " + tp.getParent());
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.log(Log.Level.DEBUG, TAG, "PACE-light secret derived, SE-TP parent: " + tp + " / " + tp.getParent());
+            }
 
             final MessageDigest mdSHA1 = MessageDigest.getInstance("SHA-1");
-            final ISOSMTransport sesmTP = new ISOSMTransport(tp);
-            sesmTP.setupKeys(KDF(mdSHA1, plRes, 1, 16), KDF(mdSHA1, plRes, 2, 16));
+            final byte[] kEnc = KDF(mdSHA1, plRes, 1, 16);
+            final byte[] kMac = KDF(mdSHA1, plRes, 2, 16);
+            sesmTP = new ISOSMTransport(tp);
+            sesmTP.setupKeys(kEnc, kMac);
+            ArrayTool.overwrite(kEnc);
+            ArrayTool.overwrite(kMac);
+            ArrayTool.overwrite(plRes);
             tp = sesmTP;
 
-            byte[] ceres = tp.transmit(Hex.fromString("80CE0000"));
-            ceres = TLV.get(ceres, (byte) 0x7C);
+            return Hex.fromString("80CE0000");
+        }
+
 
-            final List<byte[]> CAReferences = new ArrayList<byte[]>();
-            final byte[] CARef = TLV.get(ceres, (byte) 0x87);
-            if (CARef != null) {
-                CAReferences.add(CARef);
+        /**
+         * Builds the result from the CA reference. The session is only kept if the response carries one.
+         *
+         * @param ceResponse - response to the second command
+         * @return result of PACE-light or null if it failed
+         */
+        byte[] result(final Response ceResponse) {
+            final TLVCursor ceres = ceResponse.cursor();
+            if (!ceResponse.isOK() || !ceres.find(0x7C) || !ceres.enter().find(0x87)) {
+                Log.log(Log.Level.INFO, TAG, "PACE-light failed: " + ceResponse);
+                tp = plainTP;
+                sesmTP.destroyKeys();
+                return null;
             }
             // CARef = TLV.get(ceres, (byte) 0x88);
-            // if (CARef != null) {
-            // this.CAReferences.add(CARef);
-            // }
+            final byte[] result = TLV.concat(TLV.build(0x80, Hex.x("9000")), TLV.build(0x86, IDPICC),
+                    TLV.build(0x87, ceres.value()), Hex.x("9000"));
 
-            return TLV.concat(TLV.build(0x80, Hex.x("9000")), TLV.build(0x86, IDPICC), TLV.build(0x87, CAReferences.get(0)), Hex.x("9000"));
-        } catch (final GeneralSecurityException e) {
-            e.printStackTrace();
+            final SessionCache cache = sessions;
+            if (cache != null) {
+                final byte[] secret = pinKey.getEncoded();
+                current = cache.session(channel, secret, IDPICC, sesmTP);
+                ArrayTool.overwrite(secret);
+            }
+            return result;
         }
-
-        return Hex.x("80026985860087006985");
     }
 
 
-    private byte[] KDF(final MessageDigest md, final byte[] secret, final int counter, final int limit) {
-        // Temporary storage for key derivation.
-        final ByteBuffer temp = ByteBuffer.allocate(secret.length + (counter != -1 ? 4 : 0));
-        temp.order(ByteOrder.BIG_ENDIAN);
-        temp.put(secret);
-        if (counter != -1) {
-            temp.putInt(counter);
+    /**
+     * Records the latency of an asynchronously processed command.
+     */
+    private static final class TimedCallback implements ResponseCallback {
+        private final int ins;
+        private final long started;
+        private final ResponseCallback callback;
+
+
+        TimedCallback(final int ins, final long started, final ResponseCallback callback) {
+            this.ins = ins;
+            this.started = started;
+            this.callback = callback;
+        }
+
+
+        @Override
+        public void completed(final Response response) {
+            Metrics.record(Metrics.Layer.OMAPITP, ins, response.sw(), started);
+            callback.completed(response);
+        }
+
+
+        @Override
+        public void failed(final Throwable cause) {
+            Metrics.record(Metrics.Layer.OMAPITP, ins, Response.NO_RESPONSE, started);
+            callback.failed(cause);
         }
-        return ArrayTool.sub(md.digest(temp.array()), 0, limit);
     }
 
-    @Override
-    public Object getParent() {
-        return null;
+
+    /**
+     * Reader commands FF 9A as mapped from CCID / PC/SC part 10.
+     */
+    private final class ReaderCommands implements CommandHandler {
+        @Override
+        public int process(final ByteBuffer apdu, final ByteBuffer response) {
+            final int ofs = apdu.position();
+
+            switch ((apdu.get(ofs + 2) & 0xFF) << 8 | apdu.get(ofs + 3) & 0xFF) {
+                case 0x0101: // get vendor
+                    response.put(VENDOR);
+                    break;
+                case 0x0103: // get product
+                    response.put(PRODUCT);
+                    break;
+                case 0x0401: // GetReaderPACE Capabilities
+                    response.put((byte) 0x03);
+                    break;
+                case 0x0402: // EstablishPACEChannel
+                    return establishPACEChannel(response);
+                case 0x0403: // DestroyPACEChannel
+                    // reset transport provider
+                    tp = plainTP;
+                    if (current != null) {
+                        current.destroy();
+                        current = null;
+                    }
+                    break;
+                default: // get firmware, get driver, VerifyPIN / ModifyPIN
+                    // NOP
+                    break;
+            }
+
+            return 0x9000;
+        }
     }
 
-    @Override
-    public byte[] transmit(final byte[] apdu) {
-        byte[] rpdu = process(apdu);
 
-        if (rpdu != null && rpdu.length >= 2) {
-            lastSW = ((rpdu[rpdu.length - 2] & 0xFF) << 8) + (rpdu[rpdu.length - 1] & 0xFF);
-            rpdu = ArrayTool.sub(rpdu, 0, rpdu.length - 2);
+    /**
+     * SELECT of the emulated files, all other files are selected on the secure element.
+     */
+    private final class Select implements CommandHandler {
+        @Override
+        public int process(final ByteBuffer apdu, final ByteBuffer response) {
+            final int ofs = apdu.position();
+            final int len = apdu.remaining();
+            final int p1p2 = (apdu.get(ofs + 2) & 0xFF) << 8 | apdu.get(ofs + 3) & 0xFF;
+
+            if (len == 14 && p1p2 == 0x040C && matches(apdu, ofs + 4, DF_EID)) { // select DF_EID
+                currentEF = null;
+            } else if (len == 5 && p1p2 == 0x0000 && apdu.get(ofs + 4) == 0) { // select MF
+                currentEF = null;
+            } else if (len == 7 && apdu.get(ofs + 4) == 2) {
+                final int fid = (apdu.get(ofs + 5) & 0xFF) << 8 | apdu.get(ofs + 6) & 0xFF;
+                final VirtualFileSystem.EF ef = p1p2 == 0x020C ? files.file(fid) : null;
+
+                if ((p1p2 == 0x0000 || p1p2 == 0x000C) && fid == 0x3F00) { // select MF
+                    currentEF = null;
+                } else if (ef != null) { // select emulated EF
+                    currentEF = ef;
+                } else {
+                    currentEF = null;
+                    return -1;
+                }
+            } else {
+                currentEF = null;
+                return -1;
+            }
+
+            return 0x9000;
         }
-        return rpdu;
     }
 
-    @Override
-    public int lastSW() {
-        return lastSW;
+
+    /**
+     * READ BINARY of an emulated file, either the current one or the one given by a short file identifier in P1.
+     * Short and extended Le are accepted, so a file of up to 64 KB is read with a single command. Commands for files on
+     * the secure element are passed on.
+     */
+    private final class ReadBinary implements CommandHandler {
+        @Override
+        public int process(final ByteBuffer apdu, final ByteBuffer response) {
+            final int pos = apdu.position();
+            final int len = apdu.remaining();
+            final int ne = len == 5 ? ne(len, apdu.get(pos + 4), (byte) 0, (byte) 0)
+                    : len == 7 ? ne(len, apdu.get(pos + 4), apdu.get(pos + 5), apdu.get(pos + 6)) : -1;
+            if (ne < 0) {
+                return -1;
+            }
+            final byte p1 = apdu.get(pos + 2);
+            final VirtualFileSystem.EF ef = file(p1);
+            if (ef == null) {
+                return -1;
+            }
+            return ef.read(offset(p1, apdu.get(pos + 3)), ne, response);
+        }
+
+
+        /**
+         * @return response served from the content of the emulated file or null to pass the command on
+         */
+        Response read(final byte[] apdu) {
+            final int len = apdu.length;
+            final int ne = len == 5 ? ne(len, apdu[4], (byte) 0, (byte) 0)
+                    : len == 7 ? ne(len, apdu[4], apdu[5], apdu[6]) : -1;
+            if (ne < 0) {
+                return null;
+            }
+            final VirtualFileSystem.EF ef = file(apdu[2]);
+            return ef != null ? ef.read(offset(apdu[2], apdu[3]), ne) : null;
+        }
+
+
+        /**
+         * Returns the file addressed by P1, selecting it if given by short file identifier.
+         */
+        private VirtualFileSystem.EF file(final byte p1) {
+            if ((p1 & 0x80) != 0) {
+                currentEF = files.fileBySFI(p1 & 0x1F);
+            }
+            return currentEF;
+        }
+
+
+        private int offset(final byte p1, final byte p2) {
+            return (p1 & 0x80) != 0 ? p2 & 0xFF : (p1 & 0x7F) << 8 | p2 & 0xFF;
+        }
+
+
+        /**
+         * Returns Ne of a case 2 command with short or extended Le, or -1 for any other case.
+         */
+        private int ne(final int len, final byte le1, final byte le2, final byte le3) {
+            if (len == 5) {
+                return le1 == 0 ? 256 : le1 & 0xFF;
+            }
+            if (le1 != 0) {
+                return -1;
+            }
+            final int ne = (le2 & 0xFF) << 8 | le3 & 0xFF;
+            return ne == 0 ? 65536 : ne;
+        }
     }
 
-    @Override
-    public void close() {
+
+    /**
+     * READ BINARY with odd instruction byte of an emulated file, 00 B1 P1 P2 Lc 54 L offset Le. P1-P2 of 0000 is the
+     * current file, values up to 001F a short file identifier and all others a file identifier. The offset is given
+     * by the data object 54 and the data is returned in the data object 53, as much as fits into Ne. Commands for files
+     * on the secure element are passed on.
+     */
+    private final class ReadBinaryOdd implements CommandHandler {
+        @Override
+        public int process(final ByteBuffer apdu, final ByteBuffer response) {
+            final int pos = apdu.position();
+            final int len = apdu.remaining();
+            if (len < 8) {
+                return -1;
+            }
+
+            // case 4 only, short or extended
+            final int dataOfs;
+            final int lc;
+            final int ne;
+            if (apdu.get(pos + 4) != 0) {
+                dataOfs = 5;
+                lc = apdu.get(pos + 4) & 0xFF;
+                final int le = apdu.get(pos + len - 1) & 0xFF;
+                ne = le == 0 ? 256 : le;
+                if (len != 5 + lc + 1) {
+                    return -1;
+                }
+            } else {
+                dataOfs = 7;
+                lc = (apdu.get(pos + 5) & 0xFF) << 8 | apdu.get(pos + 6) & 0xFF;
+                final int le = (apdu.get(pos + len - 2) & 0xFF) << 8 | apdu.get(pos + len - 1) & 0xFF;
+                ne = le == 0 ? 65536 : le;
+                if (len != 7 + lc + 2) {
+                    return -1;
+                }
+            }
+
+            final VirtualFileSystem.EF ef = file((apdu.get(pos + 2) & 0xFF) << 8 | apdu.get(pos + 3) & 0xFF);
+            if (ef == null) {
+                return -1;
+            }
+
+            // offset data object with up to three bytes
+            final int ofsLen = lc - 2;
+            if (apdu.get(pos + dataOfs) != 0x54 || ofsLen < 1 || ofsLen > 3
+                    || (apdu.get(pos + dataOfs + 1) & 0xFF) != ofsLen) {
+                return 0x6A80;
+            }
+            int ofs = 0;
+            for (int i = 0; i < ofsLen; i++) {
+                ofs = ofs << 8 | apdu.get(pos + dataOfs + 2 + i) & 0xFF;
+            }
+
+            final int available = ef.length() - ofs;
+            if (available < 0) {
+                return 0x6B00;
+            }
+            // largest value whose data object fits into Ne
+            final int fit = ne - 2 < 0x80 ? ne - 2 : ne - 3 < 0x100 ? ne - 3 : ne - 4;
+            if (fit < 0) {
+                return 0x6700;
+            }
+            final int n = Math.min(fit, available);
+
+            response.put((byte) 0x53);
+            if (n >= 0x100) {
+                response.put((byte) 0x82).put((byte) (n >> 8));
+            } else if (n >= 0x80) {
+                response.put((byte) 0x81);
+            }
+            response.put((byte) n);
+            ef.read(ofs, n, response);
+            return n < fit ? 0x6282 : 0x9000;
+        }
+
+
+        /**
+         * Returns the file addressed by P1-P2, selecting it.
+         */
+        private VirtualFileSystem.EF file(final int p1p2) {
+            if (p1p2 > 0x1F) {
+                currentEF = files.file(p1p2);
+            } else if (p1p2 != 0) {
+                currentEF = files.fileBySFI(p1p2);
+            }
+            return currentEF;
+        }
     }
 
 
-    public interface CallbackHandler {
-        byte[] getSecret();
+    /**
+     * MANAGE SECURITY ENVIRONMENT for PACE, 0022C1A4 12 80 0A 04007F00070202040202830103 84010D
+     */
+    private static final class ManageSecurityEnvironment implements CommandHandler {
+        @Override
+        public int process(final ByteBuffer apdu, final ByteBuffer response) {
+            final int ofs = apdu.position();
+            if (apdu.get(ofs + 2) == (byte) 0xC1 && apdu.get(ofs + 3) == (byte) 0xA4) {
+                // NOP for now
+                return 0x9000;
+            }
+            return -1;
+        }
     }
 }
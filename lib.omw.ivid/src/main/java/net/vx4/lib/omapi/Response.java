@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Response to a command APDU: the response data as slice of an array and the status word. A response is immutable
+ * and carries its own status word, so it can be passed between threads, unlike the state behind
+ * {@link TransportProvider#lastSW()}.
+ *
+ * @version $Id$
+ */
+public final class Response {
+
+    /**
+     * Status word of a response which hasn't been received.
+     */
+    public static final int NO_RESPONSE = -1;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final byte[] buf;
+    private final int offset;
+    private final int length;
+    private final int sw;
+
+
+    /**
+     * Creates a response on a slice of the given array, which is not copied and must not be changed afterwards.
+     *
+     * @param buf    - array holding the response data
+     * @param offset - offset of the response data
+     * @param length - length of the response data
+     * @param sw     - status word or {@link #NO_RESPONSE}
+     */
+    public Response(final byte[] buf, final int offset, final int length, final int sw) {
+        if (offset < 0 || length < 0 || offset + length > buf.length) {
+            throw new IndexOutOfBoundsException("slice " + offset + "+" + length + " of " + buf.length);
+        }
+        this.buf = buf;
+        this.offset = offset;
+        this.length = length;
+        this.sw = sw;
+    }
+
+
+    /**
+     * Creates a response without data.
+     *
+     * @param sw - status word or {@link #NO_RESPONSE}
+     */
+    public Response(final int sw) {
+        this(EMPTY, 0, 0, sw);
+    }
+
+
+    /**
+     * Splits a response APDU into data and status word.
+     *
+     * @param rpdu - response APDU including the status word, or null
+     * @return the response, without status word if <code>rpdu</code> is null or shorter than 2 bytes
+     */
+    public static Response of(final byte[] rpdu) {
+        if (rpdu == null) {
+            return new Response(NO_RESPONSE);
+        }
+        if (rpdu.length < 2) {
+            return new Response(rpdu, 0, rpdu.length, NO_RESPONSE);
+        }
+        return new Response(rpdu, 0, rpdu.length - 2,
+                (rpdu[rpdu.length - 2] & 0xFF) << 8 | rpdu[rpdu.length - 1] & 0xFF);
+    }
+
+
+    /**
+     * @return status word or {@link #NO_RESPONSE}
+     */
+    public int sw() {
+        return sw;
+    }
+
+
+    public int sw1() {
+        return sw >> 8 & 0xFF;
+    }
+
+
+    public int sw2() {
+        return sw & 0xFF;
+    }
+
+
+    /**
+     * @return true if the status word is 9000
+     */
+    public boolean isOK() {
+        return sw == 0x9000;
+    }
+
+
+    /**
+     * @return true if a status word has been received
+     */
+    public boolean isReceived() {
+        return sw != NO_RESPONSE;
+    }
+
+
+    /**
+     * @return length of the response data
+     */
+    public int length() {
+        return length;
+    }
+
+
+    /**
+     * @param index - index in the response data
+     * @return byte of the response data
+     */
+    public byte get(final int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + " of " + length);
+        }
+        return buf[offset + index];
+    }
+
+
+    /**
+     * Copies the response data into the given array.
+     *
+     * @param dst - destination array
+     * @param ofs - offset in the destination array
+     * @return number of bytes copied
+     */
+    public int copyTo(final byte[] dst, final int ofs) {
+        System.arraycopy(buf, offset, dst, ofs, length);
+        return length;
+    }
+
+
+    /**
+     * Puts the response data into the given buffer.
+     *
+     * @param dst - destination buffer, position is advanced by the length of the data
+     */
+    public void copyTo(final ByteBuffer dst) {
+        dst.put(buf, offset, length);
+    }
+
+
+    /**
+     * @return copy of the response data
+     */
+    public byte[] data() {
+        final byte[] data = new byte[length];
+        System.arraycopy(buf, offset, data, 0, length);
+        return data;
+    }
+
+
+    /**
+     * @return cursor over the <em>BER-TLV</em> objects of the response data, without copying them
+     */
+    public TLVCursor cursor() {
+        return new TLVCursor(buf, offset, length);
+    }
+
+
+    /**
+     * @return response APDU, the response data followed by the status word if received
+     */
+    public byte[] toBytes() {
+        if (sw == NO_RESPONSE) {
+            return data();
+        }
+        final byte[] rpdu = new byte[length + 2];
+        System.arraycopy(buf, offset, rpdu, 0, length);
+        rpdu[length] = (byte) (sw >> 8);
+        rpdu[length + 1] = (byte) sw;
+        return rpdu;
+    }
+
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(length * 2 + 5);
+        Hex.append(sb, buf, offset, length).append(' ');
+        return sb.append(sw == NO_RESPONSE ? "----" : Hex.shortToString(sw)).toString();
+    }
+}
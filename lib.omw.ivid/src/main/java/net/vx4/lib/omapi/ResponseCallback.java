@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+/**
+ * Receives the outcome of an asynchronous transmit. Exactly one of the two methods is called once, either on the
+ * calling thread if the response is available immediately or on a thread of the executor sending the APDU.
+ * Implementations should return quickly as they may run on a thread shared by many sessions.
+ *
+ * @version $Id$
+ * @see AbstractTransportProvider#transmit(byte[], ResponseCallback)
+ */
+public interface ResponseCallback {
+
+    /**
+     * Called with the response of the transmitted APDU.
+     *
+     * @param response - response data and status word, status word {@link Response#NO_RESPONSE} if none was received
+     */
+    void completed(Response response);
+
+
+    /**
+     * Called if the APDU couldn't be transmitted.
+     *
+     * @param cause - the failure
+     */
+    void failed(Throwable cause);
+}
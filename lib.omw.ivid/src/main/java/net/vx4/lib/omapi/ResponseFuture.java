@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Callback turning an asynchronous transmit into a {@link Future}. Cancelling only releases waiting threads, the APDU
+ * itself can't be taken back once handed to the transport provider.
+ *
+ * @version $Id$
+ */
+public final class ResponseFuture implements Future<Response>, ResponseCallback {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile Response response;
+    private volatile Throwable cause;
+    private volatile boolean cancelled = false;
+
+
+    @Override
+    public synchronized void completed(final Response response) {
+        if (done.getCount() > 0) {
+            this.response = response;
+            done.countDown();
+        }
+    }
+
+
+    @Override
+    public synchronized void failed(final Throwable cause) {
+        if (done.getCount() > 0) {
+            this.cause = cause;
+            done.countDown();
+        }
+    }
+
+
+    @Override
+    public synchronized boolean cancel(final boolean mayInterruptIfRunning) {
+        if (done.getCount() == 0) {
+            return false;
+        }
+        cancelled = true;
+        done.countDown();
+        return true;
+    }
+
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+
+    @Override
+    public Response get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+
+    @Override
+    public Response get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+
+    private Response result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (cause != null) {
+            throw new ExecutionException(cause);
+        }
+        return response;
+    }
+}
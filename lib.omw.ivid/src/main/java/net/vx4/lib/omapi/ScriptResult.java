@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Responses of an {@link APDUScript}, with the data of all commands run in one contiguous array. The data of a command
+ * is written there directly by the provider receiving it, so the responses returned by {@link #response(int)} are views
+ * without copying.
+ *
+ * @version $Id$
+ */
+public final class ScriptResult {
+
+    private final int commands;
+    private final int[] sw;
+    private final int[] offset;
+    private final int[] length;
+    private ByteBuffer data;
+    private int size = 0;
+    private boolean failedLast = false;
+
+
+    /**
+     * @param commands - number of commands of the script
+     * @param capacity - initial size of the data array
+     */
+    ScriptResult(final int commands, final int capacity) {
+        this.commands = commands;
+        this.sw = new int[commands];
+        this.offset = new int[commands];
+        this.length = new int[commands];
+        this.data = ByteBuffer.allocate(capacity);
+    }
+
+
+    /**
+     * @return number of commands run, including one that returned an unexpected status word
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * @return whether all commands of the script were run with an expected status word
+     */
+    public boolean isComplete() {
+        return size == commands && !failedLast;
+    }
+
+
+    /**
+     * @return index of the command that returned an unexpected status word or -1
+     */
+    public int failed() {
+        return failedLast ? size - 1 : -1;
+    }
+
+
+    /**
+     * @param i - index of the command
+     * @return status word of the command or {@link Response#NO_RESPONSE} if none was received
+     */
+    public int sw(final int i) {
+        return sw[check(i)];
+    }
+
+
+    /**
+     * @param i - index of the command
+     * @return offset of the data of the command in {@link #array()}
+     */
+    public int offset(final int i) {
+        return offset[check(i)];
+    }
+
+
+    /**
+     * @param i - index of the command
+     * @return length of the data of the command
+     */
+    public int length(final int i) {
+        return length[check(i)];
+    }
+
+
+    /**
+     * @param i - index of the command
+     * @return response of the command, a view on {@link #array()}
+     */
+    public Response response(final int i) {
+        check(i);
+        return length[i] > 0 ? new Response(data.array(), offset[i], length[i], sw[i]) : new Response(sw[i]);
+    }
+
+
+    /**
+     * @return the array holding the data of all commands run, one after the other
+     */
+    public byte[] array() {
+        return data.array();
+    }
+
+
+    /**
+     * @return total length of the data in {@link #array()}
+     */
+    public int dataLength() {
+        return data.position();
+    }
+
+
+    @Override
+    public String toString() {
+        return "ScriptResult[" + size + "/" + commands + ", " + data.position() + " bytes"
+                + (size > 0 ? ", last SW " + Hex.shortToString((short) sw[size - 1]) : "") + "]";
+    }
+
+
+    /**
+     * Returns the buffer receiving the data of the next command, with at least the given space remaining.
+     */
+    ByteBuffer buffer(final int space) {
+        if (data.remaining() < space) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(data.capacity() * 2, data.position() + space));
+            data.flip();
+            grown.put(data);
+            data = grown;
+        }
+        return data;
+    }
+
+
+    /**
+     * Records the next command, whose data was written to the buffer from the given position on.
+     *
+     * @return whether the status word continues the script
+     */
+    boolean add(final APDUScript script, final int start, final int status) {
+        final int i = size++;
+        sw[i] = status;
+        offset[i] = start;
+        length[i] = data.position() - start;
+        failedLast = !script.isExpected(i, status);
+        return !failedLast;
+    }
+
+
+    private int check(final int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("response " + i + " of " + size);
+        }
+        return i;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Secure messaging sessions established by PACE-light, kept for resumption by a later EstablishPACEChannel on the same
+ * channel, e.g. from a client that reconnected. A session is stored with the card identity IDPICC it was established
+ * with and is valid for a fixed time from its establishment; resuming it doesn't extend that time.
+ * <p>
+ * The cache only holds sessions no longer in use: {@link OMAPITP} puts its session in when it is closed or runs
+ * EstablishPACEChannel again, and takes it out when it resumes it. A cached session holds the keys and the send
+ * sequence counter only; it is resumed with a new secure messaging transport on the provider stack of the resuming
+ * {@link OMAPITP}, which may be a different one on the same channel. Every session is bound to the secret it was
+ * established with by a keyed hash over the IDPICC, so it is only resumed for a caller presenting the same secret.
+ * {@link OMAPITP} then checks with one protected command that the secure element still holds the same session, before
+ * returning the stored IDPICC instead of running PACE-light again. A session that isn't resumed is dropped. The keys
+ * of dropped, expired and evicted sessions are overwritten, the least recently released session is evicted when the
+ * cache is full.
+ * <p>
+ * The cache is thread safe and can be shared by the {@link OMAPITP} instances of one secure element.
+ *
+ * @version $Id$
+ */
+public final class SessionCache {
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final Map<Object, Session> entries;
+
+
+    /**
+     * @param maxEntries - maximum number of sessions kept, at least 1
+     * @param ttl        - time a session can be resumed after it was established
+     * @param unit       - unit of the time
+     */
+    public SessionCache(final int maxEntries, final long ttl, final TimeUnit unit) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maximum number of sessions must be at least 1");
+        }
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("time to live must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<Object, Session>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Object, Session> eldest) {
+                if (size() > SessionCache.this.maxEntries) {
+                    eldest.getValue().destroy();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+
+    /**
+     * @return number of sessions kept, including expired ones not yet removed
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+
+    /**
+     * Removes all sessions and overwrites their keys.
+     */
+    public synchronized void clear() {
+        for (final Session e : entries.values()) {
+            e.destroy();
+        }
+        entries.clear();
+    }
+
+
+    /**
+     * Removes the expired sessions and overwrites their keys.
+     *
+     * @return number of sessions removed
+     */
+    public synchronized int purge() {
+        final long now = System.nanoTime();
+        int removed = 0;
+        for (final Iterator<Session> it = entries.values().iterator(); it.hasNext(); ) {
+            final Session e = it.next();
+            if (e.isExpired(now)) {
+                e.destroy();
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+
+    /**
+     * Creates a newly established session, which is kept by its owner until it is released with
+     * {@link #put(Session)}. The time to live starts now.
+     *
+     * @param channel   - identity of the channel, e.g. the OMAPI channel
+     * @param secret    - secret the session was established with, not kept
+     * @param idPICC    - card identity returned by PACE-light, copied
+     * @param transport - the secure messaging transport of the owner
+     * @return the session
+     */
+    Session session(final Object channel, final byte[] secret, final byte[] idPICC, final ISOSMTransport transport) {
+        final byte[] id = idPICC.clone();
+        return new Session(channel, id, bind(secret, id), transport, System.nanoTime() + ttlNanos);
+    }
+
+
+    /**
+     * Stores a session released by its owner, replacing the previous one of its channel. Only the keys and the send
+     * sequence counter are kept, the transport of the owner is ended. The cache owns the session from now on.
+     */
+    synchronized void put(final Session session) {
+        final Session old = entries.remove(session.channel);
+        if (old != null && old != session) {
+            old.destroy();
+        }
+        if (!session.suspend() || session.isExpired(System.nanoTime())) {
+            session.destroy();
+            return;
+        }
+        entries.put(session.channel, session);
+    }
+
+
+    /**
+     * Takes the session of a channel out of the cache, so it isn't resumed twice. The caller owns the session and has
+     * to check {@link Session#isBoundTo(byte[])} before resuming it.
+     *
+     * @param channel - identity of the channel
+     * @return the session or null if there is none or it expired
+     */
+    synchronized Session take(final Object channel) {
+        final Session e = entries.remove(channel);
+        if (e != null && e.isExpired(System.nanoTime())) {
+            e.destroy();
+            return null;
+        }
+        return e;
+    }
+
+
+    /**
+     * Computes HMAC-SHA-256 over the IDPICC with the secret as key.
+     */
+    private static byte[] bind(final byte[] secret, final byte[] idPICC) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac.doFinal(idPICC);
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+
+    /**
+     * A session with the card identity it was established with. While its owner uses it, the session refers to the
+     * transport of the owner. While it is cached, it holds the keys and the send sequence counter only, so it can be
+     * resumed on the provider stack of another {@link OMAPITP}.
+     */
+    static final class Session {
+        private final Object channel;
+        private final byte[] idPICC;
+        private final byte[] binding;
+        private final long expires;
+        private ISOSMTransport transport;
+        private byte[] kEnc, kMac;
+        private long ssc;
+
+
+        Session(final Object channel, final byte[] idPICC, final byte[] binding, final ISOSMTransport transport,
+                final long expires) {
+            this.channel = channel;
+            this.idPICC = idPICC;
+            this.binding = binding;
+            this.transport = transport;
+            this.expires = expires;
+        }
+
+
+        /**
+         * Checks in constant time whether the session was established with the given secret.
+         *
+         * @param secret - secret of the caller
+         * @return true if the session may be resumed for the caller
+         */
+        boolean isBoundTo(final byte[] secret) {
+            return ArrayTool.constantTimeEquals(binding, bind(secret, idPICC));
+        }
+
+
+        byte[] getIDPICC() {
+            return idPICC;
+        }
+
+
+        ISOSMTransport getTransport() {
+            return transport;
+        }
+
+
+        boolean isExpired(final long now) {
+            return now - expires >= 0;
+        }
+
+
+        /**
+         * Takes the keys and the send sequence counter off the transport of the owner, which ends the transport.
+         *
+         * @return whether the session holds keys to be resumed with
+         */
+        boolean suspend() {
+            if (transport != null) {
+                transport.suspend(this);
+                transport = null;
+            }
+            return kEnc != null;
+        }
+
+
+        /**
+         * Called by {@link ISOSMTransport#suspend(Session)} with the state of the transport, copied.
+         */
+        void keep(final byte[] kEnc, final byte[] kMac, final long ssc) {
+            this.kEnc = kEnc.clone();
+            this.kMac = kMac.clone();
+            this.ssc = ssc;
+        }
+
+
+        /**
+         * Continues the suspended session with a new transport, which the caller owns from now on.
+         *
+         * @param parent - provider stack of the new owner
+         * @return the transport of the session
+         */
+        ISOSMTransport resume(final TransportProvider parent) {
+            final ISOSMTransport sm = new ISOSMTransport(parent);
+            sm.resume(kEnc, kMac, ssc);
+            ArrayTool.overwrite(kEnc);
+            ArrayTool.overwrite(kMac);
+            kEnc = null;
+            kMac = null;
+            transport = sm;
+            return sm;
+        }
+
+
+        /**
+         * Overwrites the card identity, its binding and the keys of the session.
+         */
+        void destroy() {
+            ArrayTool.overwrite(idPICC);
+            ArrayTool.overwrite(binding);
+            ArrayTool.overwrite(kEnc);
+            ArrayTool.overwrite(kMac);
+            if (transport != null) {
+                transport.destroyKeys();
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors running one blocking {@link OMAPITP} session per task. On Java 21 the multi-release JAR provides an
+ * implementation starting a virtual thread for every session, so a session waiting for the secure element doesn't hold
+ * a platform thread. Before, every running session takes a platform thread, which is reused for later sessions.
+ *
+ * @version $Id$
+ */
+public final class SessionExecutors {
+
+    private SessionExecutors() {
+    }
+
+
+    /**
+     * Creates an executor starting a new thread for every session, or reusing an idle one.
+     *
+     * @return the executor, to be shut down by the caller
+     */
+    public static ExecutorService newSessionExecutor() {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(r, "omapi-session-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+
+    /**
+     * @return whether sessions run on virtual threads
+     */
+    public static boolean isVirtual() {
+        return false;
+    }
+}
@@ -330,7 +330,7 @@ public class TLV {
                 for (int i = 2; i < oidSplit.length; i++) {
                     final int oidPart = Integer.parseInt(oidSplit[i], 10);
                     if (oidPart > 255) {
-                        System.out.println("#### " + oid);
+                        Log.log(Log.Level.WARN, "TLV", "OID component > 255 not supported: " + oid);
                     } else {
                         baos.write(oidPart);
                     }
@@ -395,7 +395,7 @@ public class TLV {
                 }
 
                 if (data[i] == tag[0]) {
-                    if (tag.length == 1 || ArrayTool.equals(ArrayTool.sub(data, i, tag.length), tag)) {
+                    if (tag.length == 1 || startsWith(data, i, tag)) {
                         break;
                     }
                 }
@@ -411,12 +411,33 @@ public class TLV {
             System.arraycopy(data, i + tag.length + sizelen, result, 0, result.length);
             return result;
         } catch (final Exception e) {
-            e.printStackTrace();
+            Log.log(Log.Level.WARN, "TLV", "parsing TLV failed", e);
             return null;
         }
     }
 
 
+    /**
+     * compare the bytes at the given offset with a multi-byte tag in place
+     *
+     * @param data - <em>BER-TLV</em> encoded input data
+     * @param ofs  - offset of the tag in the data
+     * @param tag  - tag to compare
+     * @return true if the data continues with the tag at the offset
+     */
+    private static boolean startsWith(final byte[] data, final int ofs, final byte[] tag) {
+        if (ofs + tag.length > data.length) {
+            return false;
+        }
+        for (int j = 1; j < tag.length; j++) {
+            if (data[ofs + j] != tag[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
     /**
      * get first occurrence of given single-byte tag
      *
@@ -515,7 +536,7 @@ public class TLV {
                 }
 
                 if (data[i] == tag[0]) {
-                    if (tag.length == 1 || ArrayTool.equals(ArrayTool.sub(data, i, tag.length), tag)) {
+                    if (tag.length == 1 || startsWith(data, i, tag)) {
                         break;
                     }
                 }
@@ -547,7 +568,7 @@ public class TLV {
 
             return list;
         } catch (final Exception e) {
-            e.printStackTrace();
+            Log.log(Log.Level.WARN, "TLV", "parsing TLV failed", e);
             return null;
         }
     }
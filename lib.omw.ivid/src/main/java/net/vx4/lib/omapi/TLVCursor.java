@@ -0,0 +1,363 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pull parser walking the <em>BER-TLV</em> objects of a byte range once, without copying. Every call of
+ * {@link #next()} moves to the following object on the current level and exposes its tag and the offset and length
+ * of its value in the underlying array. {@link #enter()} descends into the value of the current object and
+ * {@link #exit()} continues after it on the enclosing level, so nested structures like FCI templates or dynamic
+ * authentication data are read in a single pass:
+ *
+ * <pre>
+ * final TLVCursor c = new TLVCursor(selRes);
+ * if (c.find(0x6F) &amp;&amp; c.enter().find(0x85)) {
+ *     channelId = c.array()[c.valueOffset()];
+ * }
+ * </pre>
+ * <p>
+ * Tags are returned as int of up to four bytes, e.g. 0x5F2F. Lengths are accepted in short form and in long form of
+ * up to four bytes. An object with indefinite length or which exceeds the range of its level ends the walk of that
+ * level like the end of the range. A cursor can be reused for another range with {@link #reset(byte[], int, int)}.
+ * It is not thread-safe.
+ *
+ * @version $Id$
+ */
+public final class TLVCursor {
+
+    private byte[] data;
+    /**
+     * End of the current level, exclusive.
+     */
+    private int end;
+    /**
+     * Start of the object following the current one.
+     */
+    private int pos;
+
+    private int tag = -1;
+    private int tagOfs = -1;
+    private int valueOfs = -1;
+    private int valueLen = 0;
+
+    /**
+     * Saved end and position of the enclosing levels.
+     */
+    private int[] stack = new int[8];
+    private int depth = 0;
+
+
+    /**
+     * @param data - <em>BER-TLV</em> encoded data
+     */
+    public TLVCursor(final byte[] data) {
+        this(data, 0, data.length);
+    }
+
+
+    /**
+     * @param data   - array holding <em>BER-TLV</em> encoded data
+     * @param offset - offset of the first object
+     * @param length - length of the encoded data
+     */
+    public TLVCursor(final byte[] data, final int offset, final int length) {
+        reset(data, offset, length);
+    }
+
+
+    /**
+     * Creates a cursor over the remaining content of the buffer, which is not consumed. Offsets refer to the backing
+     * array of a heap buffer, the content of a direct buffer is copied once.
+     *
+     * @param buf - buffer holding <em>BER-TLV</em> encoded data between position and limit
+     */
+    public TLVCursor(final ByteBuffer buf) {
+        if (buf.hasArray()) {
+            reset(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        } else {
+            final byte[] copy = new byte[buf.remaining()];
+            buf.duplicate().get(copy);
+            reset(copy, 0, copy.length);
+        }
+    }
+
+
+    /**
+     * Restarts the cursor on another range, before its first object.
+     *
+     * @param data   - array holding <em>BER-TLV</em> encoded data
+     * @param offset - offset of the first object
+     * @param length - length of the encoded data
+     * @return this cursor
+     */
+    public TLVCursor reset(final byte[] data, final int offset, final int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException("range " + offset + "+" + length + " exceeds " + data.length);
+        }
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+        this.depth = 0;
+        clear();
+        return this;
+    }
+
+
+    /**
+     * Moves to the next object on the current level.
+     *
+     * @return true if the cursor is on a complete object, false at the end of the level
+     */
+    public boolean next() {
+        if (pos >= end) {
+            return fail();
+        }
+
+        int i = pos;
+        int t = data[i++] & 0xFF;
+        if ((t & TLV.MORE) == TLV.MORE) {
+            int b;
+            do {
+                if (i >= end || t > 0xFFFFFF) {
+                    return fail();
+                }
+                b = data[i++] & 0xFF;
+                t = t << 8 | b;
+            } while ((b & 0x80) != 0);
+        }
+
+        if (i >= end) {
+            return fail();
+        }
+        int len = data[i++] & 0xFF;
+        if (len > 0x7F) {
+            final int count = len - 0x80;
+            if (count == 0 || count > 4 || end - i < count) {
+                return fail();
+            }
+            len = 0;
+            for (int j = 0; j < count; j++) {
+                len = len << 8 | data[i++] & 0xFF;
+            }
+            if (len < 0) {
+                return fail();
+            }
+        }
+        if (end - i < len) {
+            return fail();
+        }
+
+        tagOfs = pos;
+        tag = t;
+        valueOfs = i;
+        valueLen = len;
+        pos = i + len;
+        return true;
+    }
+
+
+    /**
+     * Moves to the next object with the given tag on the current level, skipping all others.
+     *
+     * @param tag - tag to find, e.g. 0x85 or 0x5F2F
+     * @return true if the cursor is on an object with the tag, false at the end of the level
+     */
+    public boolean find(final int tag) {
+        while (next()) {
+            if (this.tag == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Descends into the value of the current object, before its first object. Primitive objects can be entered
+     * as well, as some applications nest data objects in context specific primitive tags.
+     *
+     * @return this cursor
+     * @throws IllegalStateException if the cursor isn't on an object
+     */
+    public TLVCursor enter() {
+        if (valueOfs < 0) {
+            throw new IllegalStateException("no current object");
+        }
+        if (depth == stack.length) {
+            final int[] grown = new int[stack.length * 2];
+            System.arraycopy(stack, 0, grown, 0, depth);
+            stack = grown;
+        }
+        stack[depth++] = end;
+        stack[depth++] = pos;
+
+        end = valueOfs + valueLen;
+        pos = valueOfs;
+        clear();
+        return this;
+    }
+
+
+    /**
+     * Leaves the current level and continues after the object which was entered. The cursor is then on no object,
+     * like after {@link #enter()}.
+     *
+     * @return this cursor
+     * @throws IllegalStateException on the outermost level
+     */
+    public TLVCursor exit() {
+        if (depth == 0) {
+            throw new IllegalStateException("outermost level");
+        }
+        pos = stack[--depth];
+        end = stack[--depth];
+        clear();
+        return this;
+    }
+
+
+    /**
+     * @return nesting level, 0 for the range the cursor was created with
+     */
+    public int depth() {
+        return depth / 2;
+    }
+
+
+    /**
+     * @return tag of the current object or -1 if the cursor isn't on an object
+     */
+    public int tag() {
+        return tag;
+    }
+
+
+    /**
+     * @return true if the constructed bit is set in the tag of the current object
+     */
+    public boolean isConstructed() {
+        return tagOfs >= 0 && (data[tagOfs] & TLV.CONSTRUCTED) != 0;
+    }
+
+
+    /**
+     * @return the underlying array all offsets refer to
+     */
+    public byte[] array() {
+        return data;
+    }
+
+
+    /**
+     * @return offset of the tag of the current object
+     */
+    public int offset() {
+        return tagOfs;
+    }
+
+
+    /**
+     * @return length of the current object including tag and length
+     */
+    public int length() {
+        return valueOfs + valueLen - tagOfs;
+    }
+
+
+    /**
+     * @return offset of the value of the current object
+     */
+    public int valueOffset() {
+        return valueOfs;
+    }
+
+
+    /**
+     * @return length of the value of the current object
+     */
+    public int valueLength() {
+        return valueLen;
+    }
+
+
+    /**
+     * Copies the value of the current object.
+     *
+     * @return the value or null if the cursor isn't on an object
+     */
+    public byte[] value() {
+        if (valueOfs < 0) {
+            return null;
+        }
+        final byte[] value = new byte[valueLen];
+        System.arraycopy(data, valueOfs, value, 0, valueLen);
+        return value;
+    }
+
+
+    /**
+     * Wraps the value of the current object without copying.
+     *
+     * @return read-only buffer holding the value between position and limit or null if the cursor isn't on an object
+     */
+    public ByteBuffer valueBuffer() {
+        if (valueOfs < 0) {
+            return null;
+        }
+        return ByteBuffer.wrap(data, valueOfs, valueLen).slice().asReadOnlyBuffer();
+    }
+
+
+    /**
+     * Compares the value of the current object with the given bytes, e.g. an object identifier.
+     *
+     * @param value - expected value
+     * @return true if the cursor is on an object with exactly this value
+     */
+    public boolean valueEquals(final byte[] value) {
+        return valueOfs >= 0 && value.length == valueLen && Bytes.mismatch(data, valueOfs, value, 0, valueLen) < 0;
+    }
+
+
+    @Override
+    public String toString() {
+        if (valueOfs < 0) {
+            return "TLVCursor[depth=" + depth() + "]";
+        }
+        return "TLVCursor[depth=" + depth() + ", tag=" + Integer.toHexString(tag).toUpperCase() + ", length="
+                + valueLen + "]";
+    }
+
+
+    /**
+     * Ends the walk of the current level.
+     */
+    private boolean fail() {
+        pos = end;
+        clear();
+        return false;
+    }
+
+
+    private void clear() {
+        tag = -1;
+        tagOfs = -1;
+        valueOfs = -1;
+        valueLen = 0;
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import java.util.Arrays;
+
+/**
+ * Tree of all <em>BER-TLV</em> objects of a byte range, built in a single pass and kept in primitive arrays. Nodes
+ * are numbered in document order starting with 0 and refer to tag and value by offset into the original array, which
+ * is neither copied nor modified. Constructed objects are indexed recursively, primitive ones are leaves; the content
+ * encapsulated in a primitive object, e.g. the eContent OCTET STRING of a CMS structure, can be indexed separately
+ * with {@link #TLVIndex(byte[], int, int)} over its value range.
+ * <p>
+ * The first child of a node with a given tag is found by a hash lookup in constant time, so a path like
+ * {@code 30/A0/30/04} costs one lookup per element independent of the size and the position of the objects. Further
+ * children with the same tag are chained by {@link #nextSame(int)}. The index is immutable after construction and may
+ * be shared between threads, e.g. for a static EF.CardSecurity parsed once.
+ *
+ * @version $Id$
+ */
+public final class TLVIndex {
+
+    /**
+     * Parent number of the top level nodes.
+     */
+    public static final int ROOT = -1;
+
+    private final byte[] data;
+    private int size = 0;
+
+    private int[] tag;
+    private int[] offset;
+    private int[] valueOffset;
+    private int[] valueLength;
+    private int[] parent;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private int[] nextSame;
+
+    /**
+     * Open addressing table of the first child per (parent, tag), holding node numbers plus one, 0 for free slots.
+     */
+    private int[] slots;
+    private int mask;
+
+
+    /**
+     * @param data - <em>BER-TLV</em> encoded data
+     */
+    public TLVIndex(final byte[] data) {
+        this(data, 0, data.length);
+    }
+
+
+    /**
+     * Indexes the given range. An object with indefinite length or exceeding the range of its parent ends the
+     * indexing of that level, like for {@link TLVCursor}.
+     *
+     * @param data   - array holding <em>BER-TLV</em> encoded data
+     * @param offset - offset of the first object
+     * @param length - length of the encoded data
+     */
+    public TLVIndex(final byte[] data, final int offset, final int length) {
+        this.data = data;
+        // most objects of certificates and security infos take more than 8 bytes
+        grow(length / 8 < 16 ? 16 : length / 8);
+
+        final TLVCursor c = new TLVCursor(data, offset, length);
+        int current = ROOT;
+        int previous = ROOT;
+        while (true) {
+            if (c.next()) {
+                final int n = add(c, current);
+                if (previous == ROOT) {
+                    if (current != ROOT) {
+                        firstChild[current] = n;
+                    }
+                } else {
+                    nextSibling[previous] = n;
+                }
+                previous = n;
+
+                if (c.isConstructed()) {
+                    c.enter();
+                    current = n;
+                    previous = ROOT;
+                }
+            } else if (current == ROOT) {
+                break;
+            } else {
+                c.exit();
+                previous = current;
+                current = parent[current];
+            }
+        }
+
+        trim();
+        hash();
+    }
+
+
+    /**
+     * @return the array all offsets refer to
+     */
+    public byte[] array() {
+        return data;
+    }
+
+
+    /**
+     * @return number of nodes
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * Returns the first child with the given tag.
+     *
+     * @param node - parent node or {@link #ROOT} for the top level
+     * @param tag  - tag to find, e.g. 0x30 or 0x5F2F
+     * @return node number or -1 if not found
+     */
+    public int child(final int node, final int tag) {
+        for (int i = slot(node, tag); slots[i] != 0; i = i + 1 & mask) {
+            final int n = slots[i] - 1;
+            if (this.tag[n] == tag && parent[n] == node) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Follows the path of tags from the top level, taking the first child with the tag on every level.
+     *
+     * @param tags - tags of the path, e.g. 0x30, 0xA0, 0x30, 0x04
+     * @return node number or -1 if not found
+     */
+    public int find(final int... tags) {
+        int node = ROOT;
+        for (final int t : tags) {
+            node = child(node, t);
+            if (node < 0) {
+                return -1;
+            }
+        }
+        return node;
+    }
+
+
+    /**
+     * Follows a path of hexadecimal tags separated by slashes, e.g. {@code 30/A0/30/04}.
+     *
+     * @param path - the path
+     * @return node number or -1 if not found
+     * @throws IllegalArgumentException if the path isn't made up of hexadecimal tags
+     */
+    public int find(final String path) {
+        int node = ROOT;
+        boolean found = true;
+        int start = 0;
+        while (start <= path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end == start || end - start > 8) {
+                throw new IllegalArgumentException("invalid path: " + path);
+            }
+
+            int t = 0;
+            for (int i = start; i < end; i++) {
+                final int digit = Character.digit(path.charAt(i), 16);
+                if (digit < 0) {
+                    throw new IllegalArgumentException("invalid path: " + path);
+                }
+                t = t << 4 | digit;
+            }
+
+            // a missing node still checks the rest of the path
+            if (found) {
+                node = child(node, t);
+                found = node >= 0;
+            }
+            start = end + 1;
+        }
+        return found ? node : -1;
+    }
+
+
+    /**
+     * @param node - node number
+     * @return next node with the same parent and tag or -1 if there is none
+     */
+    public int nextSame(final int node) {
+        return nextSame[node];
+    }
+
+
+    /**
+     * @param node - node number
+     * @return number of the first child or -1 for a primitive or empty object
+     */
+    public int firstChild(final int node) {
+        return firstChild[node];
+    }
+
+
+    /**
+     * @param node - node number
+     * @return number of the following node on the same level or -1 if there is none
+     */
+    public int nextSibling(final int node) {
+        return nextSibling[node];
+    }
+
+
+    /**
+     * @param node - node number
+     * @return number of the parent or {@link #ROOT} for a top level node
+     */
+    public int parent(final int node) {
+        return parent[node];
+    }
+
+
+    /**
+     * @param node - node number
+     * @return tag of the node
+     */
+    public int tag(final int node) {
+        return tag[node];
+    }
+
+
+    /**
+     * @param node - node number
+     * @return offset of the tag of the node
+     */
+    public int offset(final int node) {
+        return offset[node];
+    }
+
+
+    /**
+     * @param node - node number
+     * @return length of the node including tag and length
+     */
+    public int length(final int node) {
+        return valueOffset[node] + valueLength[node] - offset[node];
+    }
+
+
+    /**
+     * @param node - node number
+     * @return offset of the value of the node
+     */
+    public int valueOffset(final int node) {
+        return valueOffset[node];
+    }
+
+
+    /**
+     * @param node - node number
+     * @return length of the value of the node
+     */
+    public int valueLength(final int node) {
+        return valueLength[node];
+    }
+
+
+    /**
+     * @param node - node number
+     * @return copy of the value of the node
+     */
+    public byte[] value(final int node) {
+        return Arrays.copyOfRange(data, valueOffset[node], valueOffset[node] + valueLength[node]);
+    }
+
+
+    /**
+     * @param node - node number
+     * @return copy of the complete node including tag and length
+     */
+    public byte[] encoded(final int node) {
+        return Arrays.copyOfRange(data, offset[node], valueOffset[node] + valueLength[node]);
+    }
+
+
+    @Override
+    public String toString() {
+        return "TLVIndex[nodes=" + size + "]";
+    }
+
+
+    /**
+     * Appends the object the cursor is on as a new node.
+     */
+    private int add(final TLVCursor c, final int parentNode) {
+        if (size == tag.length) {
+            grow(size * 2);
+        }
+        final int n = size++;
+        tag[n] = c.tag();
+        offset[n] = c.offset();
+        valueOffset[n] = c.valueOffset();
+        valueLength[n] = c.valueLength();
+        parent[n] = parentNode;
+        firstChild[n] = -1;
+        nextSibling[n] = -1;
+        return n;
+    }
+
+
+    private void grow(final int capacity) {
+        if (tag == null) {
+            tag = new int[capacity];
+            offset = new int[capacity];
+            valueOffset = new int[capacity];
+            valueLength = new int[capacity];
+            parent = new int[capacity];
+            firstChild = new int[capacity];
+            nextSibling = new int[capacity];
+            return;
+        }
+        tag = Arrays.copyOf(tag, capacity);
+        offset = Arrays.copyOf(offset, capacity);
+        valueOffset = Arrays.copyOf(valueOffset, capacity);
+        valueLength = Arrays.copyOf(valueLength, capacity);
+        parent = Arrays.copyOf(parent, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+    }
+
+
+    private void trim() {
+        if (size < tag.length) {
+            grow(size);
+        }
+    }
+
+
+    /**
+     * Builds the lookup table and chains the children with equal parent and tag. Nodes are visited in document
+     * order, so the first node entered for a key is its first child with the tag.
+     */
+    private void hash() {
+        int capacity = 16;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        slots = new int[capacity];
+        mask = capacity - 1;
+        nextSame = new int[size];
+
+        // last node chained per slot, only needed while building
+        final int[] last = new int[capacity];
+        for (int n = 0; n < size; n++) {
+            nextSame[n] = -1;
+            int i = slot(parent[n], tag[n]);
+            while (slots[i] != 0) {
+                final int first = slots[i] - 1;
+                if (tag[first] == tag[n] && parent[first] == parent[n]) {
+                    break;
+                }
+                i = i + 1 & mask;
+            }
+            if (slots[i] == 0) {
+                slots[i] = n + 1;
+            } else {
+                nextSame[last[i]] = n;
+            }
+            last[i] = n;
+        }
+    }
+
+
+    private int slot(final int node, final int tag) {
+        final int h = (node * 31 + tag) * 0x9E3779B9;
+        return (h ^ h >>> 16) & mask;
+    }
+}
@@ -96,7 +96,11 @@ public interface TransportProvider {
      * Returns the last received status word.
      *
      * @return status word of last transmitted APDU
+     * @deprecated the status word is shared by all threads using this provider, use the status word returned by
+     * {@link AbstractTransportProvider#exchange(byte[])} or
+     * {@link AbstractTransportProvider#transmit(java.nio.ByteBuffer, java.nio.ByteBuffer)} instead
      */
+    @Deprecated
     int lastSW();
 
 
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Elementary files emulated by {@link OMAPITP}, indexed by file identifier and short file identifier. The content of
+ * a file is either an array, a buffer like a {@link java.nio.MappedByteBuffer}, or a file on disk which is mapped
+ * read-only on first access. Reads return views on array content and copy mapped content only into the buffer of the
+ * caller.
+ * <p>
+ * The file system holds no selection state, so one instance configured at startup can be shared by all sessions;
+ * files must not be added while it is in use. A profile can be deployed as a directory with
+ * {@link #fromDirectory(File)}.
+ *
+ * @version $Id$
+ */
+public final class VirtualFileSystem {
+
+    private final Map<Integer, EF> files = new HashMap<Integer, EF>();
+    private final EF[] bySFI = new EF[31];
+
+
+    /**
+     * Creates a file system with the files of a directory, named by their file identifier and optionally their
+     * short file identifier in hex, e.g. <code>011C.1C</code> for EF.CardAccess. Other files are ignored. The files
+     * are mapped on first access.
+     *
+     * @param dir - the directory
+     * @return the file system
+     * @throws IOException if the directory can't be listed
+     */
+    public static VirtualFileSystem fromDirectory(final File dir) throws IOException {
+        final File[] entries = dir.listFiles();
+        if (entries == null) {
+            throw new IOException("not a directory: " + dir);
+        }
+
+        final VirtualFileSystem vfs = new VirtualFileSystem();
+        for (final File f : entries) {
+            final String name = f.getName();
+            if (!f.isFile() || !name.matches("[0-9A-Fa-f]{4}(\\.[0-9A-Fa-f]{2})?")) {
+                continue;
+            }
+            final int fid = Integer.parseInt(name.substring(0, 4), 16);
+            final int sfi = name.length() > 4 ? Integer.parseInt(name.substring(5), 16) : 0;
+            vfs.addFile(fid, sfi, f);
+        }
+        return vfs;
+    }
+
+
+    /**
+     * Adds a file with a copy of the given content.
+     *
+     * @param fid     - file identifier
+     * @param sfi     - short file identifier from 1 to 30 or 0 for none
+     * @param content - the content
+     * @return this file system
+     */
+    public VirtualFileSystem addFile(final int fid, final int sfi, final byte[] content) {
+        return add(new EF(fid, sfi, content.clone(), null, null));
+    }
+
+
+    /**
+     * Adds a file with the content between position and limit of the given buffer, which is not copied and must not
+     * be changed afterwards.
+     *
+     * @param fid     - file identifier
+     * @param sfi     - short file identifier from 1 to 30 or 0 for none
+     * @param content - the content, e.g. a mapped file
+     * @return this file system
+     */
+    public VirtualFileSystem addFile(final int fid, final int sfi, final ByteBuffer content) {
+        return add(new EF(fid, sfi, null, content.slice().asReadOnlyBuffer(), null));
+    }
+
+
+    /**
+     * Adds a file with the content of a file on disk, which is mapped read-only when it is read first.
+     *
+     * @param fid  - file identifier
+     * @param sfi  - short file identifier from 1 to 30 or 0 for none
+     * @param file - the file on disk
+     * @return this file system
+     */
+    public VirtualFileSystem addFile(final int fid, final int sfi, final File file) {
+        return add(new EF(fid, sfi, null, null, file));
+    }
+
+
+    /**
+     * @param fid - file identifier
+     * @return the file or null if there is none
+     */
+    public EF file(final int fid) {
+        return files.get(fid);
+    }
+
+
+    /**
+     * @param sfi - short file identifier
+     * @return the file or null if there is none
+     */
+    public EF fileBySFI(final int sfi) {
+        return sfi > 0 && sfi < bySFI.length ? bySFI[sfi] : null;
+    }
+
+
+    private VirtualFileSystem add(final EF ef) {
+        if (ef.fid < 0 || ef.fid > 0xFFFF) {
+            throw new IllegalArgumentException("invalid FID " + ef.fid);
+        }
+        if (ef.sfi < 0 || ef.sfi > 30) {
+            throw new IllegalArgumentException("invalid SFI " + ef.sfi);
+        }
+
+        final EF old = files.put(ef.fid, ef);
+        if (old != null && old.sfi != 0) {
+            bySFI[old.sfi] = null;
+        }
+        if (ef.sfi != 0) {
+            bySFI[ef.sfi] = ef;
+        }
+        return this;
+    }
+
+
+    /**
+     * An emulated elementary file. READ BINARY of array content in chunks of 256 bytes, the usual short Le of 00, is
+     * answered from responses built once.
+     */
+    public static final class EF {
+        private static final int CHUNK = 256;
+
+        private final int fid;
+        private final int sfi;
+        private final byte[] array;
+        private final Response[] chunks;
+        private final File source;
+        private volatile ByteBuffer content;
+
+
+        EF(final int fid, final int sfi, final byte[] array, final ByteBuffer content, final File source) {
+            this.fid = fid;
+            this.sfi = sfi;
+            this.array = array;
+            this.content = content;
+            this.source = source;
+
+            if (array != null) {
+                chunks = new Response[(array.length + CHUNK - 1) / CHUNK];
+                for (int i = 0; i < chunks.length; i++) {
+                    final int len = Math.min(CHUNK, array.length - i * CHUNK);
+                    chunks[i] = new Response(array, i * CHUNK, len, len < CHUNK ? 0x6282 : 0x9000);
+                }
+            } else {
+                chunks = null;
+            }
+        }
+
+
+        public int getFID() {
+            return fid;
+        }
+
+
+        /**
+         * @return short file identifier or 0 for none
+         */
+        public int getSFI() {
+            return sfi;
+        }
+
+
+        /**
+         * @return size of the file in bytes
+         */
+        public int length() {
+            return array != null ? array.length : content().limit();
+        }
+
+
+        /**
+         * Reads from the file into the given buffer.
+         *
+         * @param ofs      - offset in the file
+         * @param len      - number of bytes expected
+         * @param response - buffer receiving the data
+         * @return 9000, 6282 if the end of the file is reached before or 6B00 if the offset is beyond it
+         */
+        public int read(final int ofs, final int len, final ByteBuffer response) {
+            if (array != null) {
+                if (ofs > array.length) {
+                    return 0x6B00;
+                }
+                final int n = Math.min(len, array.length - ofs);
+                response.put(array, ofs, n);
+                return n < len ? 0x6282 : 0x9000;
+            }
+
+            final ByteBuffer c = content();
+            if (ofs > c.limit()) {
+                return 0x6B00;
+            }
+            final int n = Math.min(len, c.limit() - ofs);
+            final ByteBuffer range = c.duplicate();
+            range.position(ofs);
+            range.limit(ofs + n);
+            response.put(range);
+            return n < len ? 0x6282 : 0x9000;
+        }
+
+
+        /**
+         * Reads from the file into a response, a view on array content without copying.
+         *
+         * @param ofs - offset in the file
+         * @param len - number of bytes expected
+         * @return the data with status word as for {@link #read(int, int, ByteBuffer)}
+         */
+        public Response read(final int ofs, final int len) {
+            if (array != null) {
+                if (len == CHUNK && ofs % CHUNK == 0 && ofs / CHUNK < chunks.length) {
+                    return chunks[ofs / CHUNK];
+                }
+                if (ofs > array.length) {
+                    return new Response(0x6B00);
+                }
+                final int n = Math.min(len, array.length - ofs);
+                return new Response(array, ofs, n, n < len ? 0x6282 : 0x9000);
+            }
+
+            final ByteBuffer c = content();
+            if (ofs > c.limit()) {
+                return new Response(0x6B00);
+            }
+            final byte[] data = new byte[Math.min(len, c.limit() - ofs)];
+            final ByteBuffer range = c.duplicate();
+            range.position(ofs);
+            range.get(data);
+            return new Response(data, 0, data.length, data.length < len ? 0x6282 : 0x9000);
+        }
+
+
+        @Override
+        public String toString() {
+            return "EF[" + Hex.shortToString((short) fid) + (sfi != 0 ? ", SFI " + Hex.byteToString(sfi) : "")
+                    + (source != null ? ", " + source : "") + "]";
+        }
+
+
+        /**
+         * Returns the content of a buffer or file source, mapping the file on first access.
+         */
+        private ByteBuffer content() {
+            ByteBuffer c = content;
+            if (c == null) {
+                synchronized (this) {
+                    c = content;
+                    if (c == null) {
+                        c = map(source);
+                        content = c;
+                    }
+                }
+            }
+            return c;
+        }
+
+
+        private static ByteBuffer map(final File file) {
+            try {
+                final RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    final FileChannel channel = raf.getChannel();
+                    return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asReadOnlyBuffer();
+                } finally {
+                    raf.close();
+                }
+            } catch (final IOException e) {
+                throw new IllegalStateException("mapping " + file + " failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * Byte array primitives used by {@link Hex}, {@link ArrayTool}, {@link CMac} and {@link ISOSMTransport}, Java 21
+ * implementation. Integers are read and written through <code>VarHandle</code> views, which compile to single loads
+ * and stores, comparisons use the vectorized {@link Arrays#equals(byte[], byte[])} and {@link Arrays#mismatch(byte[], int, int,
+ * byte[], int, int)}, and XOR and the constant time comparison work on eight bytes at a time.
+ *
+ * @version $Id$
+ */
+final class Bytes {
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final HexFormat HEX = HexFormat.of().withUpperCase();
+
+
+    private Bytes() {
+    }
+
+
+    static int getInt(final byte[] b, final int ofs) {
+        return (int) INT.get(b, ofs);
+    }
+
+
+    static long getLong(final byte[] b, final int ofs) {
+        return (long) LONG.get(b, ofs);
+    }
+
+
+    static void putInt(final byte[] b, final int ofs, final int v) {
+        INT.set(b, ofs, v);
+    }
+
+
+    static void putLong(final byte[] b, final int ofs, final long v) {
+        LONG.set(b, ofs, v);
+    }
+
+
+    static boolean equals(final byte[] b1, final byte[] b2) {
+        return Arrays.equals(b1, b2);
+    }
+
+
+    static boolean constantTimeEquals(final byte[] b1, final int ofs1, final byte[] b2, final int ofs2,
+                                      final int len) {
+        long diff = 0;
+        int i = 0;
+        for (; i <= len - 8; i += 8) {
+            diff |= (long) LONG.get(b1, ofs1 + i) ^ (long) LONG.get(b2, ofs2 + i);
+        }
+        for (; i < len; i++) {
+            diff |= b1[ofs1 + i] ^ b2[ofs2 + i];
+        }
+        return diff == 0;
+    }
+
+
+    static int mismatch(final byte[] b1, final int ofs1, final byte[] b2, final int ofs2, final int len) {
+        return Arrays.mismatch(b1, ofs1, ofs1 + len, b2, ofs2, ofs2 + len);
+    }
+
+
+    static void xor(final byte[] dst, final int dstOfs, final byte[] src, final int srcOfs, final int len) {
+        int i = 0;
+        for (; i <= len - 8; i += 8) {
+            LONG.set(dst, dstOfs + i, (long) LONG.get(dst, dstOfs + i) ^ (long) LONG.get(src, srcOfs + i));
+        }
+        for (; i < len; i++) {
+            dst[dstOfs + i] ^= src[srcOfs + i];
+        }
+    }
+
+
+    static String toHex(final byte[] b, final int ofs, final int len) {
+        return HEX.formatHex(b, ofs, ofs + len);
+    }
+}
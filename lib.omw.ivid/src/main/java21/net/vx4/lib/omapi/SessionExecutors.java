@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors running one blocking {@link OMAPITP} session per task, Java 21 implementation starting a virtual thread
+ * for every task. A session waiting for the secure element doesn't hold a platform thread, so many hundreds of
+ * sessions can use the blocking API.
+ *
+ * @version $Id$
+ */
+public final class SessionExecutors {
+
+    private SessionExecutors() {
+    }
+
+
+    /**
+     * Creates an executor starting a new thread for every session.
+     *
+     * @return the executor, to be shut down by the caller
+     */
+    public static ExecutorService newSessionExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("omapi-session-", 1).factory());
+    }
+
+
+    /**
+     * @return whether sessions run on virtual threads
+     */
+    public static boolean isVirtual() {
+        return true;
+    }
+}
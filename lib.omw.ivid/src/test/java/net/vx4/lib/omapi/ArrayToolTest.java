@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Comparison and bulk operations of {@link ArrayTool}.
+ *
+ * @version $Id$
+ */
+public class ArrayToolTest {
+
+    private final Random random = new Random(4711);
+
+
+    @Test
+    public void compareAndFill() {
+        for (int len = 0; len < 40; len++) {
+            final byte[] a = new byte[len + 2];
+            random.nextBytes(a);
+            final byte[] b = new byte[len + 7];
+            System.arraycopy(a, 2, b, 7, len);
+
+            Assert.assertEquals(-1, ArrayTool.mismatch(a, 2, b, 7, len));
+            Assert.assertTrue(ArrayTool.constantTimeEquals(a, 2, b, 7, len));
+            for (int i = 0; i < len; i++) {
+                b[7 + i] ^= 0x40;
+                Assert.assertEquals(i, ArrayTool.mismatch(a, 2, b, 7, len));
+                Assert.assertFalse(ArrayTool.constantTimeEquals(a, 2, b, 7, len));
+                b[7 + i] ^= 0x40;
+            }
+        }
+        Assert.assertFalse(ArrayTool.constantTimeEquals(new byte[8], new byte[9]));
+
+        final byte[] b = new byte[10];
+        ArrayTool.fill(b, 2, 7, (byte) 0xA5);
+        Assert.assertEquals("0000A5A5A5A5A5A5A500", Hex.toString(b));
+        ArrayTool.putLong(b, 1, ArrayTool.getLong(b, 2) ^ 0x5A5A5A5A00000000L);
+        Assert.assertEquals(0xFFFFFFFF, ArrayTool.getInt(b, 1));
+    }
+}
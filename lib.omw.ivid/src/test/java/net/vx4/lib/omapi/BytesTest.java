@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * The byte array primitives against {@link ByteBuffer} as reference. Run on Java 21 against the multi-release JAR
+ * this covers both implementations of {@link Bytes}.
+ *
+ * @version $Id$
+ */
+public class BytesTest {
+
+    private final Random random = new Random(4711);
+
+
+    @Test
+    public void integers() {
+        final byte[] b = new byte[19];
+        random.nextBytes(b);
+        final ByteBuffer ref = ByteBuffer.wrap(b);
+
+        for (int ofs = 0; ofs <= b.length - 8; ofs++) {
+            Assert.assertEquals(ref.getInt(ofs), ArrayTool.createIntfromByteArray(b, ofs));
+            Assert.assertEquals(ref.getLong(ofs), ArrayTool.createLongfromByteArray(b, ofs));
+        }
+
+        final byte[] out = new byte[12];
+        ArrayTool.insertIntInByteArray(out, 1, 0x80FF0102);
+        ArrayTool.insertLongInByteArray(out, 4, 0xFEDCBA9876543210L);
+        Assert.assertEquals("0080FF01", Hex.toString(out, 0, 4));
+        Assert.assertEquals("FEDCBA9876543210", Hex.toString(out, 4, 8));
+    }
+
+
+    @Test
+    public void xorAndEquals() {
+        for (int len = 0; len < 40; len++) {
+            final byte[] a = new byte[len + 3];
+            final byte[] b = new byte[len + 5];
+            random.nextBytes(a);
+            random.nextBytes(b);
+
+            final byte[] expected = a.clone();
+            for (int i = 0; i < len; i++) {
+                expected[3 + i] ^= b[5 + i];
+            }
+            Bytes.xor(a, 3, b, 5, len);
+            Assert.assertArrayEquals(expected, a);
+            Assert.assertTrue(ArrayTool.equals(expected, a));
+
+            if (len > 0) {
+                a[len] ^= 0x01;
+                Assert.assertFalse(ArrayTool.equals(expected, a));
+            }
+        }
+    }
+
+
+    @Test
+    public void hex() {
+        final byte[] b = new byte[256];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) i;
+        }
+
+        final String hex = Hex.toString(b);
+        Assert.assertEquals(512, hex.length());
+        Assert.assertEquals("000102", hex.substring(0, 6));
+        Assert.assertEquals("7F80", hex.substring(254, 258));
+        Assert.assertEquals("FEFF", hex.substring(508));
+        Assert.assertEquals("0A0B", Hex.toString(b, 10, 2));
+        Assert.assertArrayEquals(b, Hex.fromString(hex));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.simalliance.openmobileapi.Channel;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ENVELOPE chaining of {@link C2Transport}.
+ *
+ * @version $Id$
+ */
+public class C2TransportTest {
+
+    private final List<byte[]> sent = new ArrayList<byte[]>();
+    private int failAt = -1;
+    private ExecutorService executor;
+    private C2Transport c2;
+
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+        c2 = new C2Transport(new ChannelTransportProvider(new Channel() {
+            @Override
+            public byte[] transmit(final byte[] command) {
+                synchronized (sent) {
+                    sent.add(command);
+                    return sent.size() - 1 == failAt ? new byte[]{0x6A, (byte) 0x80} : new byte[]{(byte) 0x90, 0};
+                }
+            }
+
+
+            @Override
+            public byte[] getSelectResponse() {
+                return Hex.x("6F03850100" + "9000");
+            }
+        }));
+    }
+
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+
+    @Test
+    public void chainsIntoSegmentsOfConfiguredSize() {
+        c2.setSegmentSize(100);
+        final byte[] apdu = extended(993); // 1000 bytes including the header
+        Assert.assertEquals(0x9000, c2.transmit(ByteBuffer.wrap(apdu), ByteBuffer.allocate(256)));
+
+        Assert.assertEquals(10, sent.size());
+        Assert.assertArrayEquals(apdu, unwrap(sent));
+        for (int i = 0; i < sent.size(); i++) {
+            Assert.assertEquals(i < 9 ? 0x10 : 0x00, sent.get(i)[0]);
+            Assert.assertEquals(100, sent.get(i)[4] & 0xFF);
+        }
+    }
+
+
+    @Test
+    public void abortsAtFirstFailingSegment() {
+        failAt = 2;
+        Assert.assertEquals(0x6A80, c2.transmit(ByteBuffer.wrap(extended(2000)), ByteBuffer.allocate(256)));
+        Assert.assertEquals(3, sent.size());
+    }
+
+
+    @Test
+    public void executorSendsSameSegments() {
+        final byte[] apdu = extended(2000);
+        c2.transmit(ByteBuffer.wrap(apdu.clone()), ByteBuffer.allocate(256));
+        final List<byte[]> sequential = new ArrayList<byte[]>(sent);
+        sent.clear();
+
+        c2.setExecutor(executor);
+        Assert.assertEquals(0x9000, c2.transmit(ByteBuffer.wrap(apdu.clone()), ByteBuffer.allocate(256)));
+        Assert.assertEquals(sequential.size(), sent.size());
+        for (int i = 0; i < sent.size(); i++) {
+            Assert.assertArrayEquals(sequential.get(i), sent.get(i));
+        }
+
+        sent.clear();
+        failAt = 4;
+        Assert.assertEquals(0x6A80, c2.transmit(ByteBuffer.wrap(apdu.clone()), ByteBuffer.allocate(256)));
+        Assert.assertEquals(5, sent.size());
+    }
+
+
+    /**
+     * Case 3 extended length APDU with the given amount of data.
+     */
+    private static byte[] extended(final int lc) {
+        final byte[] apdu = new byte[7 + lc];
+        apdu[1] = 0x2A;
+        apdu[3] = (byte) 0xBE;
+        apdu[5] = (byte) (lc >> 8);
+        apdu[6] = (byte) lc;
+        for (int i = 7; i < apdu.length; i++) {
+            apdu[i] = (byte) i;
+        }
+        return apdu;
+    }
+
+
+    private static byte[] unwrap(final List<byte[]> envelopes) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final byte[] env : envelopes) {
+            out.write(env, 5, env.length - 5);
+        }
+        return out.toByteArray();
+    }
+}
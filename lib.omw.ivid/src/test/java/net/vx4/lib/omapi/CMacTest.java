@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * {@link CMac} against the AES-128 examples of RFC 4493, fed in parts of all sizes.
+ *
+ * @version $Id$
+ */
+public class CMacTest {
+
+    private static final byte[] KEY = Hex.x("2B7E151628AED2A6ABF7158809CF4F3C");
+
+    private static final byte[] MESSAGE = Hex.x("6BC1BEE22E409F96E93D7E117393172A"
+            + "AE2D8A571E03AC9C9EB76FAC45AF8E51" + "30C81C46A35CE411E5FBC1191A0A52EF" + "F69F2445DF4F9B17AD2B417BE66C3710");
+
+    /**
+     * Message lengths and expected MACs of the examples.
+     */
+    private static final int[] LENGTHS = {0, 16, 40, 64};
+    private static final String[] MACS = {"BB1D6929E95937287FA37D129B756746", "070A16B46B4D4144F79BDD9DD04A287C",
+            "DFA66747DE9AE63030CA32611497C827", "51F0BEBF7E3B9D92FC49741779363CFE"};
+
+
+    @Test
+    public void examplesInParts() throws GeneralSecurityException {
+        final CMac cmac = new CMac(cipher(), 16);
+        final byte[] out = new byte[20];
+
+        for (int i = 0; i < LENGTHS.length; i++) {
+            final byte[] expected = Hex.x(MACS[i]);
+            Assert.assertArrayEquals(expected, cmac.doFinal(MESSAGE, 0, LENGTHS[i]));
+
+            for (int part = 1; part <= LENGTHS[i]; part++) {
+                for (int ofs = 0; ofs < LENGTHS[i]; ofs += part) {
+                    cmac.update(MESSAGE, ofs, Math.min(part, LENGTHS[i] - ofs));
+                }
+                Assert.assertEquals(16, cmac.doFinal(out, 2));
+                Assert.assertArrayEquals(expected, Arrays.copyOfRange(out, 2, 18));
+            }
+        }
+    }
+
+
+    @Test
+    public void truncatedVerifyAndReset() throws GeneralSecurityException {
+        final CMac cmac = new CMac(cipher(), 8);
+        final byte[] mac = Arrays.copyOf(Hex.x(MACS[3]), 8);
+
+        // an abandoned MAC doesn't affect the next one
+        cmac.update(MESSAGE, 0, 33);
+        cmac.reset();
+        cmac.update(MESSAGE, 0, 64);
+        Assert.assertTrue(cmac.verify(mac, 0, 8));
+
+        cmac.update(MESSAGE, 0, 64);
+        Assert.assertFalse(cmac.verify(mac, 0, 7));
+        mac[7] ^= 0x01;
+        cmac.update(MESSAGE, 0, 64);
+        Assert.assertFalse(cmac.verify(mac, 0, 8));
+
+        // longer than one run of the cipher
+        final byte[] data = new byte[1000];
+        final byte[] expected = cmac.doFinal(data);
+        for (int i = 0; i < data.length; i += 300) {
+            cmac.update(data, i, Math.min(300, data.length - i));
+        }
+        Assert.assertArrayEquals(expected, cmac.doFinal());
+    }
+
+
+    private static Cipher cipher() throws GeneralSecurityException {
+        final Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "AES"), new IvParameterSpec(new byte[16]));
+        return cipher;
+    }
+}
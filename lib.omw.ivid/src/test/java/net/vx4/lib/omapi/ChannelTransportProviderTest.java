@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.simalliance.openmobileapi.Channel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * GET RESPONSE after 61xx and the repeated command after 6Cxx in {@link ChannelTransportProvider}.
+ *
+ * @version $Id$
+ */
+public class ChannelTransportProviderTest {
+
+    private final List<byte[]> sent = new ArrayList<byte[]>();
+    private final byte[] data = new byte[600];
+    private ChannelTransportProvider tp;
+
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        // T=0 like card returning at most 200 bytes at once and requiring the exact Le of 10 for GET CHALLENGE
+        tp = new ChannelTransportProvider(new Channel() {
+            private int ofs;
+
+
+            @Override
+            public byte[] transmit(final byte[] command) {
+                sent.add(command);
+                if (command[1] == (byte) 0x84) {
+                    return command[4] == 10 ? Hex.x("0102030405060708090A9000") : Hex.x("6C0A");
+                }
+                if (command[1] == (byte) 0xB0) {
+                    ofs = 0;
+                }
+                final int n = Math.min(200, data.length - ofs);
+                final byte[] rpdu = Arrays.copyOfRange(data, ofs, ofs + n + 2);
+                ofs += n;
+                final int left = data.length - ofs;
+                rpdu[n] = (byte) (left > 0 ? 0x61 : 0x90);
+                rpdu[n + 1] = (byte) (left > 0 ? Math.min(left, 200) : 0);
+                return rpdu;
+            }
+
+
+            @Override
+            public byte[] getSelectResponse() {
+                return Hex.x("6F038501039000");
+            }
+        });
+    }
+
+
+    @Test
+    public void chainedResponseIsGathered() {
+        final ByteBuffer response = ByteBuffer.allocate(1000);
+        Assert.assertEquals(0x9000, tp.transmit(ByteBuffer.wrap(Hex.x("03B00000000000")), response));
+        Assert.assertArrayEquals(data, Arrays.copyOf(response.array(), response.position()));
+        Assert.assertEquals(3, sent.size());
+        Assert.assertArrayEquals(Hex.x("03C00000C8"), sent.get(1));
+
+        // stops at the limit with the status word for the next part
+        tp.setMaxResponseLength(300);
+        response.clear();
+        Assert.assertEquals(0x61C8, tp.transmit(ByteBuffer.wrap(Hex.x("03B00000000000")), response));
+        Assert.assertEquals(200, response.position());
+
+        tp.setMaxResponseLength(0);
+        Assert.assertEquals(0x61C8, tp.exchange(Hex.x("03B00000000000")).sw());
+    }
+
+
+    @Test
+    public void wrongLeIsCorrected() {
+        final Response res = tp.exchange(Hex.x("0384000008"));
+        Assert.assertEquals(0x9000, res.sw());
+        Assert.assertEquals(10, res.length());
+        Assert.assertArrayEquals(Hex.x("038400000A"), sent.get(1));
+    }
+
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void arrayAdapterReturnsData() {
+        Assert.assertArrayEquals(data, tp.transmit(Hex.x("03B00000000000")));
+        Assert.assertEquals(0x9000, tp.lastSW());
+
+        Assert.assertArrayEquals(Hex.x("0102030405060708090A"), tp.transmit(Hex.x("0384000008")));
+        Assert.assertEquals(0x9000, tp.lastSW());
+    }
+
+
+    @Test
+    public void pooledBuffersAreOverwritten() {
+        // flipped and partly read
+        final ByteBuffer flipped = AbstractTransportProvider.borrow();
+        flipped.put(data);
+        flipped.flip();
+        flipped.get(new byte[10]);
+        AbstractTransportProvider.release(flipped);
+        Assert.assertArrayEquals(new byte[data.length], Arrays.copyOf(flipped.array(), data.length));
+
+        // written only
+        final ByteBuffer written = AbstractTransportProvider.borrow();
+        written.put(data);
+        AbstractTransportProvider.release(written);
+        Assert.assertArrayEquals(new byte[data.length], Arrays.copyOf(written.array(), data.length));
+    }
+}
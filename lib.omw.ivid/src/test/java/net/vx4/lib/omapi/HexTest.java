@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Encoding into the supported targets and decoding of {@link Hex}.
+ *
+ * @version $Id$
+ */
+public class HexTest {
+
+    @Test
+    public void hexTargetsAndDecoding() {
+        final byte[] b = Hex.x("00A4040C7FFF80");
+        Assert.assertEquals("00a4040c7fff80", Hex.toLowerString(b, 0, b.length));
+        Assert.assertEquals("<A4040C", Hex.append(new StringBuilder("<"), b, 1, 3).toString());
+        Assert.assertEquals("A4040C", Hex.toString(ByteBuffer.wrap(b, 1, 3)));
+        final ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put(b, 1, 3).rewind();
+        Assert.assertEquals("A4040C", Hex.toString(direct));
+
+        final char[] chars = new char[16];
+        Assert.assertEquals(15, Hex.encode(b, 0, b.length, chars, 1));
+        Assert.assertEquals("00A4040C7FFF80", new String(chars, 1, 14));
+
+        final ByteBuffer ascii = ByteBuffer.allocate(4);
+        Hex.encode(b, 5, 2, ascii, false);
+        Assert.assertEquals("ff80", new String(ascii.array(), Charset.forName("US-ASCII")));
+
+        // ranges of any char sequence, mixed case
+        final StringBuilder sb = new StringBuilder("APDU: 00a4040C");
+        Assert.assertArrayEquals(Hex.x("00A4040C"), Hex.decode(sb, 6, sb.length(), true));
+        final byte[] out = new byte[3];
+        Assert.assertEquals(2, Hex.decode(sb, 8, 12, out, 1, true));
+        Assert.assertArrayEquals(Hex.x("00A404"), out);
+
+        // an odd number of digits is only taken as leading half byte in lenient mode
+        Assert.assertArrayEquals(Hex.x("040C"), Hex.decode(sb, 11, sb.length(), false));
+        for (final String invalid : new String[]{"A40", "0G", "G0", "0\u00e0"}) {
+            try {
+                Hex.decode(invalid, 0, invalid.length(), true);
+                Assert.fail(invalid);
+            } catch (final IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+
+    @Test
+    public void oddLengthIsRejectedInStrictMode() {
+        final byte[] out = new byte[2];
+        try {
+            Hex.decode("A40", 0, 3, out, 0, true);
+            Assert.fail("A40");
+        } catch (final IllegalArgumentException e) {
+            // expected, before anything was written
+            Assert.assertArrayEquals(new byte[2], out);
+        }
+        try {
+            Hex.decode("00A40", 0, 5, true);
+            Assert.fail("00A40");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+
+        // taken as leading half byte in lenient mode
+        Assert.assertEquals(2, Hex.decode("A40", 0, 3, out, 0, false));
+        Assert.assertArrayEquals(Hex.x("0A40"), out);
+    }
+
+
+    @Test
+    public void digitsBeyondLatin1AreRejected() {
+        // the low byte of U+0130 is '0' and of U+0141 'A', which must not be taken for the digit
+        for (final String invalid : new String[]{"\u01300", "0\u0130", "\u0141A", "A\u0141", "\u0130"}) {
+            try {
+                Hex.decode(invalid, 0, invalid.length(), false);
+                Assert.fail(invalid);
+            } catch (final IllegalArgumentException e) {
+                // expected
+            }
+            try {
+                Hex.decode(invalid, 0, invalid.length(), new byte[1], 0, false);
+                Assert.fail(invalid);
+            } catch (final IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            Hex.fromDigit('\u0130');
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
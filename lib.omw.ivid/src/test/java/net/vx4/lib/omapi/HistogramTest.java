@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Buckets and percentiles of {@link Histogram}.
+ *
+ * @version $Id$
+ */
+public class HistogramTest {
+
+    @Test
+    public void bucketsCoverTheirValues() {
+        long previous = -1;
+        for (int i = 0; i < 960; i++) {
+            final long highest = Histogram.highestValue(i);
+            Assert.assertTrue(highest > previous);
+            Assert.assertEquals(i, Histogram.index(highest));
+            Assert.assertEquals(i, Histogram.index(previous + 1));
+            previous = highest;
+        }
+        Assert.assertEquals(Long.MAX_VALUE, previous);
+    }
+
+
+    @Test
+    public void percentilesWithinPrecision() {
+        final Histogram h = new Histogram();
+        for (int v = 1; v <= 10000; v++) {
+            h.record(v * 1000L);
+        }
+
+        Assert.assertEquals(10000, h.getCount());
+        Assert.assertEquals(10000000, h.getMax());
+        Assert.assertEquals(5000500, h.getMean(), 0.001);
+        assertNear(5000000, h.getValueAtPercentile(50));
+        assertNear(9900000, h.getValueAtPercentile(99));
+        Assert.assertEquals(10000000, h.getValueAtPercentile(100));
+
+        h.reset();
+        Assert.assertEquals(0, h.getCount());
+        Assert.assertEquals(0, h.getValueAtPercentile(99));
+    }
+
+
+    private static void assertNear(final long expected, final long actual) {
+        Assert.assertTrue(actual + " not near " + expected, actual >= expected && actual <= expected * 1.0625);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link ISOSMTransport} on a parent implementing only the array based {@link TransportProvider}.
+ *
+ * @version $Id$
+ */
+public class ISOSMTransportTest {
+
+    private final List<byte[]> sent = new ArrayList<byte[]>();
+    private ISOSMTransport sm;
+
+
+    @Before
+    public void setUp() {
+        // returns the data without status word and keeps the status word for lastSW
+        sm = new ISOSMTransport(new TransportProvider() {
+            private int sw = -1;
+
+
+            @Override
+            public Object getParent() {
+                return null;
+            }
+
+
+            @Override
+            public byte[] transmit(final byte[] apdu) {
+                sent.add(apdu);
+                sw = apdu[1] == (byte) 0xB0 ? 0x9000 : 0x6A82;
+                return apdu[1] == (byte) 0xB0 ? Hex.x("0102") : new byte[0];
+            }
+
+
+            @Override
+            @Deprecated
+            public int lastSW() {
+                return sw;
+            }
+
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+
+    @Test
+    public void plainCommandsArePassedToTheParent() throws Exception {
+        final Response read = sm.exchange(Hex.x("00B0000002"));
+        Assert.assertEquals(0x9000, read.sw());
+        Assert.assertArrayEquals(Hex.x("0102"), read.data());
+
+        final ByteBuffer response = ByteBuffer.allocate(16);
+        Assert.assertEquals(0x6A82, sm.transmit(ByteBuffer.wrap(Hex.x("00A4020C020101")), response));
+        Assert.assertEquals(0, response.position());
+
+        final ResponseFuture future = new ResponseFuture();
+        sm.transmit(Hex.x("00B0000002"), future);
+        Assert.assertArrayEquals(Hex.x("0102"), future.get().data());
+        Assert.assertEquals(3, sent.size());
+    }
+
+
+    @Test
+    public void scriptStopsAtUnexpectedStatusWord() {
+        final ScriptResult result = sm.run(new APDUScript()
+                .add(Hex.x("00B0000002"))
+                .add(Hex.x("00A4020C020101"))
+                .add(Hex.x("00B0000002")));
+
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(1, result.failed());
+        Assert.assertArrayEquals(Hex.x("0102"), result.response(0).data());
+        Assert.assertEquals(0x6A82, result.sw(1));
+        Assert.assertArrayEquals(Hex.x("00A4020C020101"), sent.get(1));
+    }
+}
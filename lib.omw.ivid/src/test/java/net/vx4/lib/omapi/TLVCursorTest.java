@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Walking nested objects with {@link TLVCursor} against the lookups of {@link TLV}.
+ *
+ * @version $Id$
+ */
+public class TLVCursorTest {
+
+    private final byte[] fci = Hex.x("6F118201388302011C8501018A01055F2F0100");
+
+
+    @Test
+    public void nestedDescent() {
+        final byte[] framed = TLV.concat(new byte[]{0x55, 0x55}, fci, new byte[]{0x55});
+        final TLVCursor c = new TLVCursor(framed, 2, fci.length);
+
+        Assert.assertTrue(c.find(0x6F));
+        Assert.assertTrue(c.isConstructed());
+        c.enter();
+        Assert.assertEquals(1, c.depth());
+
+        Assert.assertTrue(c.find(0x85));
+        Assert.assertArrayEquals(TLV.get(TLV.get(fci, (byte) 0x6F), (byte) 0x85), c.value());
+        Assert.assertTrue(c.next());
+        Assert.assertEquals(0x8A, c.tag());
+        Assert.assertTrue(c.next());
+        Assert.assertEquals(0x5F2F, c.tag());
+        Assert.assertEquals(framed.length - 2, c.valueOffset());
+        Assert.assertEquals(4, c.length());
+        Assert.assertFalse(c.next());
+
+        c.exit();
+        Assert.assertEquals(0, c.depth());
+        Assert.assertFalse(c.next());
+    }
+
+
+    @Test
+    public void longLengthAndBuffer() {
+        final byte[] value = new byte[300];
+        value[299] = 0x42;
+        final byte[] tlv = TLV.concat(TLV.build(0x87, value), TLV.build(0x99, Hex.x("9000")));
+
+        final TLVCursor c = new TLVCursor(ByteBuffer.wrap(tlv));
+        Assert.assertTrue(c.find(0x99));
+        Assert.assertTrue(c.valueEquals(Hex.x("9000")));
+
+        c.reset(tlv, 0, tlv.length);
+        Assert.assertTrue(c.next());
+        Assert.assertEquals(0x87, c.tag());
+        Assert.assertEquals(300, c.valueLength());
+        Assert.assertEquals(0x42, c.valueBuffer().get(299));
+    }
+
+
+    @Test
+    public void truncatedObjectEndsLevel() {
+        final byte[] tlv = Hex.x("8501018A05010203");
+        final TLVCursor c = new TLVCursor(tlv);
+        Assert.assertTrue(c.next());
+        Assert.assertFalse(c.next());
+        Assert.assertEquals(-1, c.tag());
+        Assert.assertFalse(c.next());
+
+        // indefinite length and a length exceeding four bytes
+        Assert.assertFalse(new TLVCursor(Hex.x("30800000")).next());
+        Assert.assertFalse(new TLVCursor(Hex.x("048500000000010000")).next());
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Path queries on a {@link TLVIndex} of a CMS like structure.
+ *
+ * @version $Id$
+ */
+public class TLVIndexTest {
+
+    private final byte[] eContent = TLV.build(0x31, TLV.concat(
+            TLV.build(0x30, TLV.build(0x06, Hex.x("04007F000702020402"))),
+            TLV.build(0x30, TLV.build(0x06, Hex.x("04007F000702020302")))));
+
+    /**
+     * ContentInfo / SignedData with version, digest algorithms, encapsulated content and signer infos.
+     */
+    private final byte[] cms = TLV.build(0x30, TLV.concat(
+            TLV.build(0x06, Hex.x("2A864886F70D010702")),
+            TLV.build(0xA0, TLV.build(0x30, TLV.concat(
+                    TLV.build(0x02, new byte[]{0x03}),
+                    TLV.build(0x31, TLV.build(0x30, TLV.build(0x06, Hex.x("608648016503040204")))),
+                    TLV.build(0x30, TLV.concat(TLV.build(0x06, Hex.x("04007F0007030201")),
+                            TLV.build(0xA0, TLV.build(0x04, eContent)))),
+                    TLV.build(0x31, TLV.build(0x30, TLV.build(0x02, new byte[]{0x01}))))))));
+
+
+    @Test
+    public void pathQueries() {
+        final TLVIndex index = new TLVIndex(cms);
+        Assert.assertEquals(15, index.size());
+
+        final int octets = index.find("30/A0/30/30/A0/04");
+        Assert.assertEquals(octets, index.find(0x30, 0xA0, 0x30, 0x30, 0xA0, 0x04));
+        Assert.assertArrayEquals(eContent, index.value(octets));
+        Assert.assertEquals(-1, index.firstChild(octets));
+        Assert.assertEquals(-1, index.find("30/A0/30/04"));
+
+        // the second SET of SignedData are the signer infos
+        final int signedData = index.find("30/A0/30");
+        final int digestAlgorithms = index.child(signedData, 0x31);
+        final int signerInfos = index.nextSame(digestAlgorithms);
+        Assert.assertEquals(-1, index.nextSame(signerInfos));
+        Assert.assertEquals(signedData, index.parent(signerInfos));
+        Assert.assertEquals(-1, index.nextSibling(signerInfos));
+        Assert.assertEquals(cms.length - index.length(signerInfos), index.offset(signerInfos));
+
+        // the encapsulated content is indexed in place
+        final TLVIndex infos = new TLVIndex(cms, index.valueOffset(octets), index.valueLength(octets));
+        final int first = infos.find("31/30");
+        Assert.assertTrue(infos.nextSame(first) > first);
+        Assert.assertArrayEquals(Hex.x("04007F000702020302"), infos.value(infos.firstChild(infos.nextSame(first))));
+    }
+
+
+    @Test
+    public void truncatedAndInvalid() {
+        final TLVIndex index = new TLVIndex(Hex.x("300A8501018A05010203"));
+        Assert.assertEquals(0, index.size());
+        Assert.assertEquals(-1, index.find("30"));
+
+        try {
+            index.find("30//04");
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
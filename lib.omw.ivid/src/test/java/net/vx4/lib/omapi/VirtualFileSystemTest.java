@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads from array and mapped content of a {@link VirtualFileSystem}.
+ *
+ * @version $Id$
+ */
+public class VirtualFileSystemTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] content = new byte[600];
+
+
+    public VirtualFileSystemTest() {
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+    }
+
+
+    @Test
+    public void arrayContent() {
+        final VirtualFileSystem vfs = new VirtualFileSystem().addFile(0x0101, 0x01, content);
+        final VirtualFileSystem.EF ef = vfs.fileBySFI(1);
+        Assert.assertSame(ef, vfs.file(0x0101));
+        Assert.assertNull(vfs.fileBySFI(2));
+
+        // chunks of 256 bytes are built once
+        Assert.assertSame(ef.read(256, 256), ef.read(256, 256));
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 512, 600), ef.read(512, 256).data());
+        Assert.assertEquals(0x6282, ef.read(512, 256).sw());
+        Assert.assertEquals(0x6282, ef.read(0, 65536).sw());
+        Assert.assertEquals(0x9000, ef.read(590, 10).sw());
+        Assert.assertEquals(0x6B00, ef.read(601, 1).sw());
+
+        final ByteBuffer response = ByteBuffer.allocate(16);
+        Assert.assertEquals(0x9000, ef.read(16, 16, response));
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 16, 32), response.array());
+    }
+
+
+    @Test
+    public void profileDirectoryIsMappedOnFirstRead() throws IOException {
+        final File dir = folder.newFolder();
+        write(new File(dir, "011C.1C"), content);
+        write(new File(dir, "2F00"), new byte[]{0x61, 0x00});
+        write(new File(dir, "README"), new byte[1]);
+
+        final VirtualFileSystem vfs = VirtualFileSystem.fromDirectory(dir);
+        Assert.assertNull(vfs.file(0x2F01));
+        Assert.assertEquals(2, vfs.file(0x2F00).length());
+
+        final VirtualFileSystem.EF ef = vfs.fileBySFI(0x1C);
+        Assert.assertEquals(0x011C, ef.getFID());
+        final Response res = ef.read(400, 255);
+        Assert.assertEquals(0x6282, res.sw());
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 400, 600), res.data());
+
+        final ByteBuffer response = ByteBuffer.allocate(300);
+        Assert.assertEquals(0x9000, ef.read(0, 300, response));
+        Assert.assertArrayEquals(Arrays.copyOf(content, 300), response.array());
+    }
+
+
+    private static void write(final File file, final byte[] data) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.se;
+
+/**
+ * A secure element behind the OMAPI classes {@link org.simalliance.openmobileapi.SEService},
+ * {@link org.simalliance.openmobileapi.Reader}, {@link org.simalliance.openmobileapi.Session} and
+ * {@link org.simalliance.openmobileapi.Channel}, registered with {@link SecureElements}. Logical channels are
+ * managed with MANAGE CHANNEL and SELECT APDUs, as on the physical interface, so an implementation only has to
+ * answer APDUs with the channel number coded in the class byte.
+ *
+ * @version $Id$
+ */
+public interface SecureElement {
+
+    /**
+     * @return answer to reset
+     */
+    byte[] getATR();
+
+
+    /**
+     * Processes a command APDU. Calls may come from several threads, so implementations serialize them like the
+     * physical interface does.
+     *
+     * @param command - command APDU with the channel number in the class byte
+     * @return response APDU including the status word
+     */
+    byte[] transmit(byte[] command);
+}
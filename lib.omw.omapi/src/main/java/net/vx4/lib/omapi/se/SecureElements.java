@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.se;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Registry of the secure elements reported as readers by {@link org.simalliance.openmobileapi.SEService}. Without
+ * registered secure elements the service reports no readers.
+ *
+ * @version $Id$
+ */
+public final class SecureElements {
+
+    private static final Map<String, SecureElement> ELEMENTS = new LinkedHashMap<String, SecureElement>();
+
+
+    private SecureElements() {
+    }
+
+
+    /**
+     * Registers a secure element, replacing a secure element registered with the same reader name.
+     *
+     * @param readerName - name of the reader presenting the secure element
+     * @param se         - the secure element
+     */
+    public static synchronized void register(final String readerName, final SecureElement se) {
+        if (readerName == null || se == null) {
+            throw new NullPointerException("reader name and secure element required");
+        }
+        ELEMENTS.put(readerName, se);
+    }
+
+
+    /**
+     * Removes the secure element of the given reader. Sessions already opened to it stay usable.
+     *
+     * @param readerName - name of the reader
+     */
+    public static synchronized void unregister(final String readerName) {
+        ELEMENTS.remove(readerName);
+    }
+
+
+    /**
+     * @return reader names and secure elements in order of registration
+     */
+    public static synchronized Map<String, SecureElement> getAll() {
+        return new LinkedHashMap<String, SecureElement>(ELEMENTS);
+    }
+}
@@ -1,33 +1,72 @@
 package org.simalliance.openmobileapi;
 
 public class Channel {
+    private final Session session;
+    private final int number;
+    private final byte[] selectResponse;
+    private volatile boolean closed = false;
+
+
+    Channel(final Session session, final int number, final byte[] selectResponse) {
+        this.session = session;
+        this.number = number;
+        this.selectResponse = selectResponse;
+    }
+
+
+    /**
+     * Channel not connected to a secure element, for subclasses answering {@link #transmit(byte[])} themselves.
+     */
+    public Channel() {
+        this(null, 0, null);
+    }
+
+
     public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (session != null) {
+            session.closed(this);
+        }
     }
 
 
     public Session getSession() {
-        return null;
+        return session;
     }
 
 
     public boolean isBasicChannel() {
-        return false;
+        return number == 0;
     }
 
 
     public boolean isClosed() {
-        return false;
+        return closed;
     }
 
 
     public byte[] transmit(final byte[] command) {
-        return null;
+        if (closed) {
+            throw new IllegalStateException("channel closed");
+        }
+        if (session == null) {
+            return null;
+        }
+        return session.transmit(number, command);
     }
 
 
     public byte[] getSelectResponse() {
-        return null;
+        return selectResponse != null ? selectResponse.clone() : null;
+    }
+
+
+    int getNumber() {
+        return number;
     }
 
 
-}
\ No newline at end of file
+}
@@ -1,35 +1,68 @@
 package org.simalliance.openmobileapi;
 
+import net.vx4.lib.omapi.se.SecureElement;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class Reader {
+    private final String name;
+    private final SEService service;
+    private final SecureElement se;
+    private final List<Session> sessions = new ArrayList<Session>();
+
+
     Reader(final String name, final SEService service) {
+        this(name, service, null);
+    }
+
+
+    Reader(final String name, final SEService service, final SecureElement se) {
+        this.name = name;
+        this.service = service;
+        this.se = se;
     }
 
 
     public String getName() {
-        return null;
+        return name;
     }
 
 
     public Session openSession() throws IOException {
-        return null;
+        if (se == null) {
+            throw new IOException("no secure element present in " + name);
+        }
+        final Session session = new Session(this, se);
+        synchronized (sessions) {
+            sessions.add(session);
+        }
+        return session;
     }
 
 
     public boolean isSecureElementPresent() {
-        return false;
+        return se != null;
     }
 
 
     public SEService getSEService() {
-        return null;
+        return service;
     }
 
 
     public void closeSessions() {
+        final Session[] open;
+        synchronized (sessions) {
+            open = sessions.toArray(new Session[sessions.size()]);
+            sessions.clear();
+        }
+        for (final Session session : open) {
+            session.close();
+        }
     }
 
 
-}
\ No newline at end of file
+}
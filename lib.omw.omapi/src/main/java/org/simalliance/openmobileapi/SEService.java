@@ -1,24 +1,41 @@
 package org.simalliance.openmobileapi;
 
 import android.content.Context;
+import net.vx4.lib.omapi.se.SecureElement;
+import net.vx4.lib.omapi.se.SecureElements;
+
+import java.util.Map;
 
 
 public class SEService {
+    private boolean connected = true;
+
+
     public SEService(final Context context, final SEService.CallBack listener) {
+        if (listener != null) {
+            listener.serviceConnected(this);
+        }
     }
 
 
     public Reader[] getReaders() {
-        return null;
+        final Map<String, SecureElement> elements = SecureElements.getAll();
+        final Reader[] readers = new Reader[elements.size()];
+        int i = 0;
+        for (final Map.Entry<String, SecureElement> e : elements.entrySet()) {
+            readers[i++] = new Reader(e.getKey(), this, e.getValue());
+        }
+        return readers;
     }
 
 
     public boolean isConnected() {
-        return true;
+        return connected;
     }
 
 
     public void shutdown() {
+        connected = false;
     }
 
 
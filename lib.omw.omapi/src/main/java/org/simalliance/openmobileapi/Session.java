@@ -1,37 +1,168 @@
 package org.simalliance.openmobileapi;
 
+import net.vx4.lib.omapi.se.SecureElement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
 public class Session {
+    private static final int MAX_CHANNELS = 20;
+
+    private final Reader reader;
+    private final SecureElement se;
+    private final List<Channel> channels = new ArrayList<Channel>();
+    private boolean closed = false;
+
+
+    Session(final Reader reader, final SecureElement se) {
+        this.reader = reader;
+        this.se = se;
+    }
+
+
     public void close() {
+        closeChannels();
+        closed = true;
     }
 
 
     public void closeChannels() {
+        final Channel[] open;
+        synchronized (channels) {
+            open = channels.toArray(new Channel[channels.size()]);
+        }
+        for (final Channel channel : open) {
+            channel.close();
+        }
     }
 
 
     public byte[] getATR() {
-        return null;
+        return se != null ? se.getATR() : null;
     }
 
 
     public Reader getReader() {
-        return null;
+        return reader;
     }
 
 
     public boolean isClosed() {
-        return false;
+        return closed;
     }
 
 
     public Channel openBasicChannel(final byte[] aid) {
-        return null;
+        if (se == null || closed) {
+            return null;
+        }
+        synchronized (channels) {
+            for (final Channel channel : channels) {
+                if (channel.isBasicChannel()) {
+                    return null;
+                }
+            }
+            final Channel channel = new Channel(this, 0, aid != null ? select(0, aid) : null);
+            channels.add(channel);
+            return channel;
+        }
     }
 
 
     public Channel openLogicalChannel(final byte[] aid) {
-        return null;
+        if (se == null || closed) {
+            return null;
+        }
+
+        // MANAGE CHANNEL open
+        final byte[] res = se.transmit(new byte[]{0x00, 0x70, 0x00, 0x00, 0x01});
+        if (res == null || res.length != 3 || sw(res) != 0x9000 || res[0] <= 0 || res[0] >= MAX_CHANNELS) {
+            return null;
+        }
+
+        final int number = res[0];
+        final byte[] selectResponse;
+        try {
+            selectResponse = select(number, aid);
+        } catch (final RuntimeException e) {
+            transmit(number, new byte[]{0x00, 0x70, (byte) 0x80, (byte) number});
+            throw e;
+        }
+
+        final Channel channel = new Channel(this, number, selectResponse);
+        synchronized (channels) {
+            channels.add(channel);
+        }
+        return channel;
+    }
+
+
+    byte[] transmit(final int number, final byte[] command) {
+        if (closed) {
+            throw new IllegalStateException("session closed");
+        }
+        final byte[] apdu = command.clone();
+        apdu[0] = encodeChannel(apdu[0], number);
+        return se.transmit(apdu);
+    }
+
+
+    void closed(final Channel channel) {
+        if (!channel.isBasicChannel()) {
+            // MANAGE CHANNEL close
+            se.transmit(new byte[]{encodeChannel((byte) 0x00, channel.getNumber()), 0x70, (byte) 0x80,
+                    (byte) channel.getNumber()});
+        }
+        synchronized (channels) {
+            channels.remove(channel);
+        }
+    }
+
+
+    private byte[] select(final int number, final byte[] aid) {
+        final byte[] apdu = new byte[6 + (aid != null ? aid.length : 0)];
+        apdu[1] = (byte) 0xA4;
+        apdu[2] = 0x04;
+        if (aid != null) {
+            apdu[4] = (byte) aid.length;
+            System.arraycopy(aid, 0, apdu, 5, aid.length);
+        }
+
+        final byte[] res = transmit(number, apdu);
+        final int sw = res != null && res.length >= 2 ? sw(res) : -1;
+        if (sw != 0x9000 && (sw & 0xFF00) != 0x6200 && (sw & 0xFF00) != 0x6300) {
+            throw new NoSuchElementException("SELECT failed with " + Integer.toHexString(sw));
+        }
+        return res;
+    }
+
+
+    private static int sw(final byte[] res) {
+        return (res[res.length - 2] & 0xFF) << 8 | res[res.length - 1] & 0xFF;
+    }
+
+
+    /**
+     * Codes the logical channel number in the class byte, first interindustry class for channel 0 to 3, further
+     * interindustry class for channel 4 to 19. Secure messaging, chaining and proprietary bits are kept.
+     */
+    static byte encodeChannel(final byte cla, final int number) {
+        if (cla == (byte) 0xFF) {
+            return cla;
+        }
+
+        final boolean further = (cla & 0x40) != 0;
+        if (number < 4) {
+            if (further) {
+                return (byte) (cla & 0x90 | ((cla & 0x20) != 0 ? 0x0C : 0) | number);
+            }
+            return (byte) (cla & 0xBC | number);
+        }
+
+        final boolean sm = further ? (cla & 0x20) != 0 : (cla & 0x0C) != 0;
+        return (byte) (cla & 0x90 | 0x40 | (sm ? 0x20 : 0) | number - 4);
     }
 
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.sim;
+
+/**
+ * Command APDU parsed into header, command data and expected response length, short or extended length.
+ *
+ * @version $Id$
+ */
+final class Command {
+
+    final byte cla, ins, p1, p2;
+    final byte[] data;
+    /**
+     * Maximum number of response bytes expected, 0 if no Le field is present.
+     */
+    final int ne;
+
+
+    Command(final byte cla, final byte ins, final byte p1, final byte p2, final byte[] data, final int ne) {
+        this.cla = cla;
+        this.ins = ins;
+        this.p1 = p1;
+        this.p2 = p2;
+        this.data = data;
+        this.ne = ne;
+    }
+
+
+    /**
+     * @param apdu - the command APDU
+     * @return the parsed command or null if the APDU is malformed
+     */
+    static Command parse(final byte[] apdu) {
+        if (apdu == null || apdu.length < 4) {
+            return null;
+        }
+
+        final int len = apdu.length;
+        int dataOfs = 0, lc = 0, ne = 0;
+
+        if (len == 5) { // case 2 short
+            ne = apdu[4] == 0 ? 256 : apdu[4] & 0xFF;
+        } else if (len > 5 && apdu[4] != 0) { // case 3 or 4 short
+            lc = apdu[4] & 0xFF;
+            dataOfs = 5;
+            if (len == 6 + lc) {
+                ne = apdu[len - 1] == 0 ? 256 : apdu[len - 1] & 0xFF;
+            } else if (len != 5 + lc) {
+                return null;
+            }
+        } else if (len == 7) { // case 2 extended
+            ne = (apdu[5] & 0xFF) << 8 | apdu[6] & 0xFF;
+            ne = ne == 0 ? 65536 : ne;
+        } else if (len > 7) { // case 3 or 4 extended
+            lc = (apdu[5] & 0xFF) << 8 | apdu[6] & 0xFF;
+            dataOfs = 7;
+            if (len == 9 + lc) {
+                ne = (apdu[len - 2] & 0xFF) << 8 | apdu[len - 1] & 0xFF;
+                ne = ne == 0 ? 65536 : ne;
+            } else if (len != 7 + lc) {
+                return null;
+            }
+        } else if (len != 4) {
+            return null;
+        }
+
+        final byte[] data = new byte[lc];
+        System.arraycopy(apdu, dataOfs, data, 0, lc);
+        return new Command(apdu[0], apdu[1], apdu[2], apdu[3], data, ne);
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.sim;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * State of one logical channel of the simulator: the selected file, the secure messaging session and the data of
+ * chained ENVELOPE commands.
+ *
+ * @version $Id$
+ */
+final class LogicalChannel {
+
+    final int number;
+    ElementaryFile currentEF = null;
+    SMSession session = null;
+    final ByteArrayOutputStream envelope = new ByteArrayOutputStream();
+
+
+    LogicalChannel(final int number) {
+        this.number = number;
+    }
+}
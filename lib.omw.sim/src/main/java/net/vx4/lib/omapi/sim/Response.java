@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.sim;
+
+/**
+ * Response data and status word of a command processed by the simulator.
+ *
+ * @version $Id$
+ */
+final class Response {
+
+    private static final byte[] NO_DATA = new byte[0];
+
+    final byte[] data;
+    final int sw;
+
+
+    Response(final byte[] data, final int sw) {
+        this.data = data != null ? data : NO_DATA;
+        this.sw = sw;
+    }
+
+
+    Response(final int sw) {
+        this(NO_DATA, sw);
+    }
+
+
+    /**
+     * @return response APDU, data followed by the status word
+     */
+    byte[] toBytes() {
+        final byte[] rpdu = new byte[data.length + 2];
+        System.arraycopy(data, 0, rpdu, 0, data.length);
+        rpdu[data.length] = (byte) (sw >> 8);
+        rpdu[data.length + 1] = (byte) sw;
+        return rpdu;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.sim;
+
+import net.vx4.lib.omapi.ArrayTool;
+import net.vx4.lib.omapi.CMac;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Card side of a secure messaging session with AES keys, as established by PACE-light: send sequence counter,
+ * encryption with an IV derived from it and AES-CMAC truncated to 8 bytes.
+ *
+ * @version $Id$
+ */
+final class SMSession {
+
+    private final SecretKeySpec kEnc;
+    private final Cipher ecb, cbc;
+    private final CMac cmac;
+    private long ssc = 0;
+
+
+    SMSession(final byte[] kEnc, final byte[] kMac) throws GeneralSecurityException {
+        this.kEnc = new SecretKeySpec(kEnc, "AES");
+        ecb = Cipher.getInstance("AES/ECB/NoPadding");
+        ecb.init(Cipher.ENCRYPT_MODE, this.kEnc);
+        cbc = Cipher.getInstance("AES/CBC/NoPadding");
+
+        final Cipher macCipher = Cipher.getInstance("AES/CBC/NoPadding");
+        macCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(kMac, "AES"), new IvParameterSpec(new byte[16]));
+        cmac = new CMac(macCipher, 8);
+    }
+
+
+    /**
+     * Increments the send sequence counter, once for each command and response.
+     */
+    void increment() {
+        ssc++;
+    }
+
+
+    /**
+     * Computes the MAC over the current send sequence counter and the given parts, each padded separately.
+     *
+     * @param parts - data to authenticate, empty parts are skipped
+     * @return MAC of 8 bytes
+     * @throws GeneralSecurityException if the MAC can't be computed
+     */
+    byte[] mac(final byte[]... parts) throws GeneralSecurityException {
+        final byte[] block = sscBlock();
+        cmac.update(block, 0, block.length);
+        for (final byte[] part : parts) {
+            if (part.length > 0) {
+                final byte[] padded = pad(part);
+                cmac.update(padded, 0, padded.length);
+            }
+        }
+        return cmac.doFinal();
+    }
+
+
+    /**
+     * @param data - plain data
+     * @return data padded and encrypted with the IV of the current send sequence counter
+     * @throws GeneralSecurityException if the encryption fails
+     */
+    byte[] encrypt(final byte[] data) throws GeneralSecurityException {
+        cbc.init(Cipher.ENCRYPT_MODE, kEnc, new IvParameterSpec(ecb.doFinal(sscBlock())));
+        return cbc.doFinal(pad(data));
+    }
+
+
+    /**
+     * @param data - encrypted data
+     * @return data decrypted with the IV of the current send sequence counter and without padding
+     * @throws GeneralSecurityException if the decryption fails or the padding is wrong
+     */
+    byte[] decrypt(final byte[] data) throws GeneralSecurityException {
+        cbc.init(Cipher.DECRYPT_MODE, kEnc, new IvParameterSpec(ecb.doFinal(sscBlock())));
+        final byte[] plain = cbc.doFinal(data);
+        int len = plain.length - 1;
+        while (len >= 0 && plain[len] == 0) {
+            len--;
+        }
+        if (len < 0 || plain[len] != (byte) 0x80) {
+            throw new GeneralSecurityException("invalid padding");
+        }
+        return Arrays.copyOf(plain, len);
+    }
+
+
+    private byte[] sscBlock() {
+        final byte[] block = new byte[16];
+        ArrayTool.putLong(block, 8, ssc);
+        return block;
+    }
+
+
+    /**
+     * ISO/IEC 9797-1 padding method 2 to the AES block size.
+     */
+    static byte[] pad(final byte[] data) {
+        final byte[] padded = new byte[data.length + 16 - data.length % 16];
+        System.arraycopy(data, 0, padded, 0, data.length);
+        padded[data.length] = (byte) 0x80;
+        return padded;
+    }
+}
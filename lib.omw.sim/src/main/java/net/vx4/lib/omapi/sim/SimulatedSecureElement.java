@@ -0,0 +1,506 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.sim;
+
+import net.vx4.lib.omapi.TLV;
+import net.vx4.lib.omapi.TLVCursor;
+import net.vx4.lib.omapi.se.SecureElement;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory secure element with one application, to run the OMAPI stack off-device. Registered with
+ * {@link net.vx4.lib.omapi.se.SecureElements} it is reported as reader by the OMAPI service stub. It supports
+ * <ul>
+ * <li>MANAGE CHANNEL with 19 logical channels and the channel number coded in the class byte</li>
+ * <li>SELECT of the application by AID, answered with an FCI containing the channel number in tag 85, and SELECT of
+ * its files by FID</li>
+ * <li>READ BINARY by offset or short file identifier</li>
+ * <li>chained ENVELOPE commands carrying extended length APDUs</li>
+ * <li>PACE-light (80 CE) with the secret given, followed by secure messaging with verified MACs</li>
+ * </ul>
+ * Every APDU can be delayed by a configurable latency. APDUs are processed one at a time, like on the physical
+ * interface, so the latency adds up for concurrent callers. Callers wait on a lock instead of a monitor, so virtual
+ * threads waiting for the secure element don't pin their carrier thread.
+ *
+ * @version $Id$
+ */
+public class SimulatedSecureElement implements SecureElement {
+
+    /**
+     * Number of channels including the basic channel.
+     */
+    public static final int CHANNELS = 20;
+
+    private static final byte[] DEFAULT_ATR = {0x3B, (byte) 0x80, (byte) 0x80, 0x01, 0x01};
+
+    private final byte[] aid;
+    private final byte[] secret;
+    private final Map<Integer, ElementaryFile> files = new HashMap<Integer, ElementaryFile>();
+    private final ElementaryFile[] bySFI = new ElementaryFile[32];
+    private final LogicalChannel[] channels = new LogicalChannel[CHANNELS];
+    private final SecureRandom random = new SecureRandom();
+    private byte[] atr = DEFAULT_ATR;
+    private byte[] caReference = "DETESTeID00005".getBytes(StandardCharsets.ISO_8859_1);
+    private volatile long latency = 0;
+    private int macFailures = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+
+
+    /**
+     * @param aid    - AID of the application
+     * @param secret - AES key of 16, 24 or 32 bytes shared for PACE-light
+     */
+    public SimulatedSecureElement(final byte[] aid, final byte[] secret) {
+        if (aid == null || secret == null) {
+            throw new NullPointerException("AID and secret required");
+        }
+        if (secret.length != 16 && secret.length != 24 && secret.length != 32) {
+            throw new IllegalArgumentException("secret must be an AES key");
+        }
+        this.aid = aid.clone();
+        this.secret = secret.clone();
+        channels[0] = new LogicalChannel(0);
+    }
+
+
+    /**
+     * Adds a transparent file to the application, replacing a file with the same FID.
+     *
+     * @param fid     - file identifier
+     * @param sfi     - short file identifier from 1 to 30, or 0 if the file has none
+     * @param content - content of the file
+     */
+    public void addFile(final int fid, final int sfi, final byte[] content) {
+        if (sfi < 0 || sfi > 30) {
+            throw new IllegalArgumentException("invalid SFI " + sfi);
+        }
+        final ElementaryFile ef = new ElementaryFile(fid, sfi, content.clone());
+        lock.lock();
+        try {
+            files.put(fid, ef);
+            if (sfi != 0) {
+                bySFI[sfi] = ef;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Sets the time every APDU takes at least, measured from the start of its processing.
+     *
+     * @param latency - latency, 0 to answer immediately
+     * @param unit    - unit of the latency
+     */
+    public void setLatency(final long latency, final TimeUnit unit) {
+        this.latency = unit.toNanos(latency);
+    }
+
+
+    /**
+     * @param atr - answer to reset reported by the OMAPI session
+     */
+    public void setATR(final byte[] atr) {
+        lock.lock();
+        try {
+            this.atr = atr.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @param caReference - CA reference returned at the end of PACE-light
+     */
+    public void setCAReference(final byte[] caReference) {
+        lock.lock();
+        try {
+            this.caReference = caReference.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return number of commands rejected because of a wrong MAC
+     */
+    public int getMACFailures() {
+        lock.lock();
+        try {
+            return macFailures;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public byte[] getATR() {
+        lock.lock();
+        try {
+            return atr.clone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    @Override
+    public byte[] transmit(final byte[] command) {
+        lock.lock();
+        try {
+            final long start = System.nanoTime();
+
+            Response res;
+            try {
+                res = process(command);
+            } catch (final GeneralSecurityException e) {
+                res = new Response(0x6F00);
+            } catch (final RuntimeException e) {
+                res = new Response(0x6F00);
+            }
+
+            final long delay = latency;
+            if (delay > 0) {
+                final long deadline = start + delay;
+                long left;
+                while ((left = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(left);
+                }
+            }
+            return res.toBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    private Response process(final byte[] apdu) throws GeneralSecurityException {
+        if (apdu == null || apdu.length < 4) {
+            return new Response(0x6700);
+        }
+
+        final byte cla = apdu[0];
+        if (cla == (byte) 0xFF) {
+            return new Response(0x6E00);
+        }
+
+        // first interindustry class for channel 0 to 3, further interindustry class for channel 4 to 19
+        final boolean further = (cla & 0x40) != 0;
+        final int number = further ? 4 + (cla & 0x0F) : cla & 0x03;
+        final boolean sm = further ? (cla & 0x20) != 0 : (cla & 0x0C) != 0;
+        final LogicalChannel channel = channels[number];
+        if (channel == null) {
+            return new Response(0x6881);
+        }
+
+        if (apdu[1] == (byte) 0xC2) {
+            return envelope(channel, apdu);
+        }
+
+        final Command cmd = Command.parse(apdu);
+        if (cmd == null) {
+            return new Response(0x6700);
+        }
+
+        if (cmd.ins == 0x70) {
+            return manageChannel(number, cmd);
+        }
+
+        if (sm) {
+            return secureMessaging(channel, cmd);
+        }
+
+        // a plain command ends secure messaging
+        channel.session = null;
+        return execute(channel, cmd, false);
+    }
+
+
+    /**
+     * ENVELOPE, collects the data of chained commands and processes the APDU carried with the last command.
+     */
+    private Response envelope(final LogicalChannel channel, final byte[] apdu) throws GeneralSecurityException {
+        if (apdu.length > 5) {
+            channel.envelope.write(apdu, 5, apdu.length - 5);
+        }
+        if ((apdu[0] & 0x10) != 0) {
+            return new Response(0x9000);
+        }
+
+        final byte[] enveloped = channel.envelope.toByteArray();
+        channel.envelope.reset();
+        return process(enveloped);
+    }
+
+
+    private Response manageChannel(final int number, final Command cmd) {
+        if (cmd.p1 == 0x00) { // open
+            if (cmd.p2 != 0) {
+                return new Response(0x6A86);
+            }
+            for (int i = 1; i < CHANNELS; i++) {
+                if (channels[i] == null) {
+                    channels[i] = new LogicalChannel(i);
+                    return new Response(new byte[]{(byte) i}, 0x9000);
+                }
+            }
+            return new Response(0x6A81);
+        } else if (cmd.p1 == (byte) 0x80) { // close
+            final int target = cmd.p2 != 0 ? cmd.p2 & 0xFF : number;
+            if (target == 0 || target >= CHANNELS || channels[target] == null) {
+                return new Response(0x6A86);
+            }
+            channels[target] = null;
+            return new Response(0x9000);
+        }
+        return new Response(0x6A86);
+    }
+
+
+    /**
+     * Verifies and decrypts a protected command, processes it and protects the response.
+     */
+    private Response secureMessaging(final LogicalChannel channel, final Command cmd) throws GeneralSecurityException {
+        final SMSession session = channel.session;
+        if (session == null) {
+            return new Response(0x6982);
+        }
+
+        byte[] do87 = null, do97 = null, mac = null;
+        int macOfs = -1;
+        final byte[] body = cmd.data;
+        int i = 0;
+        while (i + 1 < body.length) {
+            final int tag = body[i] & 0xFF;
+            int len = body[i + 1] & 0xFF, ofs = i + 2;
+            if (len == 0x81) {
+                len = body[i + 2] & 0xFF;
+                ofs++;
+            } else if (len == 0x82) {
+                len = (body[i + 2] & 0xFF) << 8 | body[i + 3] & 0xFF;
+                ofs += 2;
+            }
+            final byte[] value = Arrays.copyOfRange(body, ofs, ofs + len);
+            if (tag == 0x87) {
+                do87 = value;
+            } else if (tag == 0x97) {
+                do97 = value;
+            } else if (tag == 0x8E) {
+                mac = value;
+                macOfs = i;
+            }
+            i = ofs + len;
+        }
+
+        session.increment();
+        if (mac == null) {
+            channel.session = null;
+            return new Response(0x6987);
+        }
+
+        // the MAC covers the class byte as sent by the host, without channel number
+        final byte cla = (cmd.cla & 0x40) != 0 ? (byte) (cmd.cla & 0x90 | 0x0C) : (byte) (cmd.cla & 0xFC);
+        final byte[] header = {cla, cmd.ins, cmd.p1, cmd.p2};
+        if (!MessageDigest.isEqual(mac, session.mac(header, Arrays.copyOf(body, macOfs)))) {
+            macFailures++;
+            channel.session = null;
+            return new Response(0x6988);
+        }
+
+        final byte[] data = do87 != null && do87.length > 1 ? session.decrypt(Arrays.copyOfRange(do87, 1, do87.length))
+                : new byte[0];
+        int ne = 0;
+        if (do97 != null && do97.length == 1) {
+            ne = do97[0] == 0 ? 256 : do97[0] & 0xFF;
+        } else if (do97 != null && do97.length == 2) {
+            ne = (do97[0] & 0xFF) << 8 | do97[1] & 0xFF;
+            ne = ne == 0 ? 65536 : ne;
+        }
+
+        final Response res = execute(channel, new Command((byte) (cla & 0xF3), cmd.ins, cmd.p1, cmd.p2, data, ne),
+                true);
+
+        session.increment();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(res.data.length + 48);
+        if (res.data.length > 0) {
+            final byte[] enc = session.encrypt(res.data);
+            final byte[] value = new byte[enc.length + 1];
+            value[0] = 0x01;
+            System.arraycopy(enc, 0, value, 1, enc.length);
+            write(out, TLV.build(0x87, value));
+        }
+        write(out, TLV.build(0x99, new byte[]{(byte) (res.sw >> 8), (byte) res.sw}));
+        write(out, TLV.build(0x8E, session.mac(out.toByteArray())));
+        return new Response(out.toByteArray(), res.sw);
+    }
+
+
+    /**
+     * Processes a plain or unwrapped command.
+     */
+    private Response execute(final LogicalChannel channel, final Command cmd, final boolean secured)
+            throws GeneralSecurityException {
+        switch (cmd.ins) {
+            case (byte) 0xA4:
+                return select(channel, cmd);
+            case (byte) 0xB0:
+                return readBinary(channel, cmd);
+            case (byte) 0xCE:
+                if ((cmd.cla & 0x80) == 0) {
+                    return new Response(0x6E00);
+                }
+                return secured ? new Response(TLV.build(0x7C, TLV.build(0x87, caReference)), 0x9000)
+                        : paceLight(channel, cmd);
+            default:
+                return new Response(0x6D00);
+        }
+    }
+
+
+    private Response select(final LogicalChannel channel, final Command cmd) {
+        final boolean noData = (cmd.p2 & 0x0C) == 0x0C;
+
+        if (cmd.p1 == 0x04) { // by DF name
+            if (!Arrays.equals(aid, cmd.data)) {
+                return new Response(0x6A82);
+            }
+            channel.currentEF = null;
+            if (noData) {
+                return new Response(0x9000);
+            }
+            return new Response(TLV.build(0x6F, TLV.concat(TLV.build(0x84, aid),
+                    TLV.build(0x85, new byte[]{(byte) channel.number}))), 0x9000);
+        }
+
+        if (cmd.p1 != 0x00 && cmd.p1 != 0x02) {
+            return new Response(0x6A86);
+        }
+
+        if (cmd.data.length == 0 || cmd.data.length == 2 && cmd.data[0] == 0x3F && cmd.data[1] == 0x00) { // MF
+            channel.currentEF = null;
+            return new Response(0x9000);
+        }
+        if (cmd.data.length != 2) {
+            return new Response(0x6A87);
+        }
+
+        final ElementaryFile ef = files.get((cmd.data[0] & 0xFF) << 8 | cmd.data[1] & 0xFF);
+        if (ef == null) {
+            return new Response(0x6A82);
+        }
+        channel.currentEF = ef;
+        if (noData) {
+            return new Response(0x9000);
+        }
+
+        // FCP with file size, descriptor and identifier
+        return new Response(TLV.build(0x62, TLV.concat(
+                TLV.build(0x80, new byte[]{(byte) (ef.content.length >> 8), (byte) ef.content.length}),
+                TLV.build(0x82, new byte[]{0x01}),
+                TLV.build(0x83, new byte[]{cmd.data[0], cmd.data[1]}))), 0x9000);
+    }
+
+
+    private Response readBinary(final LogicalChannel channel, final Command cmd) {
+        final int ofs;
+        if ((cmd.p1 & 0x80) != 0) { // short file identifier in P1, offset in P2
+            final ElementaryFile ef = bySFI[cmd.p1 & 0x1F];
+            if (ef == null) {
+                return new Response(0x6A82);
+            }
+            channel.currentEF = ef;
+            ofs = cmd.p2 & 0xFF;
+        } else {
+            ofs = (cmd.p1 & 0x7F) << 8 | cmd.p2 & 0xFF;
+        }
+
+        final ElementaryFile ef = channel.currentEF;
+        if (ef == null) {
+            return new Response(0x6986);
+        }
+        if (cmd.ne == 0) {
+            return new Response(0x6700);
+        }
+        if (ofs > ef.content.length) {
+            return new Response(0x6B00);
+        }
+
+        final int len = Math.min(cmd.ne, ef.content.length - ofs);
+        return new Response(Arrays.copyOfRange(ef.content, ofs, ofs + len), len < cmd.ne ? 0x6282 : 0x9000);
+    }
+
+
+    /**
+     * First step of PACE-light: decrypts the host random, answers with the encrypted card random and derives the
+     * session keys from both.
+     */
+    private Response paceLight(final LogicalChannel channel, final Command cmd) throws GeneralSecurityException {
+        final TLVCursor dad = new TLVCursor(cmd.data);
+        if (!dad.find(0x7C) || !dad.enter().find(0x81) || dad.valueLength() == 0 || dad.valueLength() % 16 != 0) {
+            return new Response(0x6A80);
+        }
+        final byte[] encHostRandom = dad.value();
+
+        final SecretKeySpec key = new SecretKeySpec(secret, "AES");
+        final Cipher c = Cipher.getInstance("AES/CBC/NoPadding");
+        c.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(new byte[16]));
+        final byte[] hostRandom = c.doFinal(encHostRandom);
+
+        final byte[] cardRandom = new byte[32];
+        random.nextBytes(cardRandom);
+        c.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(new byte[16]));
+        final byte[] idPICC = c.doFinal(cardRandom);
+
+        final MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        sha256.update(cardRandom);
+        final byte[] seed = sha256.digest(hostRandom);
+
+        final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        channel.session = new SMSession(kdf(sha1, seed, 1), kdf(sha1, seed, 2));
+        return new Response(TLV.build(0x7C, TLV.build(0x82, idPICC)), 0x9000);
+    }
+
+
+    private static byte[] kdf(final MessageDigest md, final byte[] seed, final int counter) {
+        md.update(seed);
+        md.update(ByteBuffer.allocate(4).putInt(counter).array());
+        return Arrays.copyOf(md.digest(), 16);
+    }
+
+
+    private static void write(final ByteArrayOutputStream out, final byte[] data) {
+        out.write(data, 0, data.length);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.sim;
+
+import net.vx4.lib.omapi.ChannelMultiplexer;
+import net.vx4.lib.omapi.ChannelTransportProvider;
+import net.vx4.lib.omapi.Hex;
+import net.vx4.lib.omapi.OMAPITP;
+import net.vx4.lib.omapi.Response;
+import net.vx4.lib.omapi.ResponseCallback;
+import net.vx4.lib.omapi.se.SecureElements;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.simalliance.openmobileapi.Reader;
+import org.simalliance.openmobileapi.SEService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous sessions through the whole provider stack, driven by a pool much smaller than the number of sessions.
+ *
+ * @version $Id$
+ */
+public class AsyncTransmitTest {
+
+    private static final byte[] AID = Hex.x(OMAPITP.AID_VX4ID);
+    private static final byte[] SECRET = Hex.x("000102030405060708090A0B0C0D0E0F");
+    private static final int ELEMENTS = 4;
+    private static final int COMMANDS = 10;
+
+    private final List<SimulatedSecureElement> elements = new ArrayList<SimulatedSecureElement>();
+    private final List<ChannelMultiplexer> multiplexers = new ArrayList<ChannelMultiplexer>();
+    private ExecutorService executor;
+
+
+    @Before
+    public void setUp() throws Exception {
+        executor = ChannelTransportProvider.newExecutor(4, 64);
+        for (int i = 0; i < ELEMENTS; i++) {
+            final SimulatedSecureElement se = new SimulatedSecureElement(AID, SECRET);
+            se.addFile(0x0101, 1, new byte[300]);
+            se.setLatency(200, TimeUnit.MICROSECONDS);
+            SecureElements.register("SIM" + i, se);
+            elements.add(se);
+        }
+
+        final Reader[] readers = new SEService(null, null).getReaders();
+        for (final Reader reader : readers) {
+            multiplexers.add(new ChannelMultiplexer(reader.openSession(), AID, 19, executor));
+        }
+    }
+
+
+    @After
+    public void tearDown() {
+        for (final ChannelMultiplexer mux : multiplexers) {
+            mux.close();
+        }
+        for (int i = 0; i < ELEMENTS; i++) {
+            SecureElements.unregister("SIM" + i);
+        }
+        executor.shutdownNow();
+    }
+
+
+    @Test
+    public void manySessionsOnSmallPool() throws Exception {
+        final List<AsyncSession> sessions = new ArrayList<AsyncSession>();
+        final CountDownLatch done = new CountDownLatch(ELEMENTS * 19);
+        for (final ChannelMultiplexer mux : multiplexers) {
+            for (int i = 0; i < 19; i++) {
+                sessions.add(new AsyncSession(mux.acquire(), done));
+            }
+        }
+
+        for (final AsyncSession session : sessions) {
+            session.start();
+        }
+
+        Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+        for (final AsyncSession session : sessions) {
+            Assert.assertNull(session.failure);
+            Assert.assertEquals(0, session.unexpected.get());
+            session.channel.close();
+        }
+        for (final SimulatedSecureElement se : elements) {
+            Assert.assertEquals(0, se.getMACFailures());
+        }
+    }
+
+
+    @Test
+    public void chainedCommandMatchesBlockingTransmit() throws Exception {
+        final byte[] apdu = Hex.x("00A4020C00012C" + Hex.toString(new byte[300]));
+
+        final ChannelTransportProvider channel = multiplexers.get(0).acquire();
+        try {
+            final OMAPITP omapiTP = new OMAPITP(channel);
+            final Response expected = omapiTP.exchange(apdu.clone());
+            final Response actual = omapiTP.transmitAsync(apdu.clone()).get(10, TimeUnit.SECONDS);
+
+            Assert.assertEquals(expected.sw(), actual.sw());
+            Assert.assertArrayEquals(expected.toBytes(), actual.toBytes());
+        } finally {
+            channel.close();
+        }
+    }
+
+
+    /**
+     * Runs PACE-light and a number of commands, emulated ones and secured ones passed on to the secure element, each
+     * sent from the callback of the previous one.
+     */
+    private static final class AsyncSession implements ResponseCallback {
+        private final ChannelTransportProvider channel;
+        private final OMAPITP omapiTP;
+        private final CountDownLatch done;
+        private final AtomicInteger unexpected = new AtomicInteger();
+        private volatile Throwable failure;
+        private int sent = 0;
+
+
+        AsyncSession(final ChannelTransportProvider channel, final CountDownLatch done) {
+            this.channel = channel;
+            this.done = done;
+            omapiTP = new OMAPITP(channel);
+            omapiTP.setCallbackHandler(new OMAPITP.CallbackHandler() {
+                @Override
+                public byte[] getSecret() {
+                    return SECRET.clone();
+                }
+            });
+        }
+
+
+        void start() {
+            omapiTP.transmit(Hex.x("FF9A04020000"), this);
+        }
+
+
+        @Override
+        public void completed(final Response response) {
+            if (response.sw() != 0x9000) {
+                unexpected.incrementAndGet();
+            }
+            if (sent++ < COMMANDS) {
+                omapiTP.transmit(Hex.x(sent % 2 == 0 ? "00A4020C020101" : "00B09C0010"), this);
+            } else {
+                done.countDown();
+            }
+        }
+
+
+        @Override
+        public void failed(final Throwable cause) {
+            failure = cause;
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.sim;
+
+import net.vx4.lib.omapi.ChannelMultiplexer;
+import net.vx4.lib.omapi.ChannelTransportProvider;
+import net.vx4.lib.omapi.Hex;
+import net.vx4.lib.omapi.OMAPITP;
+import net.vx4.lib.omapi.SessionCache;
+import net.vx4.lib.omapi.se.SecureElements;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.simalliance.openmobileapi.SEService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent callers on the logical channels of one simulated secure element.
+ *
+ * @version $Id$
+ */
+public class ChannelMultiplexerTest {
+
+    private static final byte[] AID = Hex.x(OMAPITP.AID_VX4ID);
+    private static final byte[] SECRET = Hex.x("000102030405060708090A0B0C0D0E0F");
+
+    private SimulatedSecureElement se;
+    private ChannelMultiplexer mux;
+
+
+    @Before
+    public void setUp() throws Exception {
+        se = new SimulatedSecureElement(AID, SECRET);
+        se.addFile(0x0101, 1, new byte[300]);
+        SecureElements.register("SIM", se);
+        mux = new ChannelMultiplexer(new SEService(null, null).getReaders()[0].openSession(), AID, 6);
+    }
+
+
+    @After
+    public void tearDown() {
+        mux.close();
+        SecureElements.unregister("SIM");
+    }
+
+
+    @Test
+    public void concurrentSecureMessagingSessions() throws Exception {
+        final ExecutorService callers = Executors.newFixedThreadPool(12);
+        try {
+            final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 24; i++) {
+                results.add(callers.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        final ChannelTransportProvider channel = mux.acquire();
+                        try {
+                            final OMAPITP omapiTP = new OMAPITP(channel);
+                            omapiTP.setCallbackHandler(new OMAPITP.CallbackHandler() {
+                                @Override
+                                public byte[] getSecret() {
+                                    return SECRET.clone();
+                                }
+                            });
+                            omapiTP.process(Hex.x("FF9A04020000"));
+
+                            int failures = 0;
+                            for (int j = 0; j < 20; j++) {
+                                final byte[] rpdu = omapiTP.process(Hex.x("00A4020C020101"));
+                                if (rpdu.length != 2 || rpdu[0] != (byte) 0x90) {
+                                    failures++;
+                                }
+                            }
+                            return failures;
+                        } finally {
+                            channel.close();
+                        }
+                    }
+                }));
+            }
+
+            for (final Future<Integer> result : results) {
+                Assert.assertEquals(0, result.get(30, TimeUnit.SECONDS).intValue());
+            }
+            Assert.assertEquals(0, se.getMACFailures());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+
+    @Test
+    public void sessionIsResumedOnAReacquiredChannel() throws Exception {
+        final ChannelMultiplexer single = new ChannelMultiplexer(
+                new SEService(null, null).getReaders()[0].openSession(), AID, 1);
+        final SessionCache sessions = new SessionCache(4, 1, TimeUnit.MINUTES);
+        try {
+            byte[] established = null;
+            for (int i = 0; i < 3; i++) {
+                // every caller builds its own stack on the channel and releases it when done
+                final ChannelTransportProvider channel = single.acquire();
+                try {
+                    final OMAPITP omapiTP = new OMAPITP(channel);
+                    omapiTP.setCallbackHandler(new OMAPITP.CallbackHandler() {
+                        @Override
+                        public byte[] getSecret() {
+                            return SECRET.clone();
+                        }
+                    });
+                    omapiTP.setSessionCache(sessions);
+
+                    final byte[] pace = omapiTP.process(Hex.x("FF9A04020000"));
+                    if (established == null) {
+                        established = pace;
+                    }
+                    // the same IDPICC and CA reference as the first caller, so not established again
+                    Assert.assertArrayEquals(established, pace);
+                    Assert.assertArrayEquals(Hex.x("9000"), omapiTP.process(Hex.x("00A4020C020101")));
+                    omapiTP.close();
+                } finally {
+                    channel.close();
+                }
+            }
+            Assert.assertEquals(1, sessions.size());
+            Assert.assertEquals(0, se.getMACFailures());
+        } finally {
+            sessions.clear();
+            single.close();
+        }
+    }
+
+
+    @Test
+    public void callersWaitForAFreeChannel() throws Exception {
+        final List<ChannelTransportProvider> acquired = new ArrayList<ChannelTransportProvider>();
+        for (int i = 0; i < 6; i++) {
+            acquired.add(mux.acquire());
+        }
+        Assert.assertNull(mux.tryAcquire(10, TimeUnit.MILLISECONDS));
+
+        final byte channelId = acquired.get(2).getChannelId();
+        acquired.get(2).close();
+        final ChannelTransportProvider reused = mux.tryAcquire(10, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull(reused);
+        Assert.assertEquals(channelId, reused.getChannelId());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.sim;
+
+import net.vx4.lib.omapi.Hex;
+import net.vx4.lib.omapi.Metrics;
+import net.vx4.lib.omapi.MetricsMXBeans;
+import net.vx4.lib.omapi.OMAPITP;
+import net.vx4.lib.omapi.se.SecureElements;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.simalliance.openmobileapi.SEService;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+/**
+ * Metrics recorded by the whole stack against the simulated secure element.
+ *
+ * @version $Id$
+ */
+public class MetricsTest {
+
+    private static final byte[] AID = Hex.x(OMAPITP.AID_VX4ID);
+    private static final byte[] SECRET = Hex.x("000102030405060708090A0B0C0D0E0F");
+
+    private OMAPITP omapiTP;
+
+
+    @Before
+    public void setUp() throws Exception {
+        final SimulatedSecureElement se = new SimulatedSecureElement(AID, SECRET);
+        se.addFile(0x0101, 1, new byte[16]);
+        SecureElements.register("SIM", se);
+
+        omapiTP = new OMAPITP(new SEService(null, null).getReaders()[0].openSession().openLogicalChannel(AID));
+        omapiTP.setCallbackHandler(new OMAPITP.CallbackHandler() {
+            @Override
+            public byte[] getSecret() {
+                return SECRET.clone();
+            }
+        });
+        Metrics.reset();
+        Metrics.setEnabled(true);
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        Metrics.setEnabled(false);
+        Metrics.reset();
+        MetricsMXBeans.unregister();
+        SecureElements.unregister("SIM");
+    }
+
+
+    @Test
+    public void everyLayerIsRecorded() {
+        omapiTP.process(Hex.x("00A4020C00012C" + Hex.toString(new byte[300]))); // chained in two ENVELOPEs
+        omapiTP.process(Hex.x("FF9A04020000"));
+        for (int i = 0; i < 3; i++) {
+            omapiTP.process(Hex.x("00A4020C020101"));
+        }
+        omapiTP.process(Hex.x("00A4020C020102"));
+
+        Assert.assertEquals(6, Metrics.latency(Metrics.Layer.OMAPITP).getCount());
+        Assert.assertEquals(5, Metrics.latency(Metrics.Layer.OMAPITP, 0xA4).getCount());
+        Assert.assertEquals(4, Metrics.latency(Metrics.Layer.SM, 0xA4).getCount());
+        Assert.assertEquals(4, Metrics.statusWordCount(Metrics.Layer.SM, 0x9000)); // including the end of PACE-light
+        Assert.assertEquals(1, Metrics.statusWordCount(Metrics.Layer.SM, 0x6A82));
+        Assert.assertEquals(1, Metrics.statusWordCount(Metrics.Layer.OMAPITP, 0x6A82));
+        Assert.assertEquals(2, Metrics.latency(Metrics.Layer.CHANNEL, 0xC2).getCount());
+        Assert.assertEquals(1, Metrics.c2Segments().getCount());
+        Assert.assertEquals(2, Metrics.c2Segments().getMax());
+        Assert.assertEquals(1, Metrics.paceDuration().getCount());
+        Assert.assertEquals(0, Metrics.paceFailures());
+        Assert.assertEquals(0, Metrics.macFailures());
+        Assert.assertTrue(Metrics.latency(Metrics.Layer.OMAPITP).getValueAtPercentile(99)
+                >= Metrics.latency(Metrics.Layer.CHANNEL, 0xA4).getValueAtPercentile(50));
+    }
+
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void metricsAreReadableThroughJMX() throws Exception {
+        omapiTP.process(Hex.x("FF9A04020000"));
+        omapiTP.process(Hex.x("00A4020C020101"));
+
+        final ObjectName name = MetricsMXBeans.register();
+        final Object statusWords = ManagementFactory.getPlatformMBeanServer().getAttribute(name, "StatusWords");
+        Assert.assertNotNull(statusWords);
+        Assert.assertEquals(Long.valueOf(2), Metrics.statusWords().get("SM.9000"));
+
+        final Map<String, Long> histograms = Metrics.histograms();
+        Assert.assertEquals(Long.valueOf(1), histograms.get("SM.A4.count"));
+        Assert.assertEquals(Long.valueOf(1), histograms.get("PACE.duration.count"));
+        Assert.assertEquals(Long.valueOf(1), Metrics.counters().get("PACE.count"));
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2017-2019 adesso AG
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved by the
+ * European Commission - subsequent versions of the EUPL (the "Licence"); You may
+ * not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ * https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the Licence for the
+ * specific language governing permissions and limitations under the Licence.
+ */
+package net.vx4.lib.omapi.sim;
+
+import net.vx4.lib.omapi.APDUScript;
+import net.vx4.lib.omapi.ChannelTransportProvider;
+import net.vx4.lib.omapi.Hex;
+import net.vx4.lib.omapi.ISOSMTransport;
+import net.vx4.lib.omapi.Log;
+import net.vx4.lib.omapi.OMAPITP;
+import net.vx4.lib.omapi.Response;
+import net.vx4.lib.omapi.ResponseFuture;
+import net.vx4.lib.omapi.ScriptResult;
+import net.vx4.lib.omapi.SessionCache;
+import net.vx4.lib.omapi.VirtualFileSystem;
+import net.vx4.lib.omapi.TLV;
+import net.vx4.lib.omapi.se.SecureElements;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.simalliance.openmobileapi.Channel;
+import org.simalliance.openmobileapi.Reader;
+import org.simalliance.openmobileapi.SEService;
+import org.simalliance.openmobileapi.Session;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The OMAPI stack against the simulated secure element.
+ *
+ * @version $Id$
+ */
+public class SimulatedSecureElementTest {
+
+    private static final byte[] AID = Hex.x(OMAPITP.AID_VX4ID);
+    private static final byte[] SECRET = Hex.x("000102030405060708090A0B0C0D0E0F");
+
+    private final byte[] content = new byte[600];
+    private SimulatedSecureElement se;
+    private Session session;
+
+
+    @Before
+    public void setUp() throws Exception {
+        se = new SimulatedSecureElement(AID, SECRET);
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        se.addFile(0x0101, 1, content);
+        SecureElements.register("SIM", se);
+
+        final Reader[] readers = new SEService(null, null).getReaders();
+        Assert.assertEquals(1, readers.length);
+        session = readers[0].openSession();
+    }
+
+
+    @After
+    public void tearDown() {
+        SecureElements.unregister("SIM");
+    }
+
+
+    @Test
+    public void logicalChannelsCarryTheirNumberInTheFCI() {
+        for (int i = 1; i < 6; i++) {
+            final Channel channel = session.openLogicalChannel(AID);
+            Assert.assertEquals(i, new ChannelTransportProvider(channel).getChannelId());
+        }
+        session.closeChannels();
+        Assert.assertEquals(1, new ChannelTransportProvider(session.openLogicalChannel(AID)).getChannelId());
+    }
+
+
+    @Test
+    public void readBinaryByShortFileIdentifier() {
+        final ChannelTransportProvider tp = new ChannelTransportProvider(session.openLogicalChannel(AID));
+
+        Response res = tp.exchange(Hex.x("00B0811010"));
+        Assert.assertEquals(0x9000, res.sw());
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 16, 32), res.data());
+
+        res = tp.exchange(Hex.x("00B0025000"));
+        Assert.assertEquals(0x6282, res.sw());
+        Assert.assertEquals(600 - 0x250, res.length());
+    }
+
+
+    @Test
+    public void paceLightAndSecureMessaging() {
+        for (int i = 0; i < 5; i++) { // the further interindustry class starts with channel 4
+            session.openLogicalChannel(AID);
+        }
+        final OMAPITP omapiTP = new OMAPITP(session.openLogicalChannel(AID));
+        omapiTP.setCallbackHandler(new OMAPITP.CallbackHandler() {
+            @Override
+            public byte[] getSecret() {
+                return SECRET.clone();
+            }
+        });
+
+        // the CA reference is only returned through secure messaging
+        final String paceResponse = Hex.x(omapiTP.process(Hex.x("FF9A04020000")));
+        Assert.assertTrue(paceResponse.contains(Hex.x("DETESTeID00005".getBytes(StandardCharsets.ISO_8859_1))));
+        Assert.assertEquals(0x9000, sw(omapiTP.process(Hex.x("00A4020C020101"))));
+        Assert.assertEquals(0x6A82, sw(omapiTP.process(Hex.x("00A4020C020102"))));
+        Assert.assertEquals(0, se.getMACFailures());
+    }
+
+
+    @Test
+    public void sessionIsResumedOnTheSameChannel() throws Exception {
+        final Channel channel = session.openLogicalChannel(AID);
+        final SessionCache sessions = new SessionCache(4, 1, TimeUnit.MINUTES);
+        final int[] secrets = new int[1];
+        final OMAPITP.CallbackHandler cbh = new OMAPITP.CallbackHandler() {
+            @Override
+            public byte[] getSecret() {
+                secrets[0]++;
+                return SECRET.clone();
+            }
+        };
+
+        final OMAPITP first = new OMAPITP(channel);
+        first.setCallbackHandler(cbh);
+        first.setSessionCache(sessions);
+        final byte[] established = first.process(Hex.x("FF9A04020000"));
+        Assert.assertEquals(0x9000, sw(established));
+
+        // the session is cached only when its owner releases it
+        Assert.assertEquals(0, sessions.size());
+        first.close();
+        Assert.assertEquals(1, sessions.size());
+
+        // a reconnecting client gets the same IDPICC without PACE-light, blocking and asynchronously
+        final OMAPITP second = new OMAPITP(channel);
+        second.setCallbackHandler(cbh);
+        second.setSessionCache(sessions);
+        Assert.assertArrayEquals(established, second.process(Hex.x("FF9A04020000")));
+        final ResponseFuture resumed = new ResponseFuture();
+        second.transmit(Hex.x("FF9A04020000"), resumed);
+        Assert.assertArrayEquals(established, resumed.get(5, TimeUnit.SECONDS).toBytes());
+        Assert.assertEquals(3, secrets[0]);
+        Assert.assertEquals(0x9000, sw(second.process(Hex.x("00A4020C020101"))));
+
+        // a session the secure element dropped after a plain command is established again
+        Assert.assertEquals(0x9000, sw(channel.transmit(Hex.x("00A4020C020101"))));
+        Assert.assertEquals(0x9000, sw(second.process(Hex.x("FF9A04020000"))));
+        Assert.assertEquals(0x9000, sw(second.process(Hex.x("00A4020C020101"))));
+
+        // a caller with another secret doesn't get the session
+        second.close();
+        final OMAPITP other = new OMAPITP(channel);
+        other.setCallbackHandler(new OMAPITP.CallbackHandler() {
+            @Override
+            public byte[] getSecret() {
+                return new byte[16];
+            }
+        });
+        other.setSessionCache(sessions);
+        Assert.assertEquals(0x6985, sw(other.process(Hex.x("FF9A04020000"))));
+        Assert.assertEquals(0, sessions.size());
+    }
+
+
+    @Test
+    public void sessionsInUseAreNotEvicted() {
+        final SessionCache sessions = new SessionCache(1, 1, TimeUnit.MINUTES);
+        final OMAPITP[] tps = new OMAPITP[2];
+        for (int i = 0; i < tps.length; i++) {
+            tps[i] = new OMAPITP(session.openLogicalChannel(AID));
+            tps[i].setCallbackHandler(new OMAPITP.CallbackHandler() {
+                @Override
+                public byte[] getSecret() {
+                    return SECRET.clone();
+                }
+            });
+            tps[i].setSessionCache(sessions);
+            Assert.assertEquals(0x9000, sw(tps[i].process(Hex.x("FF9A04020000"))));
+        }
+
+        tps[0].close();
+        tps[1].close();
+        Assert.assertEquals(1, sessions.size());
+        Assert.assertEquals(0x9000, sw(tps[0].process(Hex.x("00A4020C020101"))));
+        Assert.assertEquals(0x9000, sw(tps[1].process(Hex.x("FF9A04020000"))));
+        Assert.assertEquals(0x9000, sw(tps[1].process(Hex.x("00A4020C020101"))));
+    }
+
+
+    @Test
+    public void scriptRunsEmulatedAndProtectedCommands() {
+        final OMAPITP omapiTP = new OMAPITP(session.openLogicalChannel(AID));
+        omapiTP.setCallbackHandler(new OMAPITP.CallbackHandler() {
+            @Override
+            public byte[] getSecret() {
+                return SECRET.clone();
+            }
+        });
+        Assert.assertEquals(0x9000, sw(omapiTP.process(Hex.x("FF9A04020000"))));
+
+        final APDUScript script = new APDUScript()
+                .add(Hex.x("00A4020C02011C"))
+                .add(Hex.x("00B00000000000"), 0x6282)
+                .add(Hex.x("00A4020C020101"))
+                .add(Hex.x("00B0000000"))
+                .add(Hex.x("00B0010000"))
+                .add(Hex.x("00B0020000"), 0x9000, 0x6282)
+                .add(Hex.x("00A4020C02011D"))
+                .add(Hex.x("00B00000000000"), 0x6282);
+        final ScriptResult result = omapiTP.run(script);
+        Assert.assertTrue(result.isComplete());
+        Assert.assertEquals(-1, result.failed());
+
+        final VirtualFileSystem files = omapiTP.getFileSystem();
+        Assert.assertEquals(files.file(0x011C).read(0, 65536).toString(), result.response(1).toString());
+        Assert.assertArrayEquals(content, Arrays.copyOfRange(result.array(), result.offset(3), result.offset(6)));
+        Assert.assertEquals(0x6282, result.sw(5));
+        Assert.assertEquals(files.file(0x011D).length(), result.length(7));
+        Assert.assertEquals(result.offset(7) + result.length(7), result.dataLength());
+
+        // stops at the first unexpected status word, secure messaging continues behind it
+        final ScriptResult stopped = omapiTP.run(new APDUScript()
+                .add(Hex.x("00A4020C020101"))
+                .add(Hex.x("00A4020C020102"))
+                .add(Hex.x("00B0000010")));
+        Assert.assertFalse(stopped.isComplete());
+        Assert.assertEquals(2, stopped.size());
+        Assert.assertEquals(1, stopped.failed());
+        Assert.assertEquals(0x6A82, stopped.sw(1));
+        Assert.assertArrayEquals(Arrays.copyOf(content, 16),
+                Arrays.copyOf(omapiTP.process(Hex.x("00B0000010")), 16));
+        Assert.assertEquals(0, se.getMACFailures());
+    }
+
+
+    @Test
+    public void secureMessagingOverChainedResponses() {
+        final OMAPITP omapiTP = new OMAPITP(new ChainingChannel(session.openLogicalChannel(AID), 64));
+        omapiTP.setCallbackHandler(new OMAPITP.CallbackHandler() {
+            @Override
+            public byte[] getSecret() {
+                return SECRET.clone();
+            }
+        });
+        Assert.assertEquals(0x9000, sw(omapiTP.process(Hex.x("FF9A04020000"))));
+        Assert.assertEquals(0x9000, sw(omapiTP.process(Hex.x("00A4020C020101"))));
+
+        // the protected response of 256 bytes takes five parts, the MAC is checked over all of them
+        final byte[] rpdu = omapiTP.process(Hex.x("00B0000000"));
+        Assert.assertEquals(0x9000, sw(rpdu));
+        Assert.assertArrayEquals(Arrays.copyOf(content, 256), Arrays.copyOf(rpdu, rpdu.length - 2));
+        Assert.assertEquals(0, se.getMACFailures());
+    }
+
+
+    @Test
+    public void emulatedFilesAreReadInChunks() {
+        final OMAPITP omapiTP = new OMAPITP(session.openLogicalChannel(AID));
+        Assert.assertEquals(0x9000, sw(omapiTP.process(Hex.x("00A4020C02011D"))));
+
+        final ByteArrayOutputStream cardSecurity = new ByteArrayOutputStream();
+        final byte[] read = Hex.x("00B0000000");
+        for (int ofs = 0; ; ofs += 256) {
+            read[2] = (byte) (ofs >> 8);
+            read[3] = (byte) ofs;
+            final Response res = omapiTP.exchange(read);
+            Assert.assertArrayEquals(res.toBytes(), omapiTP.process(read.clone()));
+
+            final ByteBuffer response = ByteBuffer.allocate(256);
+            Assert.assertEquals(res.sw(), omapiTP.process(ByteBuffer.wrap(read.clone()), response));
+            Assert.assertEquals(res.length(), response.position());
+
+            cardSecurity.write(res.data(), 0, res.length());
+            if (res.sw() != 0x9000) {
+                Assert.assertEquals(0x6282, res.sw());
+                break;
+            }
+        }
+        // a single SEQUENCE with a long form length of two bytes
+        final byte[] cs = cardSecurity.toByteArray();
+        Assert.assertEquals(4 + ((cs[2] & 0xFF) << 8 | cs[3] & 0xFF), cs.length);
+
+        // all at once with extended Le, or from an offset data object with odd instruction byte
+        final Response all = omapiTP.exchange(Hex.x("00B00000000000"));
+        Assert.assertEquals(0x6282, all.sw());
+        Assert.assertArrayEquals(cs, all.data());
+        final Response odd = omapiTP.exchange(Hex.x("00B1011D000004540203E80000"));
+        Assert.assertEquals(0x6282, odd.sw());
+        Assert.assertArrayEquals(TLV.build(0x53, Arrays.copyOfRange(cs, 1000, cs.length)), odd.data());
+        Assert.assertEquals(0x9000, omapiTP.exchange(Hex.x("00B100000354010010")).sw());
+
+        final Response ca = omapiTP.exchange(Hex.x("00B09C0000"));
+        Assert.assertEquals(0x6282, ca.sw());
+        Assert.assertEquals(0x31, ca.get(0));
+        Assert.assertArrayEquals(Arrays.copyOfRange(ca.data(), 16, 32), omapiTP.exchange(Hex.x("00B09C1010")).data());
+
+        // a file selected on the secure element is read from it
+        Assert.assertEquals(0x9000, sw(omapiTP.process(Hex.x("00A4020C020101"))));
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 0, 16), omapiTP.exchange(Hex.x("00B0000010")).data());
+    }
+
+
+    @Test
+    public void tracingRedactsTheSecret() {
+        final List<String> messages = new ArrayList<String>();
+        Log.setSink(new Log.Sink() {
+            @Override
+            public void log(final Log.Level level, final String tag, final String message, final Throwable cause) {
+                messages.add(message);
+            }
+        }, Log.Level.TRACE);
+        try {
+            final OMAPITP omapiTP = new OMAPITP(session.openLogicalChannel(AID));
+            omapiTP.setCallbackHandler(new OMAPITP.CallbackHandler() {
+                @Override
+                public byte[] getSecret() {
+                    return SECRET.clone();
+                }
+            });
+            omapiTP.process(Hex.x("FF9A04020000"));
+            Assert.assertEquals(0x9000, sw(omapiTP.process(Hex.x("00A4020C020101"))));
+        } finally {
+            Log.setSink(null, Log.Level.TRACE);
+        }
+
+        boolean traced = false;
+        for (final String message : messages) {
+            Assert.assertFalse(message, message.contains(Hex.x(SECRET)));
+            traced |= message.contains("00A4020C020101");
+        }
+        Assert.assertTrue(traced);
+    }
+
+
+    @Test
+    public void wrongMACIsRejected() throws Exception {
+        final ChannelTransportProvider tp = new ChannelTransportProvider(session.openLogicalChannel(AID));
+        // PACE-light with an arbitrary encrypted host random
+        Assert.assertTrue(tp.exchange(TLV.concat(Hex.x("80CE0000247C228120"), new byte[32], new byte[1])).isOK());
+
+        final ISOSMTransport sm = new ISOSMTransport(tp);
+        sm.setupKeys(new byte[16], new byte[16]);
+        sm.transmit(Hex.x("00A4020C020101"));
+        Assert.assertEquals(1, se.getMACFailures());
+    }
+
+
+    @Test
+    public void latencyDelaysEveryAPDU() {
+        final ChannelTransportProvider tp = new ChannelTransportProvider(session.openLogicalChannel(AID));
+        se.setLatency(20, TimeUnit.MILLISECONDS);
+
+        final long start = System.nanoTime();
+        tp.transmit(Hex.x("00A4020C020101"));
+        tp.transmit(Hex.x("00B0000010"));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+    }
+
+
+    /**
+     * Channel returning long responses in parts fetched by GET RESPONSE, like a card over T=0.
+     */
+    private static final class ChainingChannel extends Channel {
+        private final Channel channel;
+        private final int partSize;
+        private byte[] pending = new byte[0];
+
+
+        ChainingChannel(final Channel channel, final int partSize) {
+            this.channel = channel;
+            this.partSize = partSize;
+        }
+
+
+        @Override
+        public byte[] transmit(final byte[] command) {
+            if (command[1] != (byte) 0xC0) {
+                final byte[] rpdu = channel.transmit(command);
+                if (rpdu.length - 2 <= partSize) {
+                    return rpdu;
+                }
+                pending = rpdu;
+            }
+
+            final int n = Math.min(partSize, pending.length - 2);
+            final byte[] part = Arrays.copyOf(pending, n + 2);
+            pending = Arrays.copyOfRange(pending, n, pending.length);
+            if (pending.length > 2) {
+                part[n] = 0x61;
+                part[n + 1] = (byte) Math.min(partSize, pending.length - 2);
+            } else {
+                part[n] = pending[0];
+                part[n + 1] = pending[1];
+            }
+            return part;
+        }
+
+
+        @Override
+        public byte[] getSelectResponse() {
+            return channel.getSelectResponse();
+        }
+    }
+
+
+    private static int sw(final byte[] rpdu) {
+        return (rpdu[rpdu.length - 2] & 0xFF) << 8 | rpdu[rpdu.length - 1] & 0xFF;
+    }
+}